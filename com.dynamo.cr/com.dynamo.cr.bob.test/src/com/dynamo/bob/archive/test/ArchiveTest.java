@@ -17,8 +17,11 @@ package com.dynamo.bob.archive.test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -27,18 +30,24 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Before;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.Test;
 
 import com.dynamo.bob.CompileExceptionError;
 import com.dynamo.bob.archive.ArchiveEntry;
 import com.dynamo.bob.archive.ArchiveBuilder;
+import com.dynamo.bob.archive.ArchiveExtractor;
 import com.dynamo.bob.archive.ArchiveReader;
+import com.dynamo.bob.archive.CompressionPolicy;
 import com.dynamo.bob.archive.ManifestBuilder;
 import com.dynamo.bob.Project;
 import com.dynamo.bob.util.FileUtil;
@@ -47,6 +56,10 @@ import com.dynamo.bob.pipeline.graph.ResourceNode;
 import com.dynamo.bob.pipeline.graph.ResourceGraph;
 
 import com.dynamo.liveupdate.proto.Manifest.HashAlgorithm;
+import com.dynamo.liveupdate.proto.Manifest.ManifestData;
+import com.dynamo.liveupdate.proto.Manifest.ManifestFile;
+import com.dynamo.liveupdate.proto.Manifest.ResourceEntry;
+import com.dynamo.liveupdate.proto.Manifest.SignAlgorithm;
 
 public class ArchiveTest {
 
@@ -472,5 +485,448 @@ public class ArchiveTest {
         assertEquals("/main.collectionc", instance.getArchiveEntry(1).getRelativeFilename());         // b32b3904944e63ed5a269caa47904645
     }
 
+    private void writeArchive(int maxThreads, File index, File data) throws Exception {
+        ManifestBuilder manifestBuilder = new ManifestBuilder();
+        manifestBuilder.setResourceHashAlgorithm(HashAlgorithm.HASH_SHA1);
+        ArchiveBuilder instance = new ArchiveBuilder(FilenameUtils.separatorsToSystem(contentRoot), manifestBuilder, 4);
+        instance.setMaxThreads(maxThreads);
+        for (int i = 0; i < 200; ++i) {
+            StringBuilder content = new StringBuilder();
+            for (int j = 0; j < i * 10; ++j) {
+                content.append(j % (i + 1));
+            }
+            String filepath = createDummyFile(contentRoot, "dir" + (i % 7) + "/file" + i + ".scriptc", content.toString().getBytes());
+            instance.add(FilenameUtils.separatorsToSystem(filepath), true, false);
+        }
+        try (RandomAccessFile outFileIndex = new RandomAccessFile(index, "rw");
+             RandomAccessFile outFileData = new RandomAccessFile(data, "rw")) {
+            outFileIndex.setLength(0);
+            outFileData.setLength(0);
+            instance.write(outFileIndex, outFileData, resourcePackDir, new ArrayList<String>());
+        }
+    }
+
+    @Test
+    public void testWriteArchiveParallelIsDeterministic() throws Exception {
+        File outputIndex2 = Files.createTempFile("tmp.defold", "arci").toFile();
+        File outputData2 = Files.createTempFile("tmp.defold", "arcd").toFile();
+        try {
+            writeArchive(1, outputIndex, outputData);
+            writeArchive(8, outputIndex2, outputData2);
+            assertArrayEquals(FileUtils.readFileToByteArray(outputIndex), FileUtils.readFileToByteArray(outputIndex2));
+            assertArrayEquals(FileUtils.readFileToByteArray(outputData), FileUtils.readFileToByteArray(outputData2));
+        } finally {
+            FileUtils.deleteQuietly(outputIndex2);
+            FileUtils.deleteQuietly(outputData2);
+        }
+    }
+
+    private File[] writeArchiveFiles(File dir, String name, File[] previous, File sourceDigests, int expectedReused) throws Exception {
+        ManifestBuilder manifestBuilder = new ManifestBuilder();
+        manifestBuilder.setResourceHashAlgorithm(HashAlgorithm.HASH_SHA1);
+        manifestBuilder.setSignatureHashAlgorithm(HashAlgorithm.HASH_SHA1);
+        manifestBuilder.setSignatureSignAlgorithm(SignAlgorithm.SIGN_RSA);
+        manifestBuilder.setProjectIdentifier("Defold test");
+        manifestBuilder.setPrivateKeyFilepath("test/private_rsa_1024_1.der");
+        manifestBuilder.setResourceGraph(resourceGraph);
+
+        ArchiveBuilder instance = new ArchiveBuilder(FilenameUtils.separatorsToSystem(contentRoot), manifestBuilder, 4);
+        for (int i = 0; i < 20; ++i) {
+            instance.add(FilenameUtils.separatorsToSystem(FilenameUtils.concat(contentRoot, "inc/file" + i + ".scriptc")), i % 4 != 0, false);
+        }
+        File[] files = new File[] { new File(dir, name + ".arci"), new File(dir, name + ".arcd"), new File(dir, name + ".dmanifest") };
+        if (previous != null) {
+            instance.setPreviousArchive(previous[0], previous[1], previous[2], sourceDigests);
+        }
+        try (RandomAccessFile outFileIndex = new RandomAccessFile(files[0], "rw");
+             RandomAccessFile outFileData = new RandomAccessFile(files[1], "rw")) {
+            instance.write(outFileIndex, outFileData, resourcePackDir, new ArrayList<String>());
+        }
+        FileUtils.writeByteArrayToFile(files[2], manifestBuilder.buildManifest());
+        assertEquals(expectedReused, instance.getReusedEntryCount());
+        return files;
+    }
+
+    private void assertSameFiles(File[] expected, File[] actual) throws IOException {
+        for (int i = 0; i < expected.length; ++i) {
+            assertArrayEquals(FileUtils.readFileToByteArray(expected[i]), FileUtils.readFileToByteArray(actual[i]));
+        }
+    }
+
+    @Test
+    public void testWriteArchiveIncremental() throws Exception {
+        File dir = Files.createTempDirectory("tmp.defold.incremental_").toFile();
+        try {
+            for (int i = 0; i < 20; ++i) {
+                createDummyFile(contentRoot, "inc/file" + i + ".scriptc", ("file" + i + " content content content content " + i).getBytes());
+            }
+            File sourceDigests = new File(dir, "digests");
+            File[] missing = new File[] { new File(dir, "missing.arci"), new File(dir, "missing.arcd"), new File(dir, "missing.dmanifest") };
+            File[] first = writeArchiveFiles(dir, "first", missing, sourceDigests, 0);
+            assertTrue(sourceDigests.exists());
+
+            // nothing changed
+            File[] unchanged = writeArchiveFiles(dir, "unchanged", first, sourceDigests, 20);
+            assertSameFiles(first, unchanged);
+
+            // one changed file
+            createDummyFile(contentRoot, "inc/file5.scriptc", "changed content".getBytes());
+            File[] clean = writeArchiveFiles(dir, "clean", null, null, 0);
+            File[] incremental = writeArchiveFiles(dir, "incremental", unchanged, sourceDigests, 19);
+            assertSameFiles(clean, incremental);
+
+            // the digests must match the previous archive
+            writeArchiveFiles(dir, "mismatch", first, sourceDigests, 0);
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testReadArchiveEntries() throws Exception {
+        File dir = Files.createTempDirectory("tmp.defold.reader_").toFile();
+        try {
+            ManifestBuilder manifestBuilder = new ManifestBuilder();
+            manifestBuilder.setResourceHashAlgorithm(HashAlgorithm.HASH_SHA1);
+            manifestBuilder.setSignatureHashAlgorithm(HashAlgorithm.HASH_SHA1);
+            manifestBuilder.setSignatureSignAlgorithm(SignAlgorithm.SIGN_RSA);
+            manifestBuilder.setProjectIdentifier("Defold test");
+            manifestBuilder.setPrivateKeyFilepath("test/private_rsa_1024_1.der");
+            manifestBuilder.setResourceGraph(resourceGraph);
+
+            ArchiveBuilder instance = new ArchiveBuilder(FilenameUtils.separatorsToSystem(contentRoot), manifestBuilder, 4);
+            byte[][] contents = new byte[20][];
+            for (int i = 0; i < contents.length; ++i) {
+                StringBuilder content = new StringBuilder();
+                for (int j = 0; j < 10; ++j) {
+                    content.append("file" + i + " content " + j + "\n");
+                }
+                contents[i] = content.toString().getBytes();
+                String filepath = createDummyFile(contentRoot, "read/file" + i + ".scriptc", contents[i]);
+                instance.add(FilenameUtils.separatorsToSystem(filepath), i % 2 == 0, i % 3 == 0);
+            }
+            File index = new File(dir, "game.arci");
+            File data = new File(dir, "game.arcd");
+            File manifest = new File(dir, "game.dmanifest");
+            try (RandomAccessFile outFileIndex = new RandomAccessFile(index, "rw");
+                 RandomAccessFile outFileData = new RandomAccessFile(data, "rw")) {
+                instance.write(outFileIndex, outFileData, resourcePackDir, new ArrayList<String>());
+            }
+            FileUtils.writeByteArrayToFile(manifest, manifestBuilder.buildManifest());
+
+            ArchiveReader ar = new ArchiveReader(index.getAbsolutePath(), data.getAbsolutePath(), manifest.getAbsolutePath());
+            ar.read();
+            assertEquals(contents.length, ar.getEntryCount());
+            int compressed = 0;
+            int encrypted = 0;
+            for (int i = 0; i < contents.length; ++i) {
+                String url = "/read/file" + i + ".scriptc";
+                ArchiveEntry entry = ar.findEntryByUrl(url);
+                assertNotNull(entry);
+                assertEquals(url, entry.getFilename());
+                assertArrayEquals(contents[i], ar.getEntryContent(entry));
+                assertArrayEquals(contents[i], IOUtils.toByteArray(ar.getEntryInputStream(entry)));
+
+                ArchiveEntry byHash = ar.findEntry(entry.getHash());
+                assertNotNull(byHash);
+                assertEquals(entry.getResourceOffset(), byHash.getResourceOffset());
+                compressed += entry.isCompressed() ? 1 : 0;
+                encrypted += entry.isEncrypted() ? 1 : 0;
+            }
+            assertEquals(10, compressed);
+            assertEquals(7, encrypted);
+            assertNull(ar.findEntryByUrl("/read/missing.scriptc"));
+            assertNull(ar.findEntry(new byte[ArchiveReader.HASH_BUFFER_BYTESIZE]));
+            ar.close();
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testExtractArchive() throws Exception {
+        File dir = Files.createTempDirectory("tmp.defold.extract_").toFile();
+        try {
+            ManifestBuilder manifestBuilder = new ManifestBuilder();
+            manifestBuilder.setResourceHashAlgorithm(HashAlgorithm.HASH_SHA1);
+            manifestBuilder.setSignatureHashAlgorithm(HashAlgorithm.HASH_SHA1);
+            manifestBuilder.setSignatureSignAlgorithm(SignAlgorithm.SIGN_RSA);
+            manifestBuilder.setProjectIdentifier("Defold test");
+            manifestBuilder.setPrivateKeyFilepath("test/private_rsa_1024_1.der");
+            manifestBuilder.setResourceGraph(resourceGraph);
+
+            ArchiveBuilder instance = new ArchiveBuilder(FilenameUtils.separatorsToSystem(contentRoot), manifestBuilder, 4);
+            byte[][] contents = new byte[10][];
+            for (int i = 0; i < contents.length; ++i) {
+                StringBuilder content = new StringBuilder();
+                for (int j = 0; j < 10; ++j) {
+                    content.append("file" + i + " content " + j + "\n");
+                }
+                contents[i] = content.toString().getBytes();
+                String filepath = createDummyFile(contentRoot, (i < 6 ? "extract/" : "other/") + "file" + i + ".scriptc", contents[i]);
+                instance.add(FilenameUtils.separatorsToSystem(filepath), i % 2 == 0, i % 3 == 0);
+            }
+            File index = new File(dir, "game.arci");
+            File data = new File(dir, "game.arcd");
+            File manifest = new File(dir, "game.dmanifest");
+            try (RandomAccessFile outFileIndex = new RandomAccessFile(index, "rw");
+                 RandomAccessFile outFileData = new RandomAccessFile(data, "rw")) {
+                instance.write(outFileIndex, outFileData, resourcePackDir, new ArrayList<String>());
+            }
+            FileUtils.writeByteArrayToFile(manifest, manifestBuilder.buildManifest());
+
+            File output = new File(dir, "output");
+            ArchiveReader ar = new ArchiveReader(index.getAbsolutePath(), data.getAbsolutePath(), manifest.getAbsolutePath());
+            ar.read();
+            ArchiveExtractor extractor = new ArchiveExtractor(ar, output);
+            extractor.setUrlPrefix("/extract/");
+            extractor.setMaxThreads(4);
+            ArchiveExtractor.Result result = extractor.extract();
+            assertEquals(6, result.extracted);
+            assertEquals(0, result.skipped);
+            assertTrue(result.failed.isEmpty());
+            for (int i = 0; i < contents.length; ++i) {
+                File file = new File(output, (i < 6 ? "extract/" : "other/") + "file" + i + ".scriptc");
+                if (i < 6) {
+                    assertArrayEquals(contents[i], FileUtils.readFileToByteArray(file));
+                } else {
+                    assertFalse(file.exists());
+                }
+            }
+
+            // resume, only the changed file is extracted again
+            FileUtils.writeByteArrayToFile(new File(output, "extract/file1.scriptc"), "changed".getBytes());
+            result = new ArchiveExtractor(ar, output).extract();
+            assertEquals(5, result.extracted);
+            assertEquals(5, result.skipped);
+            assertArrayEquals(contents[1], FileUtils.readFileToByteArray(new File(output, "extract/file1.scriptc")));
+            ar.close();
+
+            // an entry whose data doesn't match the manifest hash fails
+            ar = new ArchiveReader(index.getAbsolutePath(), data.getAbsolutePath(), manifest.getAbsolutePath());
+            ar.read();
+            ArchiveEntry entry = ar.findEntryByUrl("/other/file7.scriptc");
+            ar.close();
+            try (RandomAccessFile file = new RandomAccessFile(data, "rw")) {
+                file.seek(entry.getResourceOffset());
+                int b = file.read();
+                file.seek(entry.getResourceOffset());
+                file.write(b ^ 0xff);
+            }
+            FileUtils.deleteDirectory(output);
+            ar = new ArchiveReader(index.getAbsolutePath(), data.getAbsolutePath(), manifest.getAbsolutePath());
+            ar.read();
+            result = new ArchiveExtractor(ar, output).extract();
+            assertEquals(9, result.extracted);
+            assertEquals(Arrays.asList("/other/file7.scriptc"), result.failed);
+            assertFalse(new File(output, "other/file7.scriptc").exists());
+            ar.close();
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testExtractArchiveUrlOutsideOutput() throws Exception {
+        File dir = Files.createTempDirectory("tmp.defold.extract_").toFile();
+        try {
+            ManifestBuilder manifestBuilder = new ManifestBuilder();
+            manifestBuilder.setResourceHashAlgorithm(HashAlgorithm.HASH_SHA1);
+            manifestBuilder.setSignatureHashAlgorithm(HashAlgorithm.HASH_SHA1);
+            manifestBuilder.setSignatureSignAlgorithm(SignAlgorithm.SIGN_RSA);
+            manifestBuilder.setProjectIdentifier("Defold test");
+            manifestBuilder.setPrivateKeyFilepath("test/private_rsa_1024_1.der");
+            manifestBuilder.setResourceGraph(resourceGraph);
+
+            ArchiveBuilder instance = new ArchiveBuilder(FilenameUtils.separatorsToSystem(contentRoot), manifestBuilder, 4);
+            byte[] content = "file content".getBytes();
+            instance.add(FilenameUtils.separatorsToSystem(createDummyFile(contentRoot, "extract/file.scriptc", content)), false, false);
+            File index = new File(dir, "game.arci");
+            File data = new File(dir, "game.arcd");
+            File manifest = new File(dir, "game.dmanifest");
+            try (RandomAccessFile outFileIndex = new RandomAccessFile(index, "rw");
+                 RandomAccessFile outFileData = new RandomAccessFile(data, "rw")) {
+                instance.write(outFileIndex, outFileData, resourcePackDir, new ArrayList<String>());
+            }
+
+            // the same data under urls which resolve outside of the output directory
+            ManifestFile manifestFile = ManifestFile.parseFrom(manifestBuilder.buildManifest());
+            ManifestData.Builder manifestData = ManifestData.parseFrom(manifestFile.getData()).toBuilder();
+            ResourceEntry resource = manifestData.getResources(0);
+            manifestData.addResources(resource.toBuilder().setUrl("/extract/../../escaped.scriptc"));
+            manifestData.addResources(resource.toBuilder().setUrl("/extract/.."));
+            FileUtils.writeByteArrayToFile(manifest, manifestFile.toBuilder().setData(manifestData.build().toByteString()).build().toByteArray());
+
+            File output = new File(dir, "output");
+            ArchiveReader ar = new ArchiveReader(index.getAbsolutePath(), data.getAbsolutePath(), manifest.getAbsolutePath());
+            ar.read();
+            ArchiveExtractor.Result result = new ArchiveExtractor(ar, output).extract();
+            ar.close();
+            assertEquals(1, result.extracted);
+            assertEquals(Arrays.asList("/extract/..", "/extract/../../escaped.scriptc"), result.failed);
+            assertArrayEquals(content, FileUtils.readFileToByteArray(new File(output, "extract/file.scriptc")));
+            assertFalse(new File(dir, "escaped.scriptc").exists());
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
 
+    @Test
+    public void testWriteArchiveDeduplicatesContent() throws Exception {
+        File dir = Files.createTempDirectory("tmp.defold.dedup_").toFile();
+        try {
+            ManifestBuilder manifestBuilder = new ManifestBuilder();
+            manifestBuilder.setResourceHashAlgorithm(HashAlgorithm.HASH_SHA1);
+            manifestBuilder.setSignatureHashAlgorithm(HashAlgorithm.HASH_SHA1);
+            manifestBuilder.setSignatureSignAlgorithm(SignAlgorithm.SIGN_RSA);
+            manifestBuilder.setProjectIdentifier("Defold test");
+            manifestBuilder.setPrivateKeyFilepath("test/private_rsa_1024_1.der");
+            manifestBuilder.setResourceGraph(resourceGraph);
+
+            byte[] content = "shared content shared content shared content".getBytes();
+            ArchiveBuilder instance = new ArchiveBuilder(FilenameUtils.separatorsToSystem(contentRoot), manifestBuilder, 4);
+            for (String name : new String[] { "a/shared.texturec", "b/shared.texturec", "c/shared.texturec" }) {
+                instance.add(FilenameUtils.separatorsToSystem(createDummyFile(contentRoot, name, content)), true, false);
+            }
+            // same content stored differently isn't shared
+            instance.add(FilenameUtils.separatorsToSystem(createDummyFile(contentRoot, "d/shared.scriptc", content)), true, true);
+            instance.add(FilenameUtils.separatorsToSystem(createDummyFile(contentRoot, "e/unique.texturec", "unique".getBytes())), true, false);
+
+            File index = new File(dir, "game.arci");
+            File data = new File(dir, "game.arcd");
+            File manifest = new File(dir, "game.dmanifest");
+            try (RandomAccessFile outFileIndex = new RandomAccessFile(index, "rw");
+                 RandomAccessFile outFileData = new RandomAccessFile(data, "rw")) {
+                instance.write(outFileIndex, outFileData, resourcePackDir, new ArrayList<String>());
+            }
+            FileUtils.writeByteArrayToFile(manifest, manifestBuilder.buildManifest());
+            assertEquals(2, instance.getDuplicateEntryCount());
+
+            ArchiveReader ar = new ArchiveReader(index.getAbsolutePath(), data.getAbsolutePath(), manifest.getAbsolutePath());
+            ar.read();
+            assertEquals(5, ar.getEntryCount());
+            ArchiveEntry a = ar.findEntryByUrl("/a/shared.texturec");
+            ArchiveEntry b = ar.findEntryByUrl("/b/shared.texturec");
+            ArchiveEntry c = ar.findEntryByUrl("/c/shared.texturec");
+            ArchiveEntry d = ar.findEntryByUrl("/d/shared.scriptc");
+            assertEquals(a.getResourceOffset(), b.getResourceOffset());
+            assertEquals(a.getResourceOffset(), c.getResourceOffset());
+            assertTrue(a.getResourceOffset() != d.getResourceOffset());
+            assertArrayEquals(content, ar.getEntryContent(b));
+            assertArrayEquals(content, ar.getEntryContent(d));
+
+            long storedSize = 0;
+            for (ArchiveEntry entry : ar.getEntries()) {
+                storedSize += entry.isCompressed() ? entry.getCompressedSize() : entry.getSize();
+            }
+            assertTrue(data.length() < storedSize);
+            ar.close();
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    private int getResourceOffset(ArchiveBuilder instance, String relativeFilename) {
+        for (int i = 0; i < instance.getArchiveEntrySize(); ++i) {
+            if (instance.getArchiveEntry(i).getRelativeFilename().equals(relativeFilename)) {
+                return instance.getArchiveEntry(i).getResourceOffset();
+            }
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unused")
+    @Test
+    public void testWriteArchiveLoadOrderLayout() throws Exception {
+        ManifestBuilder manifestBuilder = new ManifestBuilder();
+        manifestBuilder.setResourceHashAlgorithm(HashAlgorithm.HASH_MD5);
+        manifestBuilder.setResourceGraph(resourceGraph);
+
+        ArchiveBuilder instance = new ArchiveBuilder(FilenameUtils.separatorsToSystem(contentRoot), manifestBuilder, 4);
+
+        ResourceNode root = resourceGraph.getRootNode();
+        ResourceNode collection = addEntry("main.collectionc", "alpha", instance, root);
+        ResourceNode gameobject = addEntry("z.goc", "beta", instance, collection);
+        ResourceNode collectionproxy = addEntry("level.collectionproxyc", "gamma", instance, collection);
+        ResourceNode levelCollection = addEntry("level.collectionc", "delta", instance, collectionproxy);
+        ResourceNode levelGameobject = addEntry("a.goc", "epsilon", instance, levelCollection);
+        // not part of the graph
+        instance.add(FilenameUtils.separatorsToSystem(createDummyFile(contentRoot, "b.custom", "zeta".getBytes())), false, false);
+
+        instance.setLoadGroups(resourceGraph.createLoadGroups());
+        instance.setLoadOrderLayout(true);
+        RandomAccessFile outFileIndex = new RandomAccessFile(outputIndex, "rw");
+        RandomAccessFile outFileData = new RandomAccessFile(outputData, "rw");
+        instance.write(outFileIndex, outFileData, resourcePackDir, new ArrayList<String>());
+        outFileIndex.close();
+        outFileData.close();
+
+        String[] loadOrder = new String[] { "/main.collectionc", "/z.goc", "/level.collectionproxyc", "/level.collectionc", "/a.goc", "/b.custom" };
+        for (int i = 1; i < loadOrder.length; ++i) {
+            assertTrue(getResourceOffset(instance, loadOrder[i - 1]) < getResourceOffset(instance, loadOrder[i]));
+        }
+
+        // the index is still sorted on hash
+        ArchiveReader ar = new ArchiveReader(outputIndex.getAbsolutePath(), outputData.getAbsolutePath(), null);
+        ar.read();
+        List<ArchiveEntry> entries = ar.getEntries();
+        assertEquals(6, entries.size());
+        for (int i = 1; i < entries.size(); ++i) {
+            assertTrue(entries.get(i - 1).compareTo(entries.get(i)) < 0);
+        }
+        ar.close();
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        instance.writeLocalityReport(report);
+        JsonNode groups = new ObjectMapper().readTree(report.toString()).get("groups");
+        assertEquals(2, groups.size());
+        assertEquals(3, groups.get(0).get("resources").getIntValue());
+        assertEquals(1, groups.get(0).get("runs").getIntValue());
+        assertEquals("/level.collectionproxyc", groups.get(1).get("group").getTextValue());
+        assertEquals(2, groups.get(1).get("resources").getIntValue());
+        assertEquals(1, groups.get(1).get("runs").getIntValue());
+    }
+
+    @Test
+    public void testWriteArchiveCompressionPolicy() throws Exception {
+        ManifestBuilder manifestBuilder = new ManifestBuilder();
+        manifestBuilder.setResourceHashAlgorithm(HashAlgorithm.HASH_SHA1);
+        ArchiveBuilder instance = new ArchiveBuilder(FilenameUtils.separatorsToSystem(contentRoot), manifestBuilder, 4);
+        instance.setCompressionPolicies(CompressionPolicy.parsePolicies("small min_size=100000\nbest level=12 trial_levels=1,17\nstrict max_ratio=0.01\n"));
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100; ++i) {
+            builder.append("compressible content " + (i % 10) + "\n");
+        }
+        byte[] content = builder.toString().getBytes();
+        String[] names = new String[] { "a.oggc", "b.small", "c.best", "d.strict", "e.goc" };
+        for (String name : names) {
+            instance.add(FilenameUtils.separatorsToSystem(createDummyFile(contentRoot, name, content)), true, false);
+        }
+        try (RandomAccessFile outFileIndex = new RandomAccessFile(outputIndex, "rw");
+             RandomAccessFile outFileData = new RandomAccessFile(outputData, "rw")) {
+            instance.write(outFileIndex, outFileData, resourcePackDir, new ArrayList<String>());
+        }
+
+        ArchiveReader ar = new ArchiveReader(outputIndex.getAbsolutePath(), outputData.getAbsolutePath(), null);
+        ar.read();
+        for (int i = 0; i < instance.getArchiveEntrySize(); ++i) {
+            ArchiveEntry entry = instance.getArchiveEntry(i);
+            String name = FilenameUtils.getName(entry.getRelativeFilename());
+            boolean expectCompressed = name.equals("c.best") || name.equals("e.goc");
+            assertEquals(name, expectCompressed, entry.isCompressed());
+            assertArrayEquals(content, ar.getEntryContent(ar.findEntry(entry.getHash())));
+        }
+        ar.close();
+
+        // the trials never produce a larger result than the level of the policy
+        byte[] level12 = instance.compressResourceData(content, 12);
+        byte[] best = instance.compressResourceData(content, CompressionPolicy.parse("level=12 trial_levels=1,17"));
+        assertTrue(best.length <= level12.length);
+
+        // larger resources are compressed with the level which compressed the sample best
+        byte[] sampled = instance.compressResourceData(content, CompressionPolicy.parse("level=12 trial_levels=1,17 trial_sample=64"));
+        assertTrue(Arrays.equals(sampled, level12) || Arrays.equals(sampled, instance.compressResourceData(content, 1)) || Arrays.equals(sampled, instance.compressResourceData(content, 17)));
+        assertArrayEquals(sampled, instance.compressResourceData(content, CompressionPolicy.parse("level=12 trial_levels=1,17 trial_sample=64")));
+    }
 }
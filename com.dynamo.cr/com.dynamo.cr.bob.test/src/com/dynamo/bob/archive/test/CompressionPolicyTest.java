@@ -0,0 +1,75 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.archive.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.dynamo.bob.CompileExceptionError;
+import com.dynamo.bob.archive.CompressionPolicy;
+
+public class CompressionPolicyTest {
+
+    @Test
+    public void testParsePolicies() throws Exception {
+        String text = "# extension settings\n"
+                    + "\n"
+                    + ".oggc store\n"
+                    + "texturec level=12 min_size=1024 max_ratio=0.9\n"
+                    + "collectionc trial_levels=4,17 trial_sample=4096\n"
+                    + "goc\n";
+        Map<String, CompressionPolicy> policies = CompressionPolicy.parsePolicies(text);
+        assertEquals(4, policies.size());
+
+        CompressionPolicy oggc = policies.get("oggc");
+        assertTrue(oggc.isStore());
+        assertFalse(oggc.shouldCompress(100000));
+
+        CompressionPolicy texturec = policies.get("texturec");
+        assertEquals(12, texturec.getLevel());
+        assertEquals(1024, texturec.getMinSize());
+        assertEquals(0.9, texturec.getMaxRatio(), 0.0);
+        assertFalse(texturec.shouldCompress(1023));
+        assertTrue(texturec.shouldCompress(1024));
+
+        CompressionPolicy collectionc = policies.get("collectionc");
+        assertEquals(CompressionPolicy.DEFAULT_LEVEL, collectionc.getLevel());
+        assertArrayEquals(new int[] { 4, 17 }, collectionc.getTrialLevels());
+        assertEquals(4096, collectionc.getTrialSample());
+
+        assertEquals(CompressionPolicy.DEFAULT.toString(), policies.get("goc").toString());
+        assertEquals("level=9 min_size=0 max_ratio=0.95 trial_levels=4,17 trial_sample=4096", collectionc.toString());
+    }
+
+    @Test
+    public void testParseInvalidPolicies() throws Exception {
+        String[] invalid = new String[] { "texturec level=18", "texturec level=high", "texturec best", "texturec speed=1", "texturec trial_sample=0" };
+        for (String text : invalid) {
+            try {
+                CompressionPolicy.parsePolicies("oggc store\n" + text);
+                fail("Expected an error for '" + text + "'");
+            } catch (CompileExceptionError e) {
+                assertTrue(e.getMessage().contains("line 2"));
+            }
+        }
+    }
+}
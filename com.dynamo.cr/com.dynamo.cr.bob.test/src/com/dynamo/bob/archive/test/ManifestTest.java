@@ -30,6 +30,11 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -492,4 +497,43 @@ public class ManifestTest {
             }
         }
     }
+
+    @Test
+    public void testCreateManifest_Dependants() throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
+        ManifestInstance instance = new ManifestInstance();
+        ManifestData data = instance.manifestData;
+
+        Map<Long, String> urls = new HashMap<>();
+        for (int i = 0; i < data.getResourcesCount(); ++i) {
+            ResourceEntry current = data.getResources(i);
+            urls.put(current.getUrlHash(), current.getUrl());
+            // sorted on unsigned url hash
+            if (i > 0) {
+                assertTrue(Long.compareUnsigned(data.getResources(i - 1).getUrlHash(), current.getUrlHash()) < 0);
+            }
+        }
+
+        for (int i = 0; i < data.getResourcesCount(); ++i) {
+            ResourceEntry current = data.getResources(i);
+            if (current.getUrl().equals("/main/level1.collectionproxyc")) {
+                Set<String> dependants = new HashSet<>();
+                for (long hash : current.getDependantsList()) {
+                    dependants.add(urls.get(hash));
+                }
+                Set<String> expected = new HashSet<>(Arrays.asList("/main/level1.collectionc", "/main/level1.goc", "/main/level1.scriptc", "/main/level2.collectionproxyc"));
+                assertEquals(expected, dependants);
+            } else {
+                assertEquals(0, current.getDependantsCount());
+            }
+        }
+
+        // all dependants, including the ones in the main bundle
+        ResourceNode proxy = instance.resourceGraph.getResourceNodeFromPath("/main/level1.collectionproxyc");
+        Set<String> dependants = new HashSet<>();
+        for (ResourceNode node : instance.manifestBuilder.getAllDependants(proxy)) {
+            dependants.add(node.getPath());
+        }
+        Set<String> expected = new HashSet<>(Arrays.asList("/main/level1.collectionc", "/main/dynamic.goc", "/main/level1.goc", "/main/level1.scriptc", "/main/shared_go.goc", "/main/level2.collectionproxyc"));
+        assertEquals(expected, dependants);
+    }
 }
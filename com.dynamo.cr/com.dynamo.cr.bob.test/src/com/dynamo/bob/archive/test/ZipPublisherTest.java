@@ -0,0 +1,130 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.archive.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dynamo.bob.archive.ArchiveEntry;
+import com.dynamo.bob.archive.publisher.PublisherSettings;
+import com.dynamo.bob.archive.publisher.ZipPublisher;
+
+public class ZipPublisherTest {
+
+    private File resourcePackDir;
+    private File outputDir;
+    private Map<String, byte[]> contents = new HashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        resourcePackDir = Files.createTempDirectory("tmp.defold.resourcepack_").toFile();
+        outputDir = Files.createTempDirectory("tmp.defold.zip_").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(resourcePackDir);
+        FileUtils.deleteDirectory(outputDir);
+    }
+
+    private void addEntry(ZipPublisher publisher, String name, byte[] content, int flags) throws IOException {
+        File file = new File(resourcePackDir, name);
+        FileUtils.writeByteArrayToFile(file, content);
+        ArchiveEntry entry = new ArchiveEntry(resourcePackDir.getAbsolutePath(), file.getAbsolutePath());
+        entry.setFlags(flags);
+        publisher.AddEntry(file, entry);
+        contents.put(name, content);
+    }
+
+    private ZipPublisher createPublisher(boolean storeCompressed) throws IOException {
+        PublisherSettings settings = new PublisherSettings();
+        settings.setZipFilepath(outputDir.getAbsolutePath());
+        settings.setZipStoreCompressed(storeCompressed);
+        ZipPublisher publisher = new ZipPublisher(outputDir.getAbsolutePath(), settings);
+        publisher.setMaxThreads(4);
+
+        Random random = new Random(1234);
+        for (int i = 0; i < 100; ++i) {
+            StringBuilder text = new StringBuilder();
+            for (int j = 0; j < i * 10; ++j) {
+                text.append("resource ").append(j).append('\n');
+            }
+            addEntry(publisher, String.format("text%03d", i), text.toString().getBytes(StandardCharsets.UTF_8), 0);
+
+            byte[] data = new byte[i * 100];
+            random.nextBytes(data);
+            addEntry(publisher, String.format("data%03d", i), data, ArchiveEntry.FLAG_COMPRESSED);
+        }
+        return publisher;
+    }
+
+    private void verifyZip(File zip, boolean storeCompressed) throws IOException {
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            assertEquals(contents.size(), zipFile.size());
+            for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+                ZipEntry entry = zipFile.getEntry(content.getKey());
+                assertNotNull(entry);
+                if (storeCompressed && (content.getKey().startsWith("data") || content.getValue().length == 0)) {
+                    assertEquals(ZipEntry.STORED, entry.getMethod());
+                } else if (storeCompressed) {
+                    assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+                }
+                try (InputStream is = zipFile.getInputStream(entry)) {
+                    assertArrayEquals(content.getValue(), IOUtils.toByteArray(is));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPublish() throws Exception {
+        ZipPublisher publisher = createPublisher(false);
+        publisher.setFilename("resourcepack.zip");
+        publisher.Publish();
+        verifyZip(new File(outputDir, "resourcepack.zip"), false);
+    }
+
+    @Test
+    public void testPublishStoreCompressed() throws Exception {
+        ZipPublisher publisher = createPublisher(true);
+        publisher.setFilename("resourcepack.zip");
+        publisher.Publish();
+        File zip = new File(outputDir, "resourcepack.zip");
+        verifyZip(zip, true);
+
+        // the entries are written in name order
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            assertEquals("data000", zipFile.entries().nextElement().getName());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+
+package com.dynamo.bob.cache.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dynamo.bob.cache.IRemoteResourceCache;
+
+/**
+ * In-memory remote resource cache used in place of a remote server in tests.
+ * Counts the requests and the highest number of concurrent requests.
+ */
+public class MockRemoteResourceCache implements IRemoteResourceCache {
+
+	public Map<String, byte[]> resources = new ConcurrentHashMap<>();
+
+	public AtomicInteger existsCount = new AtomicInteger();
+	public AtomicInteger downloadCount = new AtomicInteger();
+	public AtomicInteger uploadCount = new AtomicInteger();
+
+	private AtomicInteger activeRequests = new AtomicInteger();
+	private AtomicInteger maxActiveRequests = new AtomicInteger();
+
+	// simulated round-trip time of each request
+	private long latency;
+
+	public MockRemoteResourceCache(long latency) {
+		this.latency = latency;
+	}
+
+	public int getMaxActiveRequests() {
+		return maxActiveRequests.get();
+	}
+
+	private void beginRequest() throws IOException {
+		int active = activeRequests.incrementAndGet();
+		maxActiveRequests.accumulateAndGet(active, Math::max);
+		try {
+			Thread.sleep(latency);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void endRequest() {
+		activeRequests.decrementAndGet();
+	}
+
+	@Override
+	public void setAuthentication(String user, String pass) {
+	}
+
+	@Override
+	public boolean exists(String key) throws IOException {
+		beginRequest();
+		existsCount.incrementAndGet();
+		endRequest();
+		return resources.containsKey(key);
+	}
+
+	@Override
+	public boolean download(String key, File file) throws IOException {
+		beginRequest();
+		downloadCount.incrementAndGet();
+		try {
+			byte[] data = resources.get(key);
+			if (data == null) {
+				return false;
+			}
+			Files.write(file.toPath(), data);
+			return true;
+		} finally {
+			endRequest();
+		}
+	}
+
+	@Override
+	public void upload(String key, File file) throws IOException {
+		beginRequest();
+		uploadCount.incrementAndGet();
+		try {
+			resources.put(key, Files.readAllBytes(file.toPath()));
+		} finally {
+			endRequest();
+		}
+	}
+}
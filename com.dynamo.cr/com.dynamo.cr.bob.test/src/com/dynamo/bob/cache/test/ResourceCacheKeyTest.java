@@ -19,6 +19,7 @@ import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -196,4 +197,36 @@ public class ResourceCacheKeyTest {
 
 		assertEquals(key1, key2);
 	}
+
+	// keys are fixed width hex strings
+	@Test
+	public void testKeyFormat() throws CompileExceptionError, IOException {
+		IResource input = createResource("someInput");
+		for (int i = 0; i < 20; ++i) {
+			IResource output = createResource("someOutput").output();
+			DummyBuilder builder = new DummyBuilder();
+			Task<?> task = builder.addInput(input).addOutput(output).create(null);
+			String key = ResourceCacheKey.calculate(task, createEmptyOptions(), output);
+			assertTrue(key.matches("[0-9a-f]{40}"));
+		}
+	}
+
+	// keys of all outputs of a task are calculated at once
+	@Test
+	public void testMultipleOutputs() throws CompileExceptionError, IOException {
+		IResource input = createResource("someInput");
+		IResource output1 = createResource("someOutput").output();
+		IResource output2 = createResource("someOutput").output();
+
+		DummyBuilder builder = new DummyBuilder();
+		Task<?> task = builder.addInput(input).addOutput(output1).addOutput(output2).create(null);
+		Map<IResource, String> keys = ResourceCacheKey.calculate(task, createImportantOptions(), Arrays.asList(output1, output2));
+		assertEquals(2, keys.size());
+		assertNotEquals(keys.get(output1), keys.get(output2));
+		assertEquals(keys.get(output1), ResourceCacheKey.calculate(task, createImportantOptions(), output1));
+
+		// the digest of a calculated task signature is reused
+		task.calculateSignature();
+		assertEquals(keys, ResourceCacheKey.calculate(task, createImportantOptions(), Arrays.asList(output1, output2)));
+	}
 }
@@ -15,11 +15,17 @@
 package com.dynamo.bob.cache.test;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
@@ -69,4 +75,158 @@ public class ResourceCacheTest {
 		assertArrayEquals(data, resourceCache.get(key));
 	}
 
+	// data put in the cache should be uploaded in the background
+	@Test
+	public void testRemoteUpload() throws CompileExceptionError, IOException {
+		MockRemoteResourceCache remoteCache = new MockRemoteResourceCache(10);
+		resourceCache.init(cacheDir.toString(), null);
+		resourceCache.setRemoteCache(remoteCache);
+		final byte[] data = "somedata".getBytes();
+		for (int i = 0; i < 20; ++i) {
+			resourceCache.put("key" + i, data);
+		}
+		resourceCache.flush();
+		assertEquals(20, remoteCache.resources.size());
+		assertEquals(20, remoteCache.uploadCount.get());
+		assertArrayEquals(data, remoteCache.resources.get("key0"));
+		assertTrue(remoteCache.getMaxActiveRequests() > 1);
+	}
+
+	// data missing in the local cache should be downloaded from the remote cache
+	@Test
+	public void testRemoteDownload() throws CompileExceptionError, IOException {
+		MockRemoteResourceCache remoteCache = new MockRemoteResourceCache(10);
+		final byte[] data = "somedata".getBytes();
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 10; ++i) {
+			remoteCache.resources.put("key" + i, data);
+			keys.add("key" + i);
+		}
+		resourceCache.init(cacheDir.toString(), null);
+		resourceCache.setRemoteCache(remoteCache);
+
+		// the existence checks are made concurrently
+		assertTrue(resourceCache.containsAll(keys));
+		assertEquals(10, remoteCache.existsCount.get());
+		assertTrue(remoteCache.getMaxActiveRequests() > 1);
+
+		// and remembered
+		assertTrue(resourceCache.contains("key0"));
+		assertEquals(10, remoteCache.existsCount.get());
+
+		assertArrayEquals(data, resourceCache.get("key0"));
+		assertEquals(1, remoteCache.downloadCount.get());
+		assertArrayEquals(data, resourceCache.get("key0"));
+		assertEquals(1, remoteCache.downloadCount.get());
+
+		keys.add("missing");
+		assertFalse(resourceCache.containsAll(keys));
+		assertTrue(resourceCache.get("missing") == null);
+
+		// a key known to exist remotely is not uploaded again
+		resourceCache.put("key1", data);
+		resourceCache.flush();
+		assertEquals(0, remoteCache.uploadCount.get());
+	}
+
+	// resources should be stored in sharded directories
+	@Test
+	public void testShardedLayout() throws CompileExceptionError, IOException {
+		resourceCache.init(cacheDir.toString(), null);
+		final byte[] data = "somedata".getBytes();
+		resourceCache.put("abcdef0123", data);
+		assertTrue(new File(cacheDir.toFile(), "ab/cd/abcdef0123").exists());
+		resourceCache.put("a", data);
+		assertTrue(new File(cacheDir.toFile(), "00/0a/a").exists());
+		assertArrayEquals(data, resourceCache.get("a"));
+	}
+
+	// resources stored in the flat layout of older versions should be moved into their shard
+	@Test
+	public void testFlatLayoutMigration() throws CompileExceptionError, IOException {
+		final byte[] data = "somedata".getBytes();
+		Files.write(new File(cacheDir.toFile(), "abcdef0123").toPath(), data);
+		Files.write(new File(cacheDir.toFile(), "0123abcdef").toPath(), data);
+		new File(cacheDir.toFile(), "01/23").mkdirs();
+		Files.write(new File(cacheDir.toFile(), "01/23/0123abcdef").toPath(), data);
+
+		resourceCache.init(cacheDir.toString(), null);
+		assertFalse(new File(cacheDir.toFile(), "abcdef0123").exists());
+		assertFalse(new File(cacheDir.toFile(), "0123abcdef").exists());
+		assertTrue(new File(cacheDir.toFile(), "ab/cd/abcdef0123").exists());
+		assertArrayEquals(data, resourceCache.get("abcdef0123"));
+		assertArrayEquals(data, resourceCache.get("0123abcdef"));
+		assertEquals(2 * data.length, resourceCache.getLocalCacheSize());
+	}
+
+	// the least recently used resources should be evicted when the cache is over budget
+	@Test
+	public void testEviction() throws Exception {
+		final byte[] data = new byte[1000];
+		resourceCache.init(cacheDir.toString(), null);
+		for (int i = 0; i < 10; ++i) {
+			resourceCache.put(String.format("%04d", i), data);
+		}
+		resourceCache.flush();
+		assertEquals(10000, resourceCache.getLocalCacheSize());
+
+		// a new build, resources used in the build are not evicted
+		Thread.sleep(10);
+		resourceCache.init(cacheDir.toString(), null);
+		assertEquals(10000, resourceCache.getLocalCacheSize());
+		resourceCache.setMaxLocalCacheSize(5500);
+		assertTrue(resourceCache.contains("0000"));
+		assertArrayEquals(data, resourceCache.get("0000"));
+		resourceCache.put("0010", data);
+		assertEquals(1, resourceCache.getLocalHitCount());
+		// evicted down to 90% of the budget
+		assertEquals(7, resourceCache.getEvictionCount());
+		assertEquals(4000, resourceCache.getLocalCacheSize());
+		assertTrue(resourceCache.contains("0000"));
+		assertTrue(resourceCache.contains("0010"));
+		int remaining = 0;
+		for (int i = 1; i < 10; ++i) {
+			if (resourceCache.contains(String.format("%04d", i))) {
+				++remaining;
+			}
+		}
+		assertEquals(2, remaining);
+		assertEquals(7, resourceCache.getMissCount());
+		resourceCache.flush();
+
+		// the index is rebuilt if it is missing
+		new File(cacheDir.toFile(), "index").delete();
+		resourceCache.init(cacheDir.toString(), null);
+		assertEquals(4000, resourceCache.getLocalCacheSize());
+	}
+
+	// resources found by containsAll() should not be evicted before they are read
+	@Test
+	public void testContainedNotEvicted() throws Exception {
+		final byte[] data = new byte[1000];
+		resourceCache.init(cacheDir.toString(), null);
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 10; ++i) {
+			resourceCache.put(String.format("%04d", i), data);
+			keys.add(String.format("%04d", i));
+		}
+		resourceCache.flush();
+
+		// a new build, another task caches a resource between the check and the read
+		Thread.sleep(10);
+		resourceCache.init(cacheDir.toString(), null);
+		resourceCache.setMaxLocalCacheSize(5500);
+		assertTrue(resourceCache.containsAll(keys.subList(0, 5)));
+		resourceCache.put("0010", data);
+		assertEquals(5, resourceCache.getEvictionCount());
+		for (String key : keys.subList(0, 5)) {
+			assertArrayEquals(data, resourceCache.get(key));
+		}
+
+		// a resource removed by another process is missing
+		assertTrue(resourceCache.contains("0000"));
+		assertTrue(new File(cacheDir.toFile(), "00/00/0000").delete());
+		assertNull(resourceCache.get("0000"));
+	}
+
 }
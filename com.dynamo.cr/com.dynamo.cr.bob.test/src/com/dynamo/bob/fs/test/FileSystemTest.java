@@ -14,13 +14,19 @@
 
 package com.dynamo.bob.fs.test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Random;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.junit.After;
 import org.junit.Before;
@@ -30,6 +36,7 @@ import org.junit.Test;
 import com.dynamo.bob.fs.DefaultFileSystem;
 import com.dynamo.bob.fs.FileSystemWalker;
 import com.dynamo.bob.fs.IFileSystem.IWalker;
+import com.dynamo.bob.fs.IResource;
 import com.dynamo.bob.test.TestLibrariesRule;
 
 public class FileSystemTest {
@@ -62,6 +69,50 @@ public class FileSystemTest {
         assertTrue(results.contains("test_lib4.zip"));
     }
 
+    private static byte[] sha1(byte[] content) throws Exception {
+        return MessageDigest.getInstance("SHA1").digest(content);
+    }
+
+    @Test
+    public void testSha1() throws Exception {
+        File root = Files.createTempDirectory("bob_fs").toFile();
+        DefaultFileSystem fs = new DefaultFileSystem();
+        try {
+            fs.setRootDirectory(root.getAbsolutePath());
+            fs.setBuildDirectory("build");
+            fs.loadCache();
+
+            Random random = new Random(1);
+            byte[] small = new byte[1000];
+            byte[] large = new byte[3 * 1024 * 1024 + 17];
+            random.nextBytes(small);
+            random.nextBytes(large);
+            IResource smallResource = fs.get("small.bin");
+            IResource largeResource = fs.get("large.bin");
+            smallResource.setContent(small);
+            largeResource.setContent(large);
+            assertArrayEquals(sha1(small), smallResource.sha1());
+            assertArrayEquals(sha1(large), largeResource.sha1());
+
+            // a change keeping the modification time is detected by the size
+            File smallFile = new File(smallResource.getAbsPath());
+            long lastModified = smallFile.lastModified();
+            byte[] smaller = new byte[999];
+            System.arraycopy(small, 0, smaller, 0, smaller.length);
+            smallResource.setContent(smaller);
+            smallFile.setLastModified(lastModified);
+            assertArrayEquals(sha1(smaller), smallResource.sha1());
+
+            // the cache is persisted
+            fs.saveCache();
+            fs.loadCache();
+            assertArrayEquals(sha1(large), largeResource.sha1());
+        } finally {
+            fs.close();
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
     private static class ZipWalker extends FileSystemWalker {
         @Override
         public void handleFile(String path, Collection<String> results) {
@@ -17,6 +17,10 @@ package com.dynamo.bob.pipeline;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -239,6 +243,32 @@ public class LuaBuilderTest extends AbstractProtoBuilderTest {
         assertTrue(luaSource.getDelta().size() > 0);
     }
 
+    @Test
+    public void testLuaJITWorkers() throws Exception {
+        Project p = GetProject();
+        p.setOption("platform", "armv7-android");
+        p.setOption("architectures", "armv7-android,arm64-android");
+
+        String src = "function foo() print('foo') end";
+        LuaSource workerSource = ((LuaModule)build("/test.script", src).get(0)).getSource();
+        p.setOption("luajit-worker-count", "0");
+        // the trailing space makes the script build again, without changing the bytecode
+        LuaSource processSource = ((LuaModule)build("/test.script", src + " ").get(0)).getSource();
+        assertEquals(processSource.getBytecode32(), workerSource.getBytecode32());
+        assertEquals(processSource.getBytecode64(), workerSource.getBytecode64());
+
+        // the line of a compile error is reported with and without workers
+        for (String workerCount : new String[] { "0", "2" }) {
+            p.setOption("luajit-worker-count", workerCount);
+            try {
+                build("/error" + workerCount + ".script", "local x = 1\nx = = 2\n");
+                assertTrue(false);
+            } catch (CompileExceptionError e) {
+                assertEquals(2, e.getLineNumber());
+            }
+        }
+    }
+
     @Test
     public void testLuaBytecodeDeltaCalculation() throws Exception {
         LuaBuilder builder = new LuaBuilder() {};
@@ -287,4 +317,61 @@ public class LuaBuilderTest extends AbstractProtoBuilderTest {
         // byte - the last diffing byte
         assertTrue(delta[261] == 99);
     }
+
+    // straightforward byte by byte version of the delta format, used as reference
+    private static byte[] referenceBytecodeDelta(byte[] b64, byte[] b32) {
+        int indexSize = b32.length >= (1 << 24) ? 4 : b32.length >= (1 << 16) ? 3 : b32.length >= (1 << 8) ? 2 : 1;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        int i = 0;
+        while (i < b32.length) {
+            if (b32[i] == b64[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < b32.length && i - start < 255 && b32[i] != b64[i]) {
+                i++;
+            }
+            for (int b = 0; b < indexSize; ++b) {
+                bos.write((start >> (b * 8)) & 0xff);
+            }
+            bos.write(i - start);
+            bos.write(b32, start, i - start);
+        }
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testLuaBytecodeDeltaRoundTrip() throws Exception {
+        LuaBuilder builder = new LuaBuilder() {};
+        Random random = new Random(4711);
+        // lengths around the index size thresholds
+        int[] lengths = new int[] { 0, 1, 17, 255, 256, 257, 4096, 65535, 65536, 70000 };
+        for (int length : lengths) {
+            for (int iteration = 0; iteration < 20; ++iteration) {
+                byte[] b64 = new byte[length];
+                random.nextBytes(b64);
+                byte[] b32 = b64.clone();
+                // mix of sparse single byte changes and long runs
+                int changes = length == 0 ? 0 : random.nextInt(Math.min(length, 64) + 1);
+                for (int c = 0; c < changes; ++c) {
+                    int start = random.nextInt(length);
+                    int runLength = random.nextInt(4) == 0 ? random.nextInt(600) : 1 + random.nextInt(8);
+                    for (int i = start; i < Math.min(length, start + runLength); ++i) {
+                        b32[i] = (byte) (b64[i] + 1 + random.nextInt(255));
+                    }
+                }
+                if (iteration == 0 && length > 0) {
+                    // everything differs
+                    for (int i = 0; i < length; ++i) {
+                        b32[i] = (byte) ~b64[i];
+                    }
+                }
+
+                byte[] delta = builder.constructBytecodeDelta(b64, b32);
+                assertArrayEquals(referenceBytecodeDelta(b64, b32), delta);
+                assertArrayEquals(b32, builder.applyBytecodeDelta(b64, delta));
+            }
+        }
+    }
 }
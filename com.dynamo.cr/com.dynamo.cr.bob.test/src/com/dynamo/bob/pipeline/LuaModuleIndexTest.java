@@ -0,0 +1,192 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dynamo.bob.fs.IResource;
+import com.dynamo.bob.test.util.MockFileSystem;
+
+public class LuaModuleIndexTest {
+
+    private MockFileSystem fileSystem;
+
+    @Before
+    public void setUp() throws Exception {
+        fileSystem = new MockFileSystem();
+    }
+
+    private static LuaModuleIndex.Entry createEntry(String source, String... modules) {
+        return new LuaModuleIndex.Entry(LuaScanner.digest(source), source.hashCode(), Arrays.asList(modules), new ArrayList<>());
+    }
+
+    private static Set<String> set(String... paths) {
+        return new TreeSet<>(Arrays.asList(paths));
+    }
+
+    @Test
+    public void testSaveLoad() throws Exception {
+        LuaScanner scanner = LuaScanner.scan("local a = require('a.b')\ngo.property('tex', resource.texture('/main/a.png'))\n");
+        List<LuaScanner.Property> properties = new ArrayList<>(scanner.getProperties());
+        LuaModuleIndex index = new LuaModuleIndex();
+        index.put("/main/main.script", new LuaModuleIndex.Entry(LuaScanner.digest("main"), 4711, scanner.getModules(), properties));
+        index.put("/a/b.lua", createEntry("b", "c"));
+
+        IResource resource = fileSystem.get("/build/_BobLuaModules_");
+        index.save(resource);
+
+        index = LuaModuleIndex.load(resource);
+        assertEquals(2, index.size());
+        assertNull(index.get("/main/main.script", LuaScanner.digest("changed")));
+        LuaModuleIndex.Entry entry = index.get("/main/main.script", LuaScanner.digest("main"));
+        assertNotNull(entry);
+        assertEquals(4711, entry.parsedLuaHash);
+        assertEquals(Arrays.asList("a.b"), entry.modules);
+        assertEquals(1, entry.resourceProperties.size());
+        LuaScanner.Property property = entry.resourceProperties.get(0);
+        assertEquals("tex", property.name);
+        assertEquals("/main/a.png", property.value);
+        assertEquals(properties.get(0).type, property.type);
+        assertEquals(properties.get(0).line, property.line);
+        assertTrue(property.isResource);
+        assertEquals(set("/main/main.script"), index.getDependents("/a/b.lua"));
+    }
+
+    @Test
+    public void testDependents() throws Exception {
+        LuaModuleIndex index = new LuaModuleIndex();
+        index.put("/main/main.script", createEntry("main", "a", "util.b"));
+        index.put("/main/other.script", createEntry("other", "util.b"));
+        index.put("/a.lua", createEntry("a", "util.c"));
+        index.put("/util/b.lua", createEntry("b", "util.c"));
+        index.put("/util/c.lua", createEntry("c"));
+
+        assertEquals(set("/main/main.script", "/main/other.script"), index.getDependents("/util/b.lua"));
+        assertEquals(set("/a.lua", "/util/b.lua"), index.getDependents("/util/c.lua"));
+        assertEquals(set("/a.lua", "/util/b.lua", "/main/main.script", "/main/other.script"), index.getAllDependents("/util/c.lua"));
+        assertEquals(set(), index.getAllDependents("/main/main.script"));
+
+        // a changed script replaces its edges
+        index.put("/main/other.script", createEntry("other changed", "a"));
+        assertEquals(set("/main/main.script"), index.getDependents("/util/b.lua"));
+        assertEquals(set("/main/main.script", "/main/other.script"), index.getDependents("/a.lua"));
+
+        index.remove("/main/main.script");
+        assertEquals(set(), index.getDependents("/util/b.lua"));
+        assertEquals(set("/main/other.script"), index.getAllDependents("/a.lua"));
+    }
+
+    @Test
+    public void testCyclicDependents() throws Exception {
+        LuaModuleIndex index = new LuaModuleIndex();
+        index.put("/a.lua", createEntry("a", "b"));
+        index.put("/b.lua", createEntry("b", "a"));
+        assertEquals(set("/b.lua"), index.getAllDependents("/a.lua"));
+    }
+
+    @Test
+    public void testRemoveUnused() throws Exception {
+        LuaModuleIndex index = new LuaModuleIndex();
+        index.put("/main/main.script", createEntry("main", "a"));
+        index.put("/main/deleted.script", createEntry("deleted", "a"));
+        IResource resource = fileSystem.get("/build/_BobLuaModules_");
+        index.save(resource);
+
+        index = LuaModuleIndex.load(resource);
+        assertNotNull(index.get("/main/main.script", LuaScanner.digest("main")));
+        index.removeUnused();
+        assertEquals(1, index.size());
+        assertEquals(set("/main/main.script"), index.getDependents("/a.lua"));
+    }
+
+    @Test
+    public void testModuleFileExists() throws Exception {
+        LuaModuleIndex index = new LuaModuleIndex();
+        List<String> checked = new ArrayList<>();
+        Predicate<String> exists = moduleFile -> {
+            checked.add(moduleFile);
+            return moduleFile.equals("/util/b.lua");
+        };
+        assertTrue(index.moduleFileExists("util.b", exists));
+        assertFalse(index.moduleFileExists("util.c", exists));
+        // each module file is only checked once
+        assertTrue(index.moduleFileExists("util.b", exists));
+        assertFalse(index.moduleFileExists("util.c", exists));
+        assertEquals(Arrays.asList("/util/b.lua", "/util/c.lua"), checked);
+
+        // and checked again in the next build
+        IResource resource = fileSystem.get("/build/_BobLuaModules_");
+        index.put("/main/main.script", createEntry("main", "util.b"));
+        index.save(resource);
+        index = LuaModuleIndex.load(resource);
+        assertTrue(index.moduleFileExists("util.b", exists));
+        assertEquals(3, checked.size());
+    }
+
+    @Test
+    public void testCorruptIndex() throws Exception {
+        IResource resource = fileSystem.get("/build/_BobLuaModules_");
+        assertEquals(0, LuaModuleIndex.load(resource).size());
+
+        LuaModuleIndex index = new LuaModuleIndex();
+        index.put("/main/main.script", createEntry("main", "a"));
+        index.save(resource);
+        byte[] content = resource.getContent();
+        resource.setContent(Arrays.copyOf(content, content.length - 4));
+        assertEquals(0, LuaModuleIndex.load(resource).size());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testReport() throws Exception {
+        LuaModuleIndex index = new LuaModuleIndex();
+        index.put("/main/main.script", createEntry("main", "a"));
+        index.put("/a.lua", createEntry("a", "b"));
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        index.writeReport(os);
+        Map<String, Object> report = new ObjectMapper().readValue(os.toByteArray(), Map.class);
+
+        List<Map<String, Object>> scripts = (List<Map<String, Object>>) report.get("scripts");
+        assertEquals(2, scripts.size());
+        assertEquals("/a.lua", scripts.get(0).get("path"));
+        assertEquals(Arrays.asList("b"), scripts.get(0).get("modules"));
+        assertEquals("/main/main.script", scripts.get(1).get("path"));
+
+        List<Map<String, Object>> modules = (List<Map<String, Object>>) report.get("modules");
+        assertEquals(2, modules.size());
+        assertEquals("/b.lua", modules.get(1).get("path"));
+        assertEquals(Collections.singletonList("/a.lua"), modules.get(1).get("dependents"));
+        assertEquals(Arrays.asList("/a.lua", "/main/main.script"), modules.get(1).get("allDependents"));
+    }
+}
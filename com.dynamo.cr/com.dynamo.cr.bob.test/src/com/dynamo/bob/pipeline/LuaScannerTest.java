@@ -16,11 +16,17 @@ package com.dynamo.bob.pipeline;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.vecmath.Quat4d;
 import javax.vecmath.Vector3d;
@@ -507,4 +513,57 @@ public class LuaScannerTest {
         expected = "  ";
         assertEquals(expected, scanner.getParsedLua());
     }
+
+    @Test
+    public void testScanCache() throws Exception {
+        LuaScanner.clearCache();
+        String luaCode = "local a = require('a')\ngo.property('prop', 1)\n";
+        LuaScanner scanner = LuaScanner.scan(luaCode);
+        assertSame(scanner, LuaScanner.scan(luaCode));
+        assertEquals(1, scanner.getModules().size());
+        assertEquals("a", scanner.getModules().get(0));
+        assertEquals(1, scanner.getProperties().size());
+        assertEquals("prop", scanner.getProperties().get(0).name);
+
+        LuaScanner parsed = new LuaScanner();
+        assertEquals(parsed.parse(luaCode), scanner.getParsedLua());
+
+        // other content is scanned separately
+        assertNotSame(scanner, LuaScanner.scan(luaCode + " "));
+
+        LuaScanner.clearCache();
+        assertNotSame(scanner, LuaScanner.scan(luaCode));
+    }
+
+    @Test
+    public void testConcurrentScan() throws Exception {
+        LuaScanner.clearCache();
+        String file = getFile("test_scanner.lua");
+        // mix of unique and shared scripts, the shared ones are scanned from several threads at once
+        List<String> scripts = new ArrayList<>();
+        for (int i = 0; i < 64; ++i) {
+            scripts.add(file + "\nlocal v" + (i % 16) + " = " + (i % 16) + "\n");
+        }
+        // a script with a syntax error is parsed with LL prediction
+        scripts.add("local a = require('a')\nx = = 2\n");
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<LuaScanner>> futures = new ArrayList<>();
+            for (String script : scripts) {
+                futures.add(executor.submit(() -> LuaScanner.scan(script)));
+            }
+            for (int i = 0; i < scripts.size(); ++i) {
+                LuaScanner expected = new LuaScanner();
+                expected.parse(scripts.get(i));
+                LuaScanner scanner = futures.get(i).get();
+                assertEquals(expected.getParsedLua(), scanner.getParsedLua());
+                assertEquals(expected.getModules(), scanner.getModules());
+                assertEquals(expected.getProperties().size(), scanner.getProperties().size());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        LuaScanner.clearCache();
+    }
 }
@@ -0,0 +1,72 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+
+package com.dynamo.bob.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dynamo.bob.CompileExceptionError;
+import com.dynamo.bob.fs.IResource;
+import com.dynamo.bob.test.util.MockFileSystem;
+import com.dynamo.gameobject.proto.GameObject.CollectionDesc;
+
+public class ProtoUtilTest {
+
+    private MockFileSystem fileSystem;
+
+    @Before
+    public void setUp() throws Exception {
+        fileSystem = new MockFileSystem();
+        ProtoUtil.clearCache();
+    }
+
+    @Test
+    public void testParseIsCached() throws Exception {
+        IResource resource = fileSystem.addFile("/test.collection", "name: \"a\"\n".getBytes());
+        CollectionDesc desc1 = ProtoUtil.parse(resource, CollectionDesc.getDefaultInstance());
+        CollectionDesc desc2 = ProtoUtil.parse(resource, CollectionDesc.getDefaultInstance());
+        assertEquals("a", desc1.getName());
+        assertSame(desc1, desc2);
+
+        // changed content is parsed again
+        resource.setContent("name: \"b\"\n".getBytes());
+        CollectionDesc desc3 = ProtoUtil.parse(resource, CollectionDesc.getDefaultInstance());
+        assertNotSame(desc1, desc3);
+        assertEquals("b", desc3.getName());
+
+        CollectionDesc.Builder builder = CollectionDesc.newBuilder();
+        builder.setScaleAlongZ(1);
+        ProtoUtil.merge(resource, builder);
+        assertEquals("b", builder.getName());
+        assertEquals(1, builder.getScaleAlongZ());
+    }
+
+    @Test
+    public void testParseError() throws Exception {
+        IResource resource = fileSystem.addFile("/test.collection", "name: \"a\"\nname: \"b\n".getBytes());
+        try {
+            ProtoUtil.parse(resource, CollectionDesc.getDefaultInstance());
+            fail();
+        } catch (CompileExceptionError e) {
+            assertEquals(2, e.getLineNumber());
+        }
+    }
+}
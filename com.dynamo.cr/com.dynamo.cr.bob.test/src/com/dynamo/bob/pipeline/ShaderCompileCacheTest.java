@@ -0,0 +1,173 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dynamo.bob.fs.IResource;
+import com.dynamo.bob.pipeline.ShaderUtil.ES2ToES3Converter;
+import com.dynamo.bob.test.util.MockFileSystem;
+import com.dynamo.graphics.proto.Graphics.ShaderDesc;
+
+public class ShaderCompileCacheTest {
+
+    private static final String SOURCE =
+        "uniform vec4 tint;\n" +
+        "varying mediump vec2 var_texcoord0;\n" +
+        "void main() {\n" +
+        "    gl_FragColor = tint;\n" +
+        "}\n";
+
+    private MockFileSystem fileSystem;
+    private IResource index;
+
+    @Before
+    public void setUp() throws Exception {
+        fileSystem = new MockFileSystem();
+        index = fileSystem.get("/build/_BobShaderCache_/index");
+        ShaderCompileCache.load(index);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ShaderCompileCache.save();
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        String key = ShaderCompileCache.getKey("glsl", SOURCE, ES2ToES3Converter.ShaderType.FRAGMENT_SHADER, ShaderDesc.Language.LANGUAGE_GLSL_SM140, false);
+        assertEquals(key, ShaderCompileCache.getKey("glsl", SOURCE, ES2ToES3Converter.ShaderType.FRAGMENT_SHADER, ShaderDesc.Language.LANGUAGE_GLSL_SM140, false));
+        assertNotEquals(key, ShaderCompileCache.getKey("glsl", SOURCE + " ", ES2ToES3Converter.ShaderType.FRAGMENT_SHADER, ShaderDesc.Language.LANGUAGE_GLSL_SM140, false));
+        assertNotEquals(key, ShaderCompileCache.getKey("glsl", SOURCE, ES2ToES3Converter.ShaderType.VERTEX_SHADER, ShaderDesc.Language.LANGUAGE_GLSL_SM140, false));
+        assertNotEquals(key, ShaderCompileCache.getKey("glsl", SOURCE, ES2ToES3Converter.ShaderType.FRAGMENT_SHADER, ShaderDesc.Language.LANGUAGE_GLES_SM300, false));
+        assertNotEquals(key, ShaderCompileCache.getKey("glsl", SOURCE, ES2ToES3Converter.ShaderType.FRAGMENT_SHADER, ShaderDesc.Language.LANGUAGE_GLSL_SM140, true));
+        // the parts are separated
+        assertNotEquals(ShaderCompileCache.getKey("ab", "c"), ShaderCompileCache.getKey("a", "bc"));
+    }
+
+    @Test
+    public void testCachedResults() throws Exception {
+        ShaderDesc.Shader.Builder shader = ShaderDesc.Shader.newBuilder()
+            .setLanguage(ShaderDesc.Language.LANGUAGE_SPIRV)
+            .setSource(com.google.protobuf.ByteString.copyFrom(new byte[] { 3, 2, 35, 7 }));
+        ShaderCompileCache.put("shader", new ShaderProgramBuilder.ShaderBuildResult(shader));
+
+        assertNull(ShaderCompileCache.get("missing"));
+        ShaderProgramBuilder.ShaderBuildResult result = ShaderCompileCache.get("shader");
+        assertNotNull(result.shaderBuilder);
+        assertNull(result.buildWarnings);
+        assertEquals(shader.build(), result.shaderBuilder.build());
+        // each lookup returns a new builder which may be modified by the caller
+        assertNotSame(result.shaderBuilder, ShaderCompileCache.get("shader").shaderBuilder);
+
+        assertEquals(2, ShaderCompileCache.getHitCount());
+        assertEquals(1, ShaderCompileCache.getMissCount());
+    }
+
+    @Test
+    public void testSoftFailNotCached() throws Exception {
+        // the warnings of a soft failed compilation name the temp files of one resource
+        ShaderCompileCache.put("warnings", new ShaderProgramBuilder.ShaderBuildResult(new ArrayList<>(Arrays.asList("/tmp/main.fp.spv: error", "second"))));
+        assertNull(ShaderCompileCache.get("warnings"));
+        assertFalse(index.getResource("warnings").exists());
+
+        ShaderCompileCache.save();
+        ShaderCompileCache.load(index);
+        assertNull(ShaderCompileCache.get("warnings"));
+        assertEquals(0, ShaderCompileCache.getHitCount());
+    }
+
+    @Test
+    public void testSharedBetweenBuilds() throws Exception {
+        ShaderProgramBuilder.ShaderBuildResult first = ShaderCompilerHelpers.buildGLSL(SOURCE, ES2ToES3Converter.ShaderType.FRAGMENT_SHADER, ShaderDesc.Language.LANGUAGE_GLES_SM300, false);
+        assertEquals(0, ShaderCompileCache.getHitCount());
+        assertEquals(1, ShaderCompileCache.getMissCount());
+        ShaderCompileCache.save();
+        assertFalse(ShaderCompileCache.isEnabled());
+
+        ShaderCompileCache.load(index);
+        assertTrue(ShaderCompileCache.isEnabled());
+        ShaderProgramBuilder.ShaderBuildResult second = ShaderCompilerHelpers.buildGLSL(SOURCE, ES2ToES3Converter.ShaderType.FRAGMENT_SHADER, ShaderDesc.Language.LANGUAGE_GLES_SM300, false);
+        assertEquals(1, ShaderCompileCache.getHitCount());
+        assertEquals(0, ShaderCompileCache.getMissCount());
+        assertEquals(first.shaderBuilder.build(), second.shaderBuilder.build());
+
+        // another language is compiled again
+        ShaderCompilerHelpers.buildGLSL(SOURCE, ES2ToES3Converter.ShaderType.FRAGMENT_SHADER, ShaderDesc.Language.LANGUAGE_GLSL_SM140, false);
+        assertEquals(1, ShaderCompileCache.getMissCount());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        ShaderCompileCache.save();
+        assertFalse(ShaderCompileCache.isEnabled());
+        ShaderDesc.Shader.Builder shader = ShaderDesc.Shader.newBuilder()
+            .setLanguage(ShaderDesc.Language.LANGUAGE_GLSL_SM140);
+        ShaderCompileCache.put("shader", new ShaderProgramBuilder.ShaderBuildResult(shader));
+        assertNull(ShaderCompileCache.get("shader"));
+        // not compiled again from the cache when disabled
+        assertNotNull(ShaderCompilerHelpers.buildGLSL(SOURCE, ES2ToES3Converter.ShaderType.FRAGMENT_SHADER, ShaderDesc.Language.LANGUAGE_GLSL_SM140, false).shaderBuilder);
+        assertEquals(0, ShaderCompileCache.getHitCount());
+    }
+
+    @Test
+    public void testSavedWhenChanged() throws Exception {
+        // nothing is written by a build without shaders
+        ShaderCompileCache.save();
+        assertFalse(index.exists());
+
+        ShaderCompileCache.load(index);
+        ShaderDesc.Shader.Builder shader = ShaderDesc.Shader.newBuilder()
+            .setLanguage(ShaderDesc.Language.LANGUAGE_GLSL_SM140);
+        ShaderCompileCache.put("shader", new ShaderProgramBuilder.ShaderBuildResult(shader));
+        ShaderCompileCache.save();
+        byte[] content = index.getContent();
+        assertNotNull(content);
+
+        ShaderCompileCache.load(index);
+        assertNull(ShaderCompileCache.get("missing"));
+        index.setContent(new byte[0]);
+        ShaderCompileCache.save();
+        assertEquals(0, index.getContent().length);
+    }
+
+    @Test
+    public void testCorruptEntry() throws Exception {
+        ShaderDesc.Shader.Builder shader = ShaderDesc.Shader.newBuilder()
+            .setLanguage(ShaderDesc.Language.LANGUAGE_GLSL_SM140);
+        ShaderCompileCache.put("shader", new ShaderProgramBuilder.ShaderBuildResult(shader));
+        ShaderCompileCache.save();
+
+        IResource entry = index.getResource("shader");
+        byte[] content = entry.getContent();
+        entry.setContent(Arrays.copyOf(content, content.length - 2));
+        ShaderCompileCache.load(index);
+        assertNull(ShaderCompileCache.get("shader"));
+        assertEquals(1, ShaderCompileCache.getMissCount());
+    }
+}
@@ -0,0 +1,108 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.pipeline.graph.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dynamo.bob.fs.IResource;
+import com.dynamo.bob.pipeline.graph.ResourceGraphCache;
+import com.dynamo.bob.pipeline.graph.ResourceNode;
+import com.dynamo.bob.test.util.MockFileSystem;
+
+public class ResourceGraphCacheTest {
+
+    private static final byte[] SIGNATURE_A = new byte[] { 1, 2, 3 };
+    private static final byte[] SIGNATURE_B = new byte[] { 4, 5, 6 };
+
+    private MockFileSystem fileSystem;
+
+    @Before
+    public void setUp() throws Exception {
+        fileSystem = new MockFileSystem();
+    }
+
+    @Test
+    public void testSaveLoad() throws Exception {
+        ResourceGraphCache cache = new ResourceGraphCache();
+        cache.put("/main/level.collectionproxyc", new ResourceGraphCache.Edges(SIGNATURE_A, ResourceNode.Type.ExcludedCollectionProxy, Arrays.asList("/main/level.collectionc")));
+        cache.put("/main/main.goc", new ResourceGraphCache.Edges(SIGNATURE_B, ResourceNode.Type.None, Arrays.asList("/main/main.scriptc", "/main/main.spritec")));
+        // resources without a signature are not cached
+        cache.put("/main/failed.goc", new ResourceGraphCache.Edges(new byte[0], ResourceNode.Type.None, Arrays.asList("/main/main.scriptc")));
+        assertEquals(2, cache.size());
+
+        IResource resource = fileSystem.get("/build/_BobResourceGraph_");
+        cache.save(resource);
+
+        cache = ResourceGraphCache.load(resource);
+        assertEquals(2, cache.size());
+        ResourceGraphCache.Edges edges = cache.get("/main/level.collectionproxyc", SIGNATURE_A);
+        assertNotNull(edges);
+        assertEquals(ResourceNode.Type.ExcludedCollectionProxy, edges.type);
+        assertEquals(Arrays.asList("/main/level.collectionc"), edges.children);
+        edges = cache.get("/main/main.goc", SIGNATURE_B);
+        assertNotNull(edges);
+        assertEquals(Arrays.asList("/main/main.scriptc", "/main/main.spritec"), edges.children);
+    }
+
+    @Test
+    public void testChangedSignature() throws Exception {
+        ResourceGraphCache cache = new ResourceGraphCache();
+        cache.put("/main/main.goc", new ResourceGraphCache.Edges(SIGNATURE_A, ResourceNode.Type.None, Arrays.asList("/main/main.scriptc")));
+        assertNull(cache.get("/main/main.goc", SIGNATURE_B));
+        assertNull(cache.get("/main/main.goc", null));
+        assertNull(cache.get("/main/other.goc", SIGNATURE_A));
+    }
+
+    @Test
+    public void testRemoveUnused() throws Exception {
+        ResourceGraphCache cache = new ResourceGraphCache();
+        cache.put("/main/main.goc", new ResourceGraphCache.Edges(SIGNATURE_A, ResourceNode.Type.None, Arrays.asList("/main/main.scriptc")));
+        cache.put("/main/deleted.goc", new ResourceGraphCache.Edges(SIGNATURE_B, ResourceNode.Type.None, Arrays.asList("/main/main.scriptc")));
+        IResource resource = fileSystem.get("/build/_BobResourceGraph_");
+        cache.save(resource);
+
+        // nothing is removed if the resource graph wasn't created
+        cache = ResourceGraphCache.load(resource);
+        cache.removeUnused();
+        assertEquals(2, cache.size());
+
+        // a resource looked up with a changed signature is still used
+        assertNull(cache.get("/main/main.goc", SIGNATURE_B));
+        cache.removeUnused();
+        assertEquals(1, cache.size());
+        cache.save(resource);
+        assertEquals(1, ResourceGraphCache.load(resource).size());
+    }
+
+    @Test
+    public void testCorruptCache() throws Exception {
+        IResource resource = fileSystem.get("/build/_BobResourceGraph_");
+        assertEquals(0, ResourceGraphCache.load(resource).size());
+
+        ResourceGraphCache cache = new ResourceGraphCache();
+        cache.put("/main/main.goc", new ResourceGraphCache.Edges(SIGNATURE_A, ResourceNode.Type.None, Arrays.asList("/main/main.scriptc")));
+        cache.save(resource);
+        byte[] content = resource.getContent();
+        resource.setContent(Arrays.copyOf(content, content.length - 4));
+        assertEquals(0, ResourceGraphCache.load(resource).size());
+    }
+}
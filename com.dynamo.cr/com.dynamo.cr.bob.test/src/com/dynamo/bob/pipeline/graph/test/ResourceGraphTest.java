@@ -17,7 +17,10 @@ package com.dynamo.bob.pipeline.graph.test;
 import static org.junit.Assert.assertEquals;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.After;
 import org.junit.Before;
@@ -99,4 +102,16 @@ public class ResourceGraphTest {
         System.out.println("excludedResources " + excludedResources);
         assertEquals(3, excludedResources.size());
     }
+
+    @Test
+    public void testLoadGroups() throws IOException {
+        Map<String, List<String>> groups = resourceGraph.createLoadGroups();
+        assertEquals(3, groups.size());
+        List<List<String>> expected = Arrays.asList(
+            Arrays.asList("/main/main.collectionc", "/main/main.goc", "/main/shared_go.goc", "/main/main.scriptc", "/main/level1.collectionproxyc", "/main/level2.collectionproxyc"),
+            Arrays.asList("/main/level1.collectionc", "/main/level1.goc", "/main/level1.scriptc"),
+            Arrays.asList("/main/level2.collectionc", "/main/level2.goc", "/main/level2.scriptc"));
+        assertEquals(expected, new ArrayList<>(groups.values()));
+        assertEquals(Arrays.asList(resourceGraph.getRootNode().getPath(), "/main/level1.collectionproxyc", "/main/level2.collectionproxyc"), new ArrayList<>(groups.keySet()));
+    }
 }
@@ -280,6 +280,42 @@ public class JBobTest {
         assertThat(result.get(0).isOk(), is(false));
     }
 
+    @Test
+    public void testTaskOutputAsInputFailingSkipsDependents() throws Exception {
+        fileSystem.addFile("test.proj", "".getBytes());
+        fileSystem.addFile("test1.in_err", "A".getBytes());
+        fileSystem.addFile("test2.in", "B".getBytes());
+        project.setInputs(Arrays.asList("test.proj", "test1.in_err", "test2.in"));
+        List<TaskResult> result = build();
+        // the independent task is built but the task depending on the failed task is not
+        assertThat(result.size(), is(2));
+        assertThat(fileSystem.get("test2.out").output().exists(), is(true));
+        assertThat(fileSystem.get("test.arc").output().exists(), is(false));
+    }
+
+    @Test
+    public void testParallelBuild() throws Exception {
+        project.setOption("max-cpu-threads", "4");
+        fileSystem.addFile("test.proj", "".getBytes());
+        List<String> inputs = new ArrayList<String>();
+        inputs.add("test.proj");
+        for (int i = 0; i < 100; ++i) {
+            String name = String.format("test%d.in", i);
+            fileSystem.addFile(name, "A".getBytes());
+            inputs.add(name);
+        }
+        project.setInputs(inputs);
+        List<TaskResult> result = build();
+        assertThat(result.size(), is(101));
+        for (TaskResult r : result) {
+            assertTrue(r.isOk());
+        }
+        // the task depending on all other tasks must be the last one to complete
+        assertThat(result.get(100).getTask().getName(), is("ArcBuilder"));
+        IResource arcOut = fileSystem.get("test.arc").output();
+        assertThat(arcOut.getContent().length, is(100));
+    }
+
     @Test
     public void testAbsPath() throws Exception {
         fileSystem.addFile("/root/test.in", "test data".getBytes());
@@ -0,0 +1,123 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.test.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.dynamo.bob.util.ContentDefinedChunker;
+
+public class ContentDefinedChunkerTest {
+
+    private static List<ByteBuffer> split(ContentDefinedChunker chunker, byte[] data) {
+        List<ByteBuffer> chunks = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            int length = chunker.nextChunkLength(buffer.slice());
+            chunks.add(ByteBuffer.wrap(Arrays.copyOfRange(data, buffer.position(), buffer.position() + length)));
+            buffer.position(buffer.position() + length);
+        }
+        return chunks;
+    }
+
+    @Test
+    public void testChunkSizes() throws Exception {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(4096);
+        byte[] data = new byte[1024 * 1024];
+        new Random(1).nextBytes(data);
+
+        List<ByteBuffer> chunks = split(chunker, data);
+        int total = 0;
+        for (int i = 0; i < chunks.size(); ++i) {
+            int length = chunks.get(i).remaining();
+            if (i < chunks.size() - 1) {
+                assertTrue(length >= chunker.getMinSize());
+            }
+            assertTrue(length <= chunker.getMaxSize());
+            total += length;
+        }
+        assertEquals(data.length, total);
+        // roughly the average size
+        assertTrue(chunks.size() > data.length / 8192);
+        assertTrue(chunks.size() < data.length / 2048);
+    }
+
+    @Test
+    public void testInsertedData() throws Exception {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(4096);
+        byte[] data = new byte[256 * 1024];
+        new Random(2).nextBytes(data);
+        byte[] changed = new byte[data.length + 100];
+        System.arraycopy(data, 0, changed, 0, 1000);
+        System.arraycopy(data, 1000, changed, 1100, data.length - 1000);
+
+        List<ByteBuffer> chunks = split(chunker, data);
+        Set<ByteBuffer> changedChunks = new HashSet<>(split(chunker, changed));
+        int unchanged = 0;
+        for (ByteBuffer chunk : chunks) {
+            if (changedChunks.contains(chunk)) {
+                ++unchanged;
+            }
+        }
+        // only the chunks around the inserted data differ
+        assertTrue(unchanged >= chunks.size() - 2);
+    }
+
+    @Test
+    public void testSplitFile() throws Exception {
+        ContentDefinedChunker chunker = new ContentDefinedChunker(4096);
+        byte[] data = new byte[100 * 1024];
+        new Random(3).nextBytes(data);
+        File file = File.createTempFile("chunker", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+
+        List<Long> lengths;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            lengths = chunker.split(channel);
+        }
+        List<ByteBuffer> chunks = split(chunker, data);
+        assertEquals(chunks.size(), lengths.size());
+        for (int i = 0; i < chunks.size(); ++i) {
+            assertEquals(chunks.get(i).remaining(), lengths.get(i).longValue());
+        }
+
+        // the data of each chunk is streamed to the consumer
+        List<ByteBuffer> streamed = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            chunker.split(channel, chunk -> {
+                ByteBuffer copy = ByteBuffer.allocate(chunk.remaining());
+                copy.put(chunk);
+                copy.flip();
+                streamed.add(copy);
+            });
+        }
+        assertEquals(chunks, streamed);
+    }
+}
@@ -0,0 +1,177 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.test.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dynamo.bob.util.DigestTable;
+
+public class DigestTableTest {
+
+    private static final int MAGIC = 0x54455354;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("digest_table", "");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private static byte[] digest(int i) {
+        byte[] digest = new byte[DigestTable.DIGEST_SIZE];
+        ByteBuffer.wrap(digest).putInt(i);
+        return digest;
+    }
+
+    private DigestTable load() throws Exception {
+        DigestTable table = new DigestTable(MAGIC, 1, 1);
+        assertTrue(table.load(file));
+        return table;
+    }
+
+    @Test
+    public void testSaveLoad() throws Exception {
+        DigestTable table = new DigestTable(MAGIC, 1, 1);
+        for (int i = 0; i < 100; ++i) {
+            table.put("/path/" + i, digest(i), i);
+        }
+        table.put("/empty", new byte[0], 0);
+        table.save(file);
+
+        table = load();
+        assertEquals(101, table.size());
+        for (int i = 0; i < 100; ++i) {
+            DigestTable.Entry entry = table.get("/path/" + i);
+            assertArrayEquals(digest(i), entry.digest);
+            assertEquals(i, entry.values[0]);
+        }
+        assertEquals(0, table.get("/empty").digest.length);
+    }
+
+    @Test
+    public void testIncrementalSave() throws Exception {
+        DigestTable table = new DigestTable(MAGIC, 1, 1);
+        for (int i = 0; i < 100; ++i) {
+            table.put("/path/" + i, digest(i), i);
+        }
+        table.save(file);
+        long length = file.length();
+
+        // unchanged entries are not written
+        table = load();
+        table.put("/path/0", digest(0), 0);
+        table.save(file);
+        assertEquals(length, file.length());
+
+        table.put("/path/1", digest(1000), 1000);
+        table.remove("/path/2");
+        table.put("/new", digest(2000), 2000);
+        table.save(file);
+        assertTrue(file.length() > length);
+        assertTrue(file.length() < length + 200);
+
+        table = load();
+        assertEquals(100, table.size());
+        assertArrayEquals(digest(1000), table.get("/path/1").digest);
+        assertNull(table.get("/path/2"));
+        assertArrayEquals(digest(2000), table.get("/new").digest);
+        assertEquals(2000, table.get("/new").values[0]);
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        DigestTable table = new DigestTable(MAGIC, 1, 1);
+        table.put("/path", digest(0), 0);
+        table.save(file);
+        long length = file.length();
+        for (int i = 1; i < 2000; ++i) {
+            table.put("/path", digest(i), i);
+            table.save(file);
+        }
+        assertTrue(file.length() < length * 1000);
+
+        table = load();
+        assertEquals(1, table.size());
+        assertArrayEquals(digest(1999), table.get("/path").digest);
+    }
+
+    @Test
+    public void testInterruptedSave() throws Exception {
+        DigestTable table = new DigestTable(MAGIC, 1, 1);
+        table.put("/a", digest(1), 1);
+        table.save(file);
+        table.put("/b", digest(2), 2);
+        table.save(file);
+
+        // cut the last record in half
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+        table = load();
+        assertEquals(1, table.size());
+        assertArrayEquals(digest(1), table.get("/a").digest);
+
+        table.put("/c", digest(3), 3);
+        table.save(file);
+        table = load();
+        assertEquals(2, table.size());
+        assertArrayEquals(digest(3), table.get("/c").digest);
+    }
+
+    @Test
+    public void testVersionMismatch() throws Exception {
+        DigestTable table = new DigestTable(MAGIC, 1, 1);
+        table.put("/a", digest(1), 1);
+        table.save(file);
+
+        table = new DigestTable(MAGIC, 2, 1);
+        assertFalse(table.load(file));
+        assertEquals(0, table.size());
+
+        table = new DigestTable(MAGIC, 1, 2);
+        assertFalse(table.load(file));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testByteArray() throws Exception {
+        DigestTable table = new DigestTable(MAGIC, 1, 1);
+        table.put("/a", digest(1), 1);
+        table.put("/b", digest(2), 2);
+
+        DigestTable copy = new DigestTable(MAGIC, 1, 1);
+        assertTrue(copy.load(ByteBuffer.wrap(table.toByteArray())));
+        assertEquals(2, copy.size());
+        assertArrayEquals(digest(2), copy.get("/b").digest);
+    }
+}
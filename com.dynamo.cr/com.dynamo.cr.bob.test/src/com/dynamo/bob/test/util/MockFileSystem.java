@@ -35,7 +35,7 @@ public class MockFileSystem extends AbstractFileSystem<MockFileSystem, MockResou
     // To easier handle walking we want the resources to be sorted by their key.
     protected Map<String, MockResource> resources = new TreeMap<String, MockResource>();
 
-    public MockResource addFile(String path, byte[] content, long lastModified) {
+    public synchronized MockResource addFile(String path, byte[] content, long lastModified) {
         path = FilenameUtils.normalize(path, true);
         // Paths are always root relative.
         if (path.startsWith("/"))
@@ -60,7 +60,7 @@ public class MockFileSystem extends AbstractFileSystem<MockFileSystem, MockResou
     }
 
     @Override
-    public IResource get(String path) {
+    public synchronized IResource get(String path) {
         path = FilenameUtils.normalize(path, true);
         // Paths are always root relative.
         if (path.startsWith("/"))
@@ -0,0 +1,104 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.test.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import com.dynamo.bob.util.TimeProfiler;
+
+public class TimeProfilerTest {
+
+    @Test
+    public void testThreadedTrace() throws Exception {
+        File jsonFile = File.createTempFile("report", ".json");
+        File traceFile = File.createTempFile("trace", ".json");
+        File jsonTimeFile = new File(jsonFile.getParent(), jsonFile.getName().replace(".json", "_time.json"));
+        jsonFile.deleteOnExit();
+        traceFile.deleteOnExit();
+        jsonTimeFile.deleteOnExit();
+
+        List<File> reportFiles = new ArrayList<>();
+        reportFiles.add(jsonFile);
+        TimeProfiler.init(reportFiles, traceFile, true);
+
+        TimeProfiler.start("main");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; ++i) {
+            final int index = i;
+            futures.add(executor.submit(() -> {
+                TimeProfiler.startF("task %d", index);
+                TimeProfiler.addData("index", index);
+                TimeProfiler.start("inner");
+                TimeProfiler.stop();
+                TimeProfiler.stop();
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        TimeProfiler.addMark("done");
+        TimeProfiler.stop();
+        TimeProfiler.createReport(true);
+
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode trace = mapper.readTree(traceFile);
+        Set<String> names = new HashSet<>();
+        int taskCount = 0;
+        int innerCount = 0;
+        for (JsonNode event : trace.get("traceEvents")) {
+            String ph = event.get("ph").asText();
+            String name = event.get("name").asText();
+            if (ph.equals("X")) {
+                assertTrue(event.get("dur").asLong() >= 0);
+                if (name.startsWith("task ")) {
+                    ++taskCount;
+                    names.add(name);
+                    assertTrue(event.get("args").has("index"));
+                } else if (name.equals("inner")) {
+                    ++innerCount;
+                }
+            }
+        }
+        assertEquals(16, taskCount);
+        assertEquals(16, innerCount);
+        assertEquals(16, names.size());
+
+        JsonNode report = mapper.readTree(jsonTimeFile);
+        assertEquals("Total time", report.get("data").get(0).get("name").asText());
+        assertEquals(1, report.get("marks").size());
+        int threadTaskCount = 0;
+        for (JsonNode thread : report.get("threads")) {
+            threadTaskCount += thread.get("children").size();
+        }
+        assertEquals(16, threadTaskCount);
+    }
+
+}
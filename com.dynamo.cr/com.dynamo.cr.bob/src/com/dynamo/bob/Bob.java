@@ -45,6 +45,8 @@ import org.apache.commons.cli.PosixParser;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
+import com.dynamo.bob.archive.ArchiveExtractor;
+import com.dynamo.bob.archive.ArchiveReader;
 import com.dynamo.bob.archive.EngineVersion;
 import com.dynamo.bob.fs.DefaultFileSystem;
 import com.dynamo.bob.fs.IResource;
@@ -103,7 +105,7 @@ public class Bob {
         }));
       }
 
-    public static void init() {
+    public static synchronized void init() {
         if (rootFolder != null) {
             return;
         }
@@ -130,7 +132,7 @@ public class Bob {
         TimeProfiler.stop();
     }
 
-    public static void initLua() {
+    public static synchronized void initLua() {
         if (luaInitialized) {
             return;
         }
@@ -505,6 +507,7 @@ public class Bob {
         addOption(options, "br", "build-report", true, "DEPRECATED! Use --build-report-json instead", false);
         addOption(options, "brjson", "build-report-json", true, "Filepath where to save a build report as JSON", false);
         addOption(options, "brhtml", "build-report-html", true, "Filepath where to save a build report as HTML", false);
+        addOption(options, "brtrace", "build-report-trace", true, "Filepath where to save a build time report in the Chrome trace event format", false);
 
         addOption(options, null, "build-server", true, "The build server (when using native extensions)", true);
         addOption(options, null, "build-server-header", true, "Additional build server header to set", true);
@@ -516,6 +519,10 @@ public class Bob {
         addOption(options, null, "use-uncompressed-lua-source", false, "Use uncompressed and unencrypted Lua source code instead of byte code", true);
         addOption(options, null, "use-lua-bytecode-delta", false, "Use byte code delta compression when building for multiple architectures", true);
         addOption(options, null, "archive-resource-padding", true, "The alignment of the resources in the game archive. Default is 4", true);
+        addOption(options, null, "archive-compression-policy", true, "Filepath of the compression policies of the resources in the game archive, one line per output extension: <extension> [store] [level=<0-17>] [min_size=<bytes>] [max_ratio=<ratio>] [trial_levels=<level,...>] [trial_sample=<bytes>]", false);
+        addOption(options, null, "archive-load-order-layout", false, "Place the resources which are loaded together next to each other in the game archive data, in the order they are loaded", false);
+        addOption(options, null, "lua-module-report", true, "Filepath where to save a report, as JSON, on the Lua modules required by each script and the scripts depending on each module", false);
+        addOption(options, null, "archive-locality-report", true, "Filepath where to save a report, as JSON, on how the resources loaded together are placed in the game archive data", false);
 
         addOption(options, "l", "liveupdate", true, "Yes if liveupdate content should be published", true);
 
@@ -530,6 +537,7 @@ public class Bob {
         addOption(options, null, "ne-output-name", true, "Specify a library target name", false);
 
         addOption(options, null, "resource-cache-local", true, "Path to local resource cache.", false);
+        addOption(options, null, "resource-cache-local-max-size", true, "Maximum size of the local resource cache in bytes, with an optional K, M or G suffix. The least recently used resources are removed when the cache grows larger.", false);
         addOption(options, null, "resource-cache-remote", true, "URL to remote resource cache.", false);
         addOption(options, null, "resource-cache-remote-user", true, "Username to authenticate access to the remote resource cache.", false);
         addOption(options, null, "resource-cache-remote-pass", true, "Password/token to authenticate access to the remote resource cache.", false);
@@ -538,6 +546,7 @@ public class Bob {
         addOption(options, null, "manifest-public-key", true, "Public key to use when signing manifest and archive.", false);
 
         addOption(options, null, "max-cpu-threads", true, "Max count of threads that bob.jar can use", false);
+        addOption(options, null, "luajit-worker-count", true, "Max count of persistent LuaJIT processes per bitness used to compile Lua bytecode. 0 starts one process per script. Defaults to max-cpu-threads", false);
 
         // debug options
         addOption(options, null, "debug-ne-upload", false, "Outputs the files sent to build server as upload.zip", false);
@@ -663,6 +672,33 @@ public class Bob {
        return expected.isInstance(exc) || (exc != null && isCause(expected, exc.getCause()));
     }
 
+    // bob archive extract <archive> <output directory> [url prefix]
+    // where <archive> is the path of the archive files without extension, ie build/default/game
+    private static int archiveCommand(CommandLine cmd) throws IOException {
+        String[] args = cmd.getArgs();
+        if (args.length < 4 || args.length > 5 || !args[1].equals("extract")) {
+            System.err.println("usage: bob archive extract <archive> <output directory> [url prefix]");
+            return 1;
+        }
+        ArchiveReader reader = new ArchiveReader(args[2] + ".arci", args[2] + ".arcd", args[2] + ".dmanifest");
+        reader.read();
+        try {
+            ArchiveExtractor extractor = new ArchiveExtractor(reader, new File(args[3]));
+            if (args.length == 5) {
+                extractor.setUrlPrefix(args[4]);
+            }
+            if (cmd.hasOption("max-cpu-threads")) {
+                extractor.setMaxThreads(Integer.parseInt(cmd.getOptionValue("max-cpu-threads")));
+            }
+            ArchiveExtractor.Result result = extractor.extract();
+            System.out.printf("Extracted %d resources, %d unchanged, %d not in the archive, %d failed\n",
+                    result.extracted, result.skipped, result.missing, result.failed.size());
+            return result.failed.isEmpty() ? 0 : 1;
+        } finally {
+            reader.close();
+        }
+    }
+
     private static void mainInternal(String[] args) throws IOException, CompileExceptionError, URISyntaxException, LibraryException {
         System.setProperty("java.awt.headless", "true");
         System.setProperty("file.encoding", "UTF-8");
@@ -675,7 +711,7 @@ public class Bob {
         String sourceDirectory = getOptionsValue(cmd, 'i', ".");
 
 
-        if (cmd.hasOption("build-report") || cmd.hasOption("build-report-html")) {
+        if (cmd.hasOption("build-report") || cmd.hasOption("build-report-html") || cmd.hasOption("build-report-trace")) {
             List<File> reportFiles = new ArrayList<>();
             String jsonReportPath = cmd.getOptionValue("build-report");
             if (jsonReportPath != null) {
@@ -685,7 +721,8 @@ public class Bob {
             if (htmlReportPath != null) {
                 reportFiles.add(new File(htmlReportPath));
             }
-            TimeProfiler.init(reportFiles, false);
+            String tracePath = cmd.getOptionValue("build-report-trace");
+            TimeProfiler.init(reportFiles, tracePath != null ? new File(tracePath) : null, false);
         }
 
         if (cmd.hasOption("version")) {
@@ -694,6 +731,11 @@ public class Bob {
             return;
         }
 
+        if (cmd.getArgs().length > 0 && cmd.getArgs()[0].equals("archive")) {
+            System.exit(archiveCommand(cmd));
+            return;
+        }
+
         if (cmd.hasOption("debug") && cmd.hasOption("variant")) {
             System.out.println("-d (--debug) option is deprecated and can't be set together with option --variant");
             System.exit(1);
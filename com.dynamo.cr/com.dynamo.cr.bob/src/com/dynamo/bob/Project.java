@@ -34,6 +34,7 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URI;
 import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -49,11 +50,16 @@ import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
 import java.util.concurrent.ExecutionException;
 import java.util.jar.Attributes;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -86,8 +92,13 @@ import com.dynamo.bob.fs.IResource;
 import com.dynamo.bob.fs.ZipMountPoint;
 import com.dynamo.bob.pipeline.ExtenderUtil;
 import com.dynamo.bob.pipeline.IShaderCompiler;
+import com.dynamo.bob.pipeline.LuaModuleIndex;
+import com.dynamo.bob.pipeline.LuaScanner;
+import com.dynamo.bob.pipeline.ProtoUtil;
+import com.dynamo.bob.pipeline.ShaderCompileCache;
 import com.dynamo.bob.pipeline.ShaderCompilers;
 import com.dynamo.bob.pipeline.TextureGenerator;
+import com.dynamo.bob.pipeline.graph.ResourceGraphCache;
 import com.dynamo.bob.plugin.IPlugin;
 import com.dynamo.bob.logging.Logger;
 import com.dynamo.bob.util.BobProjectProperties;
@@ -131,6 +142,8 @@ public class Project {
     private HashMap<String, EnumSet<OutputFlags>> outputs = new HashMap<String, EnumSet<OutputFlags>>();
     private HashMap<String, Task<?>> tasks;
     private State state;
+    private ResourceGraphCache resourceGraphCache;
+    private LuaModuleIndex luaModuleIndex;
     private String rootDirectory = ".";
     private String buildDirectory = "build";
     private Map<String, String> options = new HashMap<String, String>();
@@ -190,6 +203,33 @@ public class Project {
         return buildDirectory;
     }
 
+    /**
+     * Get the signature of the task which produced an output in this or a
+     * previous build
+     * @param output The output resource
+     * @return The signature or null if the output has no signature
+     */
+    public byte[] getOutputSignature(IResource output) {
+        return state != null ? state.getSignature(output.getAbsPath()) : null;
+    }
+
+    /**
+     * Get the resource graph edges persisted from the previous build
+     * @return The resource graph cache or null when not building
+     */
+    public ResourceGraphCache getResourceGraphCache() {
+        return resourceGraphCache;
+    }
+
+    /**
+     * Get the index of the Lua modules required by each script, persisted
+     * from the previous build
+     * @return The Lua module index or null when not building
+     */
+    public LuaModuleIndex getLuaModuleIndex() {
+        return luaModuleIndex;
+    }
+
     public String getPluginsDirectory() {
         return FilenameUtils.concat(rootDirectory, PLUGINS_DIR);
     }
@@ -218,6 +258,34 @@ public class Project {
         return option("resource-cache-local", null);
     }
 
+    /**
+     * Get the size budget of the local resource cache
+     * @return size in bytes or 0 for no limit
+     */
+    public long getLocalResourceCacheMaxSize() throws CompileExceptionError {
+        String value = option("resource-cache-local-max-size", null);
+        if (value == null) {
+            return 0;
+        }
+        value = value.trim().toUpperCase();
+        long unit = 1;
+        if (value.endsWith("K")) {
+            unit = 1024L;
+        } else if (value.endsWith("M")) {
+            unit = 1024L * 1024L;
+        } else if (value.endsWith("G")) {
+            unit = 1024L * 1024L * 1024L;
+        }
+        if (unit != 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            return Long.parseLong(value) * unit;
+        } catch (NumberFormatException e) {
+            throw new CompileExceptionError(String.format("Invalid resource-cache-local-max-size '%s'", option("resource-cache-local-max-size", null)), e);
+        }
+    }
+
     public String getRemoteResourceCacheDirectory() {
         return option("resource-cache-remote", null);
     }
@@ -472,7 +540,7 @@ public class Project {
      * @return task
      * @throws CompileExceptionError
      */
-    public Task<?> createTask(IResource inputResource, Class<? extends Builder<?>> builderClass) throws CompileExceptionError {
+    public synchronized Task<?> createTask(IResource inputResource, Class<? extends Builder<?>> builderClass) throws CompileExceptionError {
         // It's possible to build the same resource using different builders
         String key = inputResource.getPath()+" "+builderClass;
         Task<?> task = tasks.get(key);
@@ -606,7 +674,9 @@ public class Project {
                     } else if (PublisherSettings.PublishMode.Defold.equals(settings.getMode())) {
                         this.publisher = new DefoldPublisher(settings);
                     } else if (PublisherSettings.PublishMode.Zip.equals(settings.getMode())) {
-                        this.publisher = new ZipPublisher(getRootDirectory(), settings);
+                        ZipPublisher zipPublisher = new ZipPublisher(getRootDirectory(), settings);
+                        zipPublisher.setMaxThreads(getMaxCpuThreads());
+                        this.publisher = zipPublisher;
                     } else {
                         throw new CompileExceptionError("The publisher specified is not supported", null);
                     }
@@ -722,10 +792,13 @@ public class Project {
      */
     public List<TaskResult> build(IProgress monitor, String... commands) throws IOException, CompileExceptionError, MultipleCompileException {
         try {
-            if (this.hasOption("build-report-html")) {
+            if (this.hasOption("build-report-html") || this.hasOption("build-report-trace")) {
                 List<File> reportFiles = new ArrayList<>();
-                reportFiles.add(new File(this.option("build-report-html", "report.html")));
-                TimeProfiler.init(reportFiles, true);
+                if (this.hasOption("build-report-html")) {
+                    reportFiles.add(new File(this.option("build-report-html", "report.html")));
+                }
+                String tracePath = this.option("build-report-trace", null);
+                TimeProfiler.init(reportFiles, tracePath != null ? new File(tracePath) : null, true);
             }
             loadProjectFile();
             String title = projectProperties.getStringValue("project", "title");
@@ -1351,11 +1424,6 @@ public class Project {
                 appmanifestOptions.put("baseVariant", variant);
                 appmanifestOptions.put("withSymbols", withSymbols.toString());
 
-                // temporary removed because TimeProfiler works only with a single thread
-                // see https://github.com/pyatyispyatil/flame-chart-js
-                // TimeProfiler.addData("withSymbols", withSymbols);
-                // TimeProfiler.addData("variant", variant);
-
                 if (hasOption("build-artifacts")) {
                     String s = option("build-artifacts", "");
                     System.out.printf("build-artifacts: %s\n", s);
@@ -1372,7 +1440,14 @@ public class Project {
 
                 long tstart = System.currentTimeMillis();
 
-                buildEngine(monitor, architectures, appmanifestOptions);
+                TimeProfiler.start("Build Remote Engine");
+                TimeProfiler.addData("withSymbols", withSymbols);
+                TimeProfiler.addData("variant", variant);
+                try {
+                    buildEngine(monitor, architectures, appmanifestOptions);
+                } finally {
+                    TimeProfiler.stop();
+                }
 
                 long tend = System.currentTimeMillis();
                 logger.info("Engine build took %f s", (tend-tstart)/1000.0);
@@ -1556,317 +1631,520 @@ public class Project {
     private List<TaskResult> doBuild(IProgress monitor, String... commands) throws Throwable, IOException, CompileExceptionError, MultipleCompileException {
         TimeProfiler.start("Prepare cache");
         resourceCache.init(getLocalResourceCacheDirectory(), getRemoteResourceCacheDirectory());
+        resourceCache.setMaxLocalCacheSize(getLocalResourceCacheMaxSize());
         resourceCache.setRemoteAuthentication(getRemoteResourceCacheUser(), getRemoteResourceCachePass());
         fileSystem.loadCache();
+        ProtoUtil.clearCache();
+        LuaScanner.clearCache();
         IResource stateResource = fileSystem.get(FilenameUtils.concat(buildDirectory, "_BobBuildState_"));
         state = State.load(stateResource);
+        IResource resourceGraphResource = fileSystem.get(FilenameUtils.concat(buildDirectory, "_BobResourceGraph_"));
+        resourceGraphCache = ResourceGraphCache.load(resourceGraphResource);
+        IResource luaModuleIndexResource = fileSystem.get(FilenameUtils.concat(buildDirectory, "_BobLuaModules_"));
+        luaModuleIndex = LuaModuleIndex.load(luaModuleIndexResource);
+        ShaderCompileCache.load(fileSystem.get(FilenameUtils.concat(buildDirectory, "_BobShaderCache_/index")));
         TimeProfiler.stop();
         List<TaskResult> result = new ArrayList<TaskResult>();
+        // set when all resources of the project have been looked up in the
+        // Lua module index and the resource graph cache
+        boolean removeUnused = false;
+        try {
+            BundleHelper.throwIfCanceled(monitor);
 
-        BundleHelper.throwIfCanceled(monitor);
+            monitor.beginTask("Working...", 100);
 
-        monitor.beginTask("Working...", 100);
+            {
+                IProgress mrep = monitor.subProgress(1);
+                mrep.beginTask("Reading classes...", 1);
+                scanJavaClasses();
+                mrep.done();
+            }
 
-        {
-            IProgress mrep = monitor.subProgress(1);
-            mrep.beginTask("Reading classes...", 1);
-            scanJavaClasses();
-            mrep.done();
-        }
+            List<IPlugin> plugins = new ArrayList<>();
+            for (Class<? extends IPlugin> klass : pluginClasses) {
+                IPlugin plugin = klass.getConstructor().newInstance();
+                plugin.init(this);
+                plugins.add(plugin);
+            }
 
-        List<IPlugin> plugins = new ArrayList<>();
-        for (Class<? extends IPlugin> klass : pluginClasses) {
-            IPlugin plugin = klass.getConstructor().newInstance();
-            plugin.init(this);
-            plugins.add(plugin);
-        }
+            loop:
+            for (String command : commands) {
+                BundleHelper.throwIfCanceled(monitor);
+                TimeProfiler.start(command);
+                switch (command) {
+                    case "build": {
+                        ExtenderUtil.checkProjectForDuplicates(this); // Throws if there are duplicate files in the project (i.e. library and local files conflict)
+                        loadIgnoredFilesAndFolders(); // load once before building to be able to use it in a few places
+                        final String[] platforms = getPlatformStrings();
+                        Future<Void> remoteBuildFuture = null;
+                        // Get or build engine binary
+                        boolean shouldBuildRemoteEngine = ExtenderUtil.hasNativeExtensions(this);
+                        if (shouldBuildRemoteEngine) {
+                            remoteBuildFuture = buildRemoteEngine(monitor, executor);
+                        }
+                        else {
+                            // Remove the remote built executables in the build folder, they're still in the cache
+                            cleanEngines(monitor, platforms);
+                            if (hasOption("with-symbols")) {
+                                IProgress progress = monitor.subProgress(1);
+                                downloadSymbols(progress);
+                                progress.done();
+                            }
+                        }
 
-        loop:
-        for (String command : commands) {
-            BundleHelper.throwIfCanceled(monitor);
-            TimeProfiler.start(command);
-            switch (command) {
-                case "build": {
-                    ExtenderUtil.checkProjectForDuplicates(this); // Throws if there are duplicate files in the project (i.e. library and local files conflict)
-                    loadIgnoredFilesAndFolders(); // load once before building to be able to use it in a few places
-                    final String[] platforms = getPlatformStrings();
-                    Future<Void> remoteBuildFuture = null;
-                    // Get or build engine binary
-                    boolean shouldBuildRemoteEngine = ExtenderUtil.hasNativeExtensions(this);
-                    if (shouldBuildRemoteEngine) {
-                        remoteBuildFuture = buildRemoteEngine(monitor, executor);
-                    }
-                    else {
-                        // Remove the remote built executables in the build folder, they're still in the cache
-                        cleanEngines(monitor, platforms);
-                        if (hasOption("with-symbols")) {
-                            IProgress progress = monitor.subProgress(1);
-                            downloadSymbols(progress);
-                            progress.done();
+                        if (shouldBuildEngine() && BundleHelper.isArchiveIncluded(this)) {
+                            result = createAndRunTasks(monitor);
+                            removeUnused = !anyFailing(result);
                         }
+
+                        if (remoteBuildFuture != null) {
+                            // get the result from the remote build and catch
+                            // if an exception was thrown in buildRemoteEngine() the
+                            // original exception is included in the ExecutionException
+                            try {
+                                remoteBuildFuture.get();
+                            }
+                            catch (ExecutionException|InterruptedException e) {
+                                Throwable cause = e.getCause();
+                                if ((cause instanceof MultipleCompileException) ||
+                                    (cause instanceof CompileExceptionError)) {
+                                    throw cause;
+                                }
+                                else {
+                                    throw new CompileExceptionError(cause);
+                                }
+                            }
+                        }
+
+                        if (anyFailing(result)) {
+                            break loop;
+                        }
+                        break;
                     }
+                    case "clean": {
+                        clean(monitor, state);
+                        break;
+                    }
+                    case "distclean": {
+                        distClean(monitor);
+                        break;
+                    }
+                    case "bundle": {
+                        bundle(monitor);
+                        break;
+                    }
+                    default: break;
+                }
+                TimeProfiler.stop();
+            }
 
-                    if (shouldBuildEngine() && BundleHelper.isArchiveIncluded(this)) {
-                        result = createAndRunTasks(monitor);
+            for (IPlugin plugin : plugins) {
+                plugin.exit(this);
+            }
+            plugins.clear();
+
+            monitor.done();
+            TimeProfiler.start("Save cache");
+            resourceCache.flush();
+            if (resourceCache.isCacheEnabled()) {
+                TimeProfiler.addData("resourceCacheLocalHits", resourceCache.getLocalHitCount());
+                TimeProfiler.addData("resourceCacheRemoteHits", resourceCache.getRemoteHitCount());
+                TimeProfiler.addData("resourceCacheMisses", resourceCache.getMissCount());
+                TimeProfiler.addData("resourceCacheEvictions", resourceCache.getEvictionCount());
+                TimeProfiler.addData("resourceCacheLocalSize", (float) resourceCache.getLocalCacheSize());
+            }
+            TimeProfiler.addData("shaderCacheHits", ShaderCompileCache.getHitCount());
+            TimeProfiler.addData("shaderCacheMisses", ShaderCompileCache.getMissCount());
+            state.save(stateResource);
+            if (removeUnused) {
+                resourceGraphCache.removeUnused();
+            }
+            resourceGraphCache.save(resourceGraphResource);
+            fileSystem.saveCache();
+        } finally {
+            // paired with the loads above, also when the build fails, to disable the
+            // shader cache and keep the scripts which have already been scanned
+            ShaderCompileCache.save();
+            if (removeUnused) {
+                luaModuleIndex.removeUnused();
+            }
+            luaModuleIndex.save(luaModuleIndexResource);
+            String luaModuleReportPath = option("lua-module-report", null);
+            if (luaModuleReportPath != null) {
+                try (FileOutputStream os = new FileOutputStream(luaModuleReportPath)) {
+                    luaModuleIndex.writeReport(os);
+                }
+            }
+            ProtoUtil.clearCache();
+            LuaScanner.clearCache();
+        }
+        TimeProfiler.stop();
+        return result;
+    }
+
+
+
+    /**
+     * Result of running a single task. The task result is null if the task
+     * was already up to date and didn't have to be built.
+     */
+    private static class TaskRun {
+        final Task<?> task;
+        final TaskResult result;
+
+        TaskRun(Task<?> task, TaskResult result) {
+            this.task = task;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Build a task unless all of its outputs exist and have a signature
+     * matching the current task signature.
+     * NOTE This is called concurrently from the worker threads in runTasks()
+     * and must only touch thread safe project state.
+     * @param task The task to run
+     * @return The task result or null if the task was already up to date
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private TaskResult runTask(Task<?> task, Map<String, byte[]> inputDigests) throws IOException {
+        final List<IResource> outputResources = task.getOutputs();
+
+        // do all output files exist?
+        boolean allOutputExists = true;
+        for (IResource r : outputResources) {
+            if (!r.exists()) {
+                allOutputExists = false;
+                break;
+            }
+        }
+
+        // compare all task signature. current task signature between previous
+        // signature from state on disk
+        TimeProfiler.start("compare signatures");
+        TimeProfiler.addData("color", "#FFC0CB");
+        TimeProfiler.addData("main input", String.valueOf(task.input(0)));
+        byte[] taskSignature = task.calculateSignature(inputDigests);
+        boolean allSigsEquals = true;
+        for (IResource r : outputResources) {
+            byte[] s = state.getSignature(r.getAbsPath());
+            if (!Arrays.equals(s, taskSignature)) {
+                allSigsEquals = false;
+                break;
+            }
+        }
+        TimeProfiler.stop();
+
+        if (allOutputExists && allSigsEquals) {
+            // Task is successfully completed now or in a previous build
+            return null;
+        }
+
+        TimeProfiler.start(task.getName());
+        TimeProfiler.addData("output", task.getOutputsString());
+        TimeProfiler.addData("type", "buildTask");
+
+        TaskResult taskResult = new TaskResult(task);
+        Builder builder = task.getBuilder();
+        boolean ok = true;
+        int lineNumber = 0;
+        String message = null;
+        Throwable exception = null;
+        Map<IResource, String> outputResourceToCacheKey = new HashMap<IResource, String>();
+        try {
+            if (task.isCacheable() && resourceCache.isCacheEnabled()) {
+                // check if all output resources exist in the resource cache
+                boolean allResourcesCached = true;
+                outputResourceToCacheKey = ResourceCacheKey.calculate(task, options, outputResources);
+                for (IResource r : outputResources) {
+                    if (!r.isCacheable()) {
+                        allResourcesCached = false;
                     }
+                }
+                if (allResourcesCached && !resourceCache.containsAll(outputResourceToCacheKey.values())) {
+                    allResourcesCached = false;
+                }
 
-                    if (remoteBuildFuture != null) {
-                        // get the result from the remote build and catch
-                        // if an exception was thrown in buildRemoteEngine() the
-                        // original exception is included in the ExecutionException
-                        try {
-                            remoteBuildFuture.get();
-                        }
-                        catch (ExecutionException|InterruptedException e) {
-                            Throwable cause = e.getCause();
-                            if ((cause instanceof MultipleCompileException) ||
-                                (cause instanceof CompileExceptionError)) {
-                                throw cause;
-                            }
-                            else {
-                                throw new CompileExceptionError(cause);
-                            }
+                // get the cached resources, a resource which can no longer
+                // be read from the cache is built instead
+                Map<IResource, byte[]> cachedContent = new HashMap<IResource, byte[]>();
+                if (allResourcesCached) {
+                    for (IResource r : outputResources) {
+                        byte[] content = resourceCache.get(outputResourceToCacheKey.get(r));
+                        if (content == null) {
+                            allResourcesCached = false;
+                            break;
                         }
+                        cachedContent.put(r, content);
                     }
+                }
 
-                    if (anyFailing(result)) {
-                        break loop;
+                // all resources exist in the cache
+                // copy them to the output
+                if (allResourcesCached) {
+                    TimeProfiler.addData("takenFromCache", true);
+                    for (IResource r : outputResources) {
+                        r.setContent(cachedContent.get(r));
+                        state.putSignature(r.getAbsPath(), taskSignature);
                     }
-                    break;
                 }
-                case "clean": {
-                    clean(monitor, state);
-                    break;
+                // build task and cache output
+                else {
+                    builder.build(task);
+                    for (IResource r : outputResources) {
+                        state.putSignature(r.getAbsPath(), taskSignature);
+                        if (r.isCacheable()) {
+                            resourceCache.put(outputResourceToCacheKey.get(r), r.getContent());
+                        }
+                    }
                 }
-                case "distclean": {
-                    distClean(monitor);
-                    break;
+            }
+            else {
+                builder.build(task);
+                for (IResource r : outputResources) {
+                    state.putSignature(r.getAbsPath(), taskSignature);
                 }
-                case "bundle": {
-                    bundle(monitor);
+            }
+
+            for (IResource r : outputResources) {
+                if (!r.exists()) {
+                    message = String.format("Output '%s' not found", r.getAbsPath());
+                    ok = false;
                     break;
                 }
-                default: break;
             }
             TimeProfiler.stop();
-        }
 
-        for (IPlugin plugin : plugins) {
-            plugin.exit(this);
+        } catch (CompileExceptionError e) {
+            TimeProfiler.stop();
+            ok = false;
+            lineNumber = e.getLineNumber();
+            message = e.getMessage();
+        } catch (Throwable e) {
+            TimeProfiler.stop();
+            ok = false;
+            message = e.getMessage();
+            exception = e;
+
+            // to fix the issue it's easier to see the actual callstack
+            exception.printStackTrace(new java.io.PrintStream(System.out));
+        }
+        if (!ok) {
+            taskResult.setOk(ok);
+            taskResult.setLineNumber(lineNumber);
+            taskResult.setMessage(message);
+            taskResult.setException(exception);
+            // Clear sigs for all outputs when a task fails
+            for (IResource r : outputResources) {
+                state.putSignature(r.getAbsPath(), new byte[0]);
+            }
         }
-        plugins.clear();
+        return taskResult;
+    }
 
-        monitor.done();
-        TimeProfiler.start("Save cache");
-        state.save(stateResource);
-        fileSystem.saveCache();
-        TimeProfiler.stop();
-        return result;
+    private static TaskRun takeTaskRun(CompletionService<TaskRun> completionService) throws IOException {
+        try {
+            return completionService.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
     }
 
+    /**
+     * Calculate the sha1 of all source inputs of the tasks in parallel, before
+     * the tasks are run. Inputs generated by tasks are skipped since they
+     * don't exist or are outdated until the generating task has run.
+     * Failing inputs are skipped as well and reported when the task calculates its signature.
+     * @param tasks tasks to calculate the input digests for
+     * @param producers the task generating each output
+     * @param inputDigests map to put the digests in, by absolute path
+     * @param maxThreads number of threads to use
+     */
+    private void calculateInputDigests(List<Task<?>> tasks, Map<IResource, Task<?>> producers, Map<String, byte[]> inputDigests, int maxThreads) throws IOException {
+        TimeProfiler.start("Calculate input digests");
+        Map<String, IResource> sources = new HashMap<>();
+        for (Task<?> task : tasks) {
+            for (IResource input : task.getInputs()) {
+                if (!input.isOutput() && !producers.containsKey(input)) {
+                    String path = input.getAbsPath();
+                    if (!inputDigests.containsKey(path)) {
+                        sources.putIfAbsent(path, input);
+                    }
+                }
+            }
+        }
+        TimeProfiler.addData("inputs", sources.size());
 
+        Consumer<Map.Entry<String, IResource>> calculate = (entry) -> {
+            try {
+                inputDigests.put(entry.getKey(), entry.getValue().sha1());
+            } catch (Exception e) {
+                // the task reports the error when it calculates its signature
+            }
+        };
+        if (maxThreads > 1) {
+            ForkJoinPool pool = new ForkJoinPool(maxThreads);
+            try {
+                pool.submit(() -> sources.entrySet().parallelStream().forEach(calculate)).get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            sources.entrySet().forEach(calculate);
+        }
+        TimeProfiler.stop();
+    }
 
-    @SuppressWarnings({ "rawtypes", "unchecked" })
+    /**
+     * Run all tasks. The tasks are scheduled from their dependency graph: a
+     * task is ready to run once all the tasks generating its inputs have
+     * completed, and ready tasks are run on a pool of max-cpu-threads workers.
+     * When a task fails all tasks depending on it, directly or indirectly, are
+     * marked as failed and are never run. Independent tasks keep running unless
+     * the failure was an unexpected exception, in which case the build is
+     * aborted once the running tasks have finished.
+     */
     private List<TaskResult> runTasks(IProgress monitor) throws IOException {
-        // set of all completed tasks. The set includes both task run
-        // in this session and task already completed (output already exists with correct signatures, see below)
-        // the set also contains failed tasks
-        Set<Task> completedTasks = new HashSet<>();
-
-        // the set of all output files generated
-        // in this or previous session
-        Set<IResource> completedOutputs = new HashSet<>();
-
-        List<TaskResult> result = new ArrayList<>();
-
         List<Task<?>> buildTasks = new ArrayList<>(this.getTasks());
-        // set of *all* possible output files
-        Set<IResource> allOutputs = new HashSet<>();
-        for (Task<?> task : this.getTasks()) {
-            allOutputs.addAll(task.getOutputs());
-        }
         tasks.clear();
 
-        TextureGenerator.maxThreads = getMaxCpuThreads();
+        int maxThreads = getMaxCpuThreads();
+        TextureGenerator.maxThreads = maxThreads;
 
         // Keep track of the paths for all outputs
-        outputs = new HashMap<>(allOutputs.size());
-        for (IResource res : allOutputs) {
-            outputs.put(res.getAbsPath(), EnumSet.noneOf(OutputFlags.class));
-        }
-
-        // This flag is set to true as soon as one task has failed. This will
-        // break out of the outer loop after the remaining tasks has been tried once.
-        // NOTE The underlying problem is that if a task fails and has dependent
-        // tasks, the dependent tasks will be tried forever. It should be solved
-        // by marking all dependent tasks as failed instead of this flag.
-        boolean taskFailed = false;
-run:
-        while (completedTasks.size() < buildTasks.size()) {
-            for (Task<?> task : buildTasks) {
-                BundleHelper.throwIfCanceled(monitor);
-
-                // deps are the task input files generated by another task not yet completed,
-                // i.e. "solve" the dependency graph
-                Set<IResource> deps = new HashSet<>(task.getInputs());
-                deps.retainAll(allOutputs);
-                deps.removeAll(completedOutputs);
-                if (deps.size() > 0) {
-                    // postpone task. dependent input not yet generated
-                    continue;
-                }
-
-                final List<IResource> outputResources = task.getOutputs();
+        outputs = new HashMap<>();
+        for (Task<?> task : buildTasks) {
+            for (IResource res : task.getOutputs()) {
+                outputs.put(res.getAbsPath(), EnumSet.noneOf(OutputFlags.class));
+            }
+        }
 
-                // do all output files exist?
-                boolean allOutputExists = true;
-                for (IResource r : outputResources) {
-                    if (!r.exists()) {
-                        allOutputExists = false;
-                        break;
+        // the task generating each output file
+        Map<IResource, Task<?>> producers = new HashMap<>();
+        // number of not yet completed tasks generating inputs to a task
+        Map<Task<?>, Integer> pendingDeps = new HashMap<>();
+        // tasks with inputs generated by a task
+        Map<Task<?>, List<Task<?>>> dependents = new HashMap<>();
+        Set<Task<?>> completedTasks = new HashSet<>();
+        Set<Task<?>> failedTasks = new HashSet<>();
+        List<Task<?>> scheduledTasks = new ArrayList<>();
+        // results are added as the tasks complete, i.e. in dependency order
+        List<TaskResult> result = new ArrayList<>();
+        ArrayDeque<Task<?>> readyTasks = new ArrayDeque<>();
+        // sha1 of the source inputs of the tasks by absolute path
+        Map<String, byte[]> inputDigests = new ConcurrentHashMap<>();
+
+        // with a single thread the tasks are run directly on the calling thread
+        ExecutorService taskExecutor = maxThreads > 1 ? Executors.newFixedThreadPool(maxThreads) : null;
+        CompletionService<TaskRun> completionService = new ExecutorCompletionService<>(taskExecutor != null ? taskExecutor : Runnable::run);
+        boolean abort = false;
+        try {
+            while (!buildTasks.isEmpty()) {
+                for (Task<?> task : buildTasks) {
+                    for (IResource output : task.getOutputs()) {
+                        producers.put(output, task);
                     }
                 }
-
-                // compare all task signature. current task signature between previous
-                // signature from state on disk
-                TimeProfiler.start("compare signatures");
-                TimeProfiler.addData("color", "#FFC0CB");
-                TimeProfiler.addData("main input", String.valueOf(task.input(0)));
-                byte[] taskSignature = task.calculateSignature();
-                boolean allSigsEquals = true;
-                for (IResource r : outputResources) {
-                    byte[] s = state.getSignature(r.getAbsPath());
-                    if (!Arrays.equals(s, taskSignature)) {
-                        allSigsEquals = false;
-                        break;
+                calculateInputDigests(buildTasks, producers, inputDigests, maxThreads);
+                for (Task<?> task : buildTasks) {
+                    Set<Task<?>> deps = new HashSet<>();
+                    for (IResource input : task.getInputs()) {
+                        Task<?> producer = producers.get(input);
+                        if (producer != null && producer != task && !completedTasks.contains(producer)) {
+                            deps.add(producer);
+                        }
+                    }
+                    for (Task<?> dep : deps) {
+                        dependents.computeIfAbsent(dep, k -> new ArrayList<>()).add(task);
+                    }
+                    pendingDeps.put(task, deps.size());
+                    scheduledTasks.add(task);
+                    if (deps.isEmpty()) {
+                        readyTasks.add(task);
                     }
                 }
-                TimeProfiler.stop();
-
-                boolean shouldRun = (!allOutputExists || !allSigsEquals) && !completedTasks.contains(task);
 
-                if (!shouldRun) {
-                    if (allOutputExists && allSigsEquals)
-                    {
-                        // Task is successfully completed now or in a previous build.
-                        // Only if the conditions in the if-statements are true add the task to the completed set and the
-                        // output files to the completed output set
-                        completedTasks.add(task);
-                        completedOutputs.addAll(outputResources);
+                int running = 0;
+                while (running > 0 || (!abort && !readyTasks.isEmpty())) {
+                    BundleHelper.throwIfCanceled(monitor);
+                    while (!abort && running < maxThreads && !readyTasks.isEmpty()) {
+                        final Task<?> task = readyTasks.poll();
+                        completionService.submit(() -> new TaskRun(task, runTask(task, inputDigests)));
+                        ++running;
                     }
 
+                    TaskRun run = takeTaskRun(completionService);
+                    --running;
                     monitor.worked(1);
-                    continue;
-                }
-
-                TimeProfiler.start(task.getName());
-                TimeProfiler.addData("output", task.getOutputsString());
-                TimeProfiler.addData("type", "buildTask");
-
-                completedTasks.add(task);
-
-                TaskResult taskResult = new TaskResult(task);
-                result.add(taskResult);
-                Builder builder = task.getBuilder();
-                boolean ok = true;
-                int lineNumber = 0;
-                String message = null;
-                Throwable exception = null;
-                boolean abort = false;
-                Map<IResource, String> outputResourceToCacheKey = new HashMap<IResource, String>();
-                try {
-                    if (task.isCacheable() && resourceCache.isCacheEnabled()) {
-                        // check if all output resources exist in the resource cache
-                        boolean allResourcesCached = true;
-                        for (IResource r : outputResources) {
-                            final String key = ResourceCacheKey.calculate(task, options, r);
-                            outputResourceToCacheKey.put(r, key);
-                            if (!r.isCacheable()) {
-                                allResourcesCached = false;
-                            }
-                            else if (!resourceCache.contains(key)) {
-                                allResourcesCached = false;
-                            }
-                        }
 
-                        // all resources exist in the cache
-                        // copy them to the output
-                        if (allResourcesCached) {
-                            TimeProfiler.addData("takenFromCache", true);
-                            for (IResource r : outputResources) {
-                                r.setContent(resourceCache.get(outputResourceToCacheKey.get(r)));
-                            }
-                        }
-                        // build task and cache output
-                        else {
-                            builder.build(task);
-                            for (IResource r : outputResources) {
-                                state.putSignature(r.getAbsPath(), taskSignature);
-                                if (r.isCacheable()) {
-                                    resourceCache.put(outputResourceToCacheKey.get(r), r.getContent());
-                                }
+                    TaskResult taskResult = run.result;
+                    if (taskResult != null) {
+                        result.add(taskResult);
+                    }
+                    if (taskResult == null || taskResult.isOk()) {
+                        completedTasks.add(run.task);
+                        for (Task<?> dependent : dependents.getOrDefault(run.task, Collections.emptyList())) {
+                            int pending = pendingDeps.merge(dependent, -1, Integer::sum);
+                            if (pending == 0 && !failedTasks.contains(dependent)) {
+                                readyTasks.add(dependent);
                             }
                         }
                     }
                     else {
-                        builder.build(task);
-                        for (IResource r : outputResources) {
-                            state.putSignature(r.getAbsPath(), taskSignature);
+                        failedTasks.add(run.task);
+                        // mark all tasks depending on the failed task as failed
+                        ArrayDeque<Task<?>> downstream = new ArrayDeque<>(dependents.getOrDefault(run.task, Collections.emptyList()));
+                        while (!downstream.isEmpty()) {
+                            Task<?> dependent = downstream.poll();
+                            if (failedTasks.add(dependent)) {
+                                downstream.addAll(dependents.getOrDefault(dependent, Collections.emptyList()));
+                            }
                         }
-                    }
-                    monitor.worked(1);
-
-                    for (IResource r : outputResources) {
-                        if (!r.exists()) {
-                            message = String.format("Output '%s' not found", r.getAbsPath());
-                            ok = false;
-                            break;
+                        if (taskResult.getException() != null) {
+                            abort = true;
                         }
                     }
-                    completedOutputs.addAll(outputResources);
-                    TimeProfiler.stop();
-
-                } catch (CompileExceptionError e) {
-                    TimeProfiler.stop();
-                    ok = false;
-                    lineNumber = e.getLineNumber();
-                    message = e.getMessage();
-                } catch (Throwable e) {
-                    TimeProfiler.stop();
-                    ok = false;
-                    message = e.getMessage();
-                    exception = e;
-                    abort = true;
+                }
 
-                    // to fix the issue it's easier to see the actual callstack
-                    exception.printStackTrace(new java.io.PrintStream(System.out));
+                if (abort || !failedTasks.isEmpty()) {
+                    break;
                 }
-                if (!ok) {
-                    taskFailed = true;
-                    taskResult.setOk(ok);
-                    taskResult.setLineNumber(lineNumber);
-                    taskResult.setMessage(message);
-                    taskResult.setException(exception);
-                    // Clear sigs for all outputs when a task fails
-                    for (IResource r : outputResources) {
-                        state.putSignature(r.getAbsPath(), new byte[0]);
-                    }
-                    if (abort) {
-                        break run;
+
+                // tasks still waiting for inputs at this point are part of a dependency cycle
+                for (Task<?> task : scheduledTasks) {
+                    if (!completedTasks.contains(task) && !failedTasks.contains(task)) {
+                        TaskResult taskResult = new TaskResult(task);
+                        taskResult.setOk(false);
+                        taskResult.setMessage(String.format("Unable to build '%s' due to a circular dependency", task.input(0)));
+                        result.add(taskResult);
+                        failedTasks.add(task);
                     }
                 }
+
+                // tasks are created before building, but pick up any tasks
+                // created by builders while building
+                buildTasks = new ArrayList<>(this.getTasks());
+                tasks.clear();
             }
-            if (taskFailed) {
-                break;
-            }
-            // set of *all* possible output files
-            // TODO: do we really need this?
-            // It seems like we never create new tasks during building process
-            for (Task<?> task : this.getTasks()) {
-                allOutputs.addAll(task.getOutputs());
+        } finally {
+            if (taskExecutor != null) {
+                taskExecutor.shutdown();
             }
-            buildTasks.addAll(this.getTasks());
-            tasks.clear();
         }
         return result;
     }
@@ -1892,7 +2170,7 @@ run:
      * @param resourcePath output resource absolute path
      * @param flag OutputFlag to add
      */
-    public boolean addOutputFlags(String resourcePath, OutputFlags flag) {
+    public synchronized boolean addOutputFlags(String resourcePath, OutputFlags flag) {
         EnumSet<OutputFlags> currentFlags = outputs.get(resourcePath);
         if(currentFlags == null) {
             return false;
@@ -14,28 +14,30 @@
 
 package com.dynamo.bob;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
 import java.util.List;
-import java.util.ArrayList;
 
+import com.dynamo.bob.fs.DefaultResource;
 import com.dynamo.bob.fs.IResource;
+import com.dynamo.bob.util.DigestTable;
 
 /**
  * Bob state abstraction for persistent sha1-checksums
+ * The signatures may be accessed concurrently from the task worker threads.
+ * The state is stored in a {@link DigestTable} and only the changed signatures
+ * are written when saving to the file it was loaded from.
  * @author Christian Murray
  *
  */
-public class State implements Serializable {
+public class State {
 
-    private static final long serialVersionUID = -275410118302470802L + 1;
-    private Map<String, byte[]> signatures = new HashMap<String, byte[]>();
+    // "BOBS"
+    private static final int MAGIC = 0x424f4253;
+    private static final int VERSION = 1;
+
+    private DigestTable signatures = new DigestTable(MAGIC, VERSION, 0);
 
     /**
      * Get signature for path
@@ -43,13 +45,14 @@ public class State implements Serializable {
      * @return signature or null of no mapping exists
      */
     public byte[] getSignature(String path) {
-        return signatures.get(path);
+        DigestTable.Entry entry = signatures.get(path);
+        return entry != null ? entry.digest : null;
     }
 
     /**
      * Add signature
      * @param path path to set sha1 for
-     * @param signature signature to set
+     * @param signature signature to set, at most 20 bytes
      */
     public void putSignature(String path, byte[] signature) {
         signatures.put(path, signature);
@@ -68,30 +71,33 @@ public class State implements Serializable {
      * @return list of all registered paths
      */
     public List<String> getPaths() {
-        return new ArrayList<>(signatures.keySet());
+        return signatures.getPaths();
     }
 
     /**
-     * Load state from resource
+     * Load state from resource. An empty state is returned if the resource
+     * doesn't exist or was saved with another version of the state format.
      * @param resource state resource
      * @return {@link State}
      * @throws IOException
      */
     public static State load(IResource resource) throws IOException {
-        byte[] content = resource.getContent();
-        if (content == null) {
-            return new State();
-        } else {
-            try {
-                ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(content));
-                State state = (State) is.readObject();
-                return state;
-            } catch (Throwable e) {
-                System.err.println("Unable to load state");
-                e.printStackTrace();
-                return new State();
+        State state = new State();
+        try {
+            if (resource instanceof DefaultResource) {
+                state.signatures.load(new File(resource.getAbsPath()));
+            } else {
+                byte[] content = resource.getContent();
+                if (content != null) {
+                    state.signatures.load(ByteBuffer.wrap(content));
+                }
             }
+        } catch (Throwable e) {
+            System.err.println("Unable to load state");
+            e.printStackTrace();
+            return new State();
         }
+        return state;
     }
 
     /**
@@ -100,11 +106,11 @@ public class State implements Serializable {
      * @throws IOException
      */
     public void save(IResource resource) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(128 * 1024);
-        ObjectOutputStream os = new ObjectOutputStream(bos);
-        os.writeObject(this);
-        os.close();
-        resource.setContent(bos.toByteArray());
+        if (resource instanceof DefaultResource) {
+            signatures.save(new File(resource.getAbsPath()));
+        } else {
+            resource.setContent(signatures.toByteArray());
+        }
     }
 
 }
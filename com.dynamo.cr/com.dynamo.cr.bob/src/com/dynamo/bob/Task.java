@@ -20,6 +20,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.HashSet;
 import java.util.Comparator;
 
@@ -43,6 +44,8 @@ public class Task<T> {
     public T data;
     private Builder<T> builder;
     private byte[] signature;
+    // state of the digest the signature was calculated from
+    private MessageDigest signatureDigest;
     private boolean cacheable = true;
 
     /**
@@ -158,8 +161,9 @@ public class Task<T> {
      * each time given the same set of resources.
      * @param, digest The digest to update with the resources
      * @param resources A list of resources to add
+     * @param digests Precalculated sha1 of resources by absolute path
      */
-    private void updateDigestWithResources(MessageDigest digest, List<IResource> resources) throws IOException {
+    private void updateDigestWithResources(MessageDigest digest, List<IResource> resources, Map<String, byte[]> digests) throws IOException {
         List<IResource> sortedResources = new ArrayList<IResource>(resources);
         Collections.sort(sortedResources, new Comparator<IResource>() {
             @Override
@@ -168,7 +172,8 @@ public class Task<T> {
             }
         });
         for (IResource r : sortedResources) {
-            digest.update(r.sha1());
+            byte[] sha1 = digests.get(r.getAbsPath());
+            digest.update(sha1 != null ? sha1 : r.sha1());
         }
     }
 
@@ -190,6 +195,15 @@ public class Task<T> {
     }
 
     public MessageDigest calculateSignatureDigest() throws IOException {
+        return calculateSignatureDigest(Collections.emptyMap());
+    }
+
+    /**
+     * Calculate the signature digest of the task
+     * @param inputDigests Precalculated sha1 of inputs by absolute path. Inputs not in the map are hashed.
+     * @return digest
+     */
+    public MessageDigest calculateSignatureDigest(Map<String, byte[]> inputDigests) throws IOException {
         // TODO: Checksum of builder-class byte-code. Seems to be rather difficult though..
         MessageDigest digest;
         try {
@@ -198,7 +212,7 @@ public class Task<T> {
             throw new RuntimeException(e);
         }
 
-        updateDigestWithResources(digest, inputs);
+        updateDigestWithResources(digest, inputs, inputDigests);
         updateDigestWithExtraCacheKeys(digest, extraCacheKeys);
 
         builder.signature(digest);
@@ -206,11 +220,41 @@ public class Task<T> {
     }
 
     public byte[] calculateSignature() throws IOException {
-        MessageDigest digest = calculateSignatureDigest();
+        return calculateSignature(Collections.emptyMap());
+    }
+
+    /**
+     * Calculate and store the signature of the task
+     * @param inputDigests Precalculated sha1 of inputs by absolute path. Inputs not in the map are hashed.
+     * @return signature
+     */
+    public byte[] calculateSignature(Map<String, byte[]> inputDigests) throws IOException {
+        MessageDigest digest = calculateSignatureDigest(inputDigests);
+        signatureDigest = cloneDigest(digest);
         signature = digest.digest();
         return signature;
     }
 
+    /**
+     * Get the signature digest from the last call to calculateSignature(),
+     * or calculate it if the signature hasn't been calculated.
+     * @return a copy of the digest that can be updated further
+     */
+    public MessageDigest getSignatureDigest() throws IOException {
+        if (signatureDigest == null) {
+            return calculateSignatureDigest();
+        }
+        return cloneDigest(signatureDigest);
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public void setProductOf(Task<?> task) {
         this.productOf = task;
     }
@@ -20,32 +20,50 @@ package com.dynamo.bob.archive;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 
 import com.dynamo.bob.Project;
 import com.dynamo.bob.fs.DefaultFileSystem;
 import com.dynamo.bob.CompileExceptionError;
 import com.dynamo.bob.pipeline.graph.ResourceNode;
 import com.dynamo.bob.pipeline.graph.ResourceGraph;
+import com.dynamo.bob.logging.Logger;
+import com.dynamo.bob.util.DigestTable;
+import com.dynamo.bob.util.MurmurHash;
 import com.dynamo.liveupdate.proto.Manifest.HashAlgorithm;
+import com.dynamo.liveupdate.proto.Manifest.HashDigest;
 import com.dynamo.liveupdate.proto.Manifest.SignAlgorithm;
+import com.dynamo.liveupdate.proto.Manifest.ResourceEntry;
 import com.dynamo.liveupdate.proto.Manifest.ResourceEntryFlag;
+import com.google.protobuf.ByteString;
 
 import com.dynamo.bob.archive.publisher.PublisherSettings;
 import com.dynamo.bob.archive.publisher.ZipPublisher;
@@ -61,6 +79,14 @@ public class ArchiveBuilder {
     public static final int HASH_LENGTH = 20;
     public static final int MD5_HASH_DIGEST_BYTE_LENGTH = 16; // 128 bits
 
+    private static Logger logger = Logger.getLogger(ArchiveBuilder.class.getName());
+
+    // "BOBA"
+    private static final int SOURCE_DIGESTS_MAGIC = 0x424f4241;
+    private static final int SOURCE_DIGESTS_VERSION = 1;
+    // key of the source digest entry identifying the archive the digests belong to
+    private static final String SOURCE_DIGESTS_ARCHIVE_KEY = "<archive>";
+
     private List<ArchiveEntry> entries = new ArrayList<ArchiveEntry>();
     private List<ArchiveEntry> excludedEntries = new ArrayList<ArchiveEntry>();
     private Set<String> lookup = new HashSet<String>(); // To see if a resource has already been added
@@ -71,12 +97,25 @@ public class ArchiveBuilder {
     private byte[] archiveIndexMD5 = new byte[MD5_HASH_DIGEST_BYTE_LENGTH];
     private int resourcePadding = 4;
     private boolean forceCompression = false; // for building unit tests to create test content
+    private int maxThreads = Runtime.getRuntime().availableProcessors();
+    private PreviousArchive previousArchive = null;
+    private DigestTable sourceDigests = null;
+    private File sourceDigestsFile = null;
+    private int reusedEntryCount = 0;
+    private int duplicateEntryCount = 0;
+    private long duplicateSize = 0;
+    private Map<String, List<String>> loadGroups = null;
+    private boolean loadOrderLayout = false;
+    private Map<String, CompressionPolicy> compressionPolicies = new TreeMap<>();
+    private LZ4Compressor[] lz4Compressors = new LZ4Compressor[CompressionPolicy.MAX_LEVEL + 1];
 
     public ArchiveBuilder(String root, ManifestBuilder manifestBuilder, int resourcePadding) {
         this.root = new File(root).getAbsolutePath();
         this.manifestBuilder = manifestBuilder;
         this.lz4Compressor = LZ4Factory.fastestInstance().highCompressor();
         this.resourcePadding = resourcePadding;
+        // already compressed
+        this.compressionPolicies.put("oggc", CompressionPolicy.STORE);
     }
 
     private void add(String fileName, boolean compress, boolean encrypt, boolean isLiveUpdate) throws IOException {
@@ -114,6 +153,76 @@ public class ArchiveBuilder {
         return Arrays.copyOfRange(compressedContent, 0, compressedSize);
     }
 
+    // NOTE Called concurrently from the worker threads in write()
+    private LZ4Compressor getCompressor(int level) {
+        LZ4Compressor compressor = lz4Compressors[level];
+        if (compressor == null) {
+            // the compressors are thread safe and may be created more than once
+            compressor = level == 0 ? LZ4Factory.fastestInstance().fastCompressor() : LZ4Factory.fastestInstance().highCompressor(level);
+            lz4Compressors[level] = compressor;
+        }
+        return compressor;
+    }
+
+    public byte[] compressResourceData(byte[] buffer, int level) {
+        LZ4Compressor compressor = getCompressor(level);
+        int maximumCompressedSize = compressor.maxCompressedLength(buffer.length);
+        byte[] compressedContent = new byte[maximumCompressedSize];
+        int compressedSize = compressor.compress(buffer, compressedContent);
+        return Arrays.copyOfRange(compressedContent, 0, compressedSize);
+    }
+
+    /**
+     * Compress a resource with the level of a policy, or with the trial level
+     * of the policy which compresses a sample of the resource best. Only the
+     * sample is compressed with each level, so the cost of the trials is
+     * bounded by the sample size of the policy.
+     * @param buffer Resource data
+     * @param policy Compression policy
+     * @return The compressed data
+     */
+    public byte[] compressResourceData(byte[] buffer, CompressionPolicy policy) {
+        int[] trialLevels = policy.getTrialLevels();
+        if (trialLevels.length == 0) {
+            return compressResourceData(buffer, policy.getLevel());
+        }
+        // a resource no larger than the sample is compressed whole and the best trial is the result
+        boolean sampled = buffer.length > policy.getTrialSample();
+        byte[] sample = sampled ? Arrays.copyOf(buffer, policy.getTrialSample()) : buffer;
+        int bestLevel = policy.getLevel();
+        byte[] best = compressResourceData(sample, bestLevel);
+        for (int level : trialLevels) {
+            if (level == policy.getLevel()) {
+                continue;
+            }
+            byte[] compressed = compressResourceData(sample, level);
+            if (compressed.length < best.length) {
+                best = compressed;
+                bestLevel = level;
+            }
+        }
+        return sampled ? compressResourceData(buffer, bestLevel) : best;
+    }
+
+    /**
+     * Set how the resources with an output extension are compressed. The
+     * policy only applies to resources which are added with compression.
+     * The policies must be set before the previous archive is set.
+     * @param extension Output extension, without the leading dot
+     * @param policy The policy
+     */
+    public void setCompressionPolicy(String extension, CompressionPolicy policy) {
+        compressionPolicies.put(extension, policy);
+    }
+
+    public void setCompressionPolicies(Map<String, CompressionPolicy> policies) {
+        compressionPolicies.putAll(policies);
+    }
+
+    public CompressionPolicy getCompressionPolicy(String path) {
+        return compressionPolicies.getOrDefault(FilenameUtils.getExtension(path), CompressionPolicy.DEFAULT);
+    }
+
     public void setForceCompression(boolean forceCompression) {
         this.forceCompression = forceCompression;
     }
@@ -122,12 +231,139 @@ public class ArchiveBuilder {
         return forceCompression;
     }
 
+    /**
+     * Set the number of threads used to compress, encrypt and hash resources
+     * @param maxThreads Number of threads, at least one
+     */
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = Math.max(1, maxThreads);
+    }
+
+    /**
+     * Set the groups of resources which are loaded together, used for the
+     * load order layout and the locality report
+     * @param loadGroups Resource paths of each group in load order, keyed on the name of the group
+     */
+    public void setLoadGroups(Map<String, List<String>> loadGroups) {
+        this.loadGroups = loadGroups;
+    }
+
+    /**
+     * Write the resource data in the order the resources are loaded, so that
+     * resources loaded together are placed next to each other in the archive
+     * data. Resources which aren't part of any load group are written last.
+     * The order of the archive index is not affected.
+     * @param loadOrderLayout true to write the data in load order
+     */
+    public void setLoadOrderLayout(boolean loadOrderLayout) {
+        this.loadOrderLayout = loadOrderLayout;
+    }
+
     public boolean shouldUseCompressedResourceData(byte[] original, byte[] compressed) {
         if (this.getForceCompression())
             return true;
 
+        return shouldUseCompressedResourceData(original, compressed, CompressionPolicy.DEFAULT_MAX_RATIO);
+    }
+
+    public boolean shouldUseCompressedResourceData(byte[] original, byte[] compressed, double maxRatio) {
+        if (this.getForceCompression())
+            return true;
+
         double ratio = (double) compressed.length / (double) original.length;
-        return ratio <= 0.95;
+        return ratio <= maxRatio;
+    }
+
+    /**
+     * Reuse the stored data of unchanged resources from the archive written
+     * by a previous build. The data of a resource is copied from the previous
+     * archive when the digest of its source and the requested compression and
+     * encryption are the same as when the previous archive was written. The
+     * source digests are kept in a separate file which is updated when the
+     * archive is written.
+     * @param archiveIndex previous .arci file
+     * @param archiveData previous .arcd file
+     * @param manifest previous .dmanifest file
+     * @param sourceDigests file with the source digests of the previous archive
+     */
+    public void setPreviousArchive(File archiveIndex, File archiveData, File manifest, File sourceDigests) throws IOException, CompileExceptionError {
+        this.sourceDigestsFile = sourceDigests;
+        this.sourceDigests = new DigestTable(SOURCE_DIGESTS_MAGIC, SOURCE_DIGESTS_VERSION, 1);
+        try {
+            if (!this.sourceDigests.load(sourceDigests)) {
+                return;
+            }
+        } catch (IOException e) {
+            logger.warning("Unable to read the archive source digests: %s", e.getMessage());
+            return;
+        }
+
+        // the digests must belong to the previous archive and the resources
+        // must have been hashed and encrypted the same way
+        DigestTable.Entry archiveDigest = this.sourceDigests.get(SOURCE_DIGESTS_ARCHIVE_KEY);
+        if (archiveDigest == null || archiveDigest.values[0] != getConfigurationHash()) {
+            return;
+        }
+        PreviousArchive archive = null;
+        try {
+            archive = PreviousArchive.load(archiveIndex, archiveData, manifest);
+        } catch (IOException e) {
+            logger.warning("Unable to read the previous archive: %s", e.getMessage());
+        }
+        if (archive == null) {
+            return;
+        }
+        int hashLength = ManifestBuilder.CryptographicOperations.getHashSize(manifestBuilder.getResourceHashAlgorithm());
+        if (!Arrays.equals(archive.getArchiveIdentifier(), archiveDigest.digest) || archive.getHashLength() != hashLength) {
+            archive.close();
+            return;
+        }
+        previousArchive = archive;
+    }
+
+    /**
+     * Get the number of entries whose data was copied from the previous archive
+     * @return Number of reused entries
+     */
+    public int getReusedEntryCount() {
+        return reusedEntryCount;
+    }
+
+    /**
+     * Get the number of bundled entries whose data was identical to the data
+     * of another entry and therefore wasn't written to the archive again
+     * @return Number of duplicate entries
+     */
+    public int getDuplicateEntryCount() {
+        return duplicateEntryCount;
+    }
+
+    /**
+     * Get the number of bytes saved in the archive data by not writing
+     * duplicate entries
+     * @return Size of the duplicate entries
+     */
+    public long getDuplicateSize() {
+        return duplicateSize;
+    }
+
+    private long getConfigurationHash() throws CompileExceptionError {
+        return MurmurHash.hash64(ResourceEncryption.getName() + ":" + manifestBuilder.getResourceHashAlgorithm() + ":" + compressionPolicies);
+    }
+
+    // the options which affect the stored data of an entry
+    private int getRequestedFlags(ArchiveEntry entry) {
+        int flags = 0;
+        if (entry.isCompressed()) {
+            flags |= 1;
+        }
+        if (entry.isEncrypted()) {
+            flags |= 2;
+        }
+        if (forceCompression) {
+            flags |= 4;
+        }
+        return flags;
     }
 
     public byte[] encryptResourceData(byte[] buffer) throws CompileExceptionError {
@@ -159,35 +395,112 @@ public class ArchiveBuilder {
         return excludedEntries;
     }
 
-    public void write(RandomAccessFile archiveIndex, RandomAccessFile archiveData, Path resourcePackDirectory, List<String> excludedResources) throws IOException, CompileExceptionError {
-        // INDEX
-        archiveIndex.writeInt(VERSION); // Version
-        archiveIndex.writeInt(0); // Pad
-        archiveIndex.writeLong(0); // UserData, used in runtime to distinguish between if the index and resources are memory mapped or loaded from disk
-        archiveIndex.writeInt(0); // EntryCount
-        archiveIndex.writeInt(0); // EntryOffset
-        archiveIndex.writeInt(0); // HashOffset
-        archiveIndex.writeInt(0); // HashLength
-        archiveIndex.write(new byte[MD5_HASH_DIGEST_BYTE_LENGTH]);
+    /**
+     * A resource which has been read, compressed, encrypted and hashed and
+     * is ready to be written to the archive
+     */
+    private static class TransformedResource {
+        final ArchiveEntry entry;
+        final byte[] buffer;
+        final int flags;
+        // hash of the stored data, added to the manifest
+        HashDigest hash;
+        // digest of the source and requested flags, used to find unchanged entries in the next build
+        byte[] sourceDigest;
+        int requestedFlags;
+        // set instead of the buffer when the data is copied from the previous archive
+        PreviousArchive.IndexEntry reusedEntry;
+
+        TransformedResource(ArchiveEntry entry, byte[] buffer, int flags) {
+            this.entry = entry;
+            this.buffer = buffer;
+            this.flags = flags;
+        }
+    }
 
-        int archiveIndexHeaderOffset = (int) archiveIndex.getFilePointer();
+    private static byte[] sha1(byte[] buffer) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(buffer);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to create a Resource Pack, the hashing algorithm is not supported!");
+        }
+    }
 
-        Collections.sort(entries); // Since it has no hash, it sorts on path
+    // Find the stored data of an unchanged resource in the previous archive
+    private TransformedResource reuseResource(ArchiveEntry entry, byte[] sourceDigest, int requestedFlags) {
+        DigestTable.Entry previous = sourceDigests.get(entry.getRelativeFilename());
+        if (previous == null || previous.values[0] != requestedFlags || !Arrays.equals(previous.digest, sourceDigest)) {
+            return null;
+        }
+        String normalisedPath = FilenameUtils.separatorsToUnix(entry.getRelativeFilename());
+        ResourceEntry resourceEntry = previousArchive.getResourceEntry(normalisedPath);
+        if (resourceEntry == null || (resourceEntry.getFlags() & ResourceEntryFlag.BUNDLED.getNumber()) == 0) {
+            return null;
+        }
+        byte[] hashDigest = resourceEntry.getHash().getData().toByteArray();
+        PreviousArchive.IndexEntry indexEntry = previousArchive.getIndexEntry(hashDigest);
+        if (indexEntry == null || indexEntry.size != entry.getSize()) {
+            return null;
+        }
 
-        for (int i = entries.size() - 1; i >= 0; --i) {
-            TimeProfiler.start("Write file");
-            ArchiveEntry entry = entries.get(i);
-            TimeProfiler.addData("res", entry.getFilename());
+        int resourceEntryFlags = 0;
+        if (indexEntry.compressedSize != ArchiveEntry.FLAG_UNCOMPRESSED) {
+            entry.setCompressedSize(indexEntry.compressedSize);
+            entry.setFlag(ArchiveEntry.FLAG_COMPRESSED);
+            resourceEntryFlags |= ResourceEntryFlag.COMPRESSED.getNumber();
+        } else {
+            entry.setCompressedSize(ArchiveEntry.FLAG_UNCOMPRESSED);
+        }
+        if (entry.isEncrypted()) {
+            resourceEntryFlags |= ResourceEntryFlag.ENCRYPTED.getNumber();
+        }
+        entry.setHash(new byte[HASH_MAX_LENGTH]);
+        System.arraycopy(hashDigest, 0, entry.getHash(), 0, hashDigest.length);
+        entry.setHexDigest(ManifestBuilder.CryptographicOperations.hexdigest(hashDigest));
+
+        TransformedResource resource = new TransformedResource(entry, null, resourceEntryFlags);
+        resource.reusedEntry = indexEntry;
+        resource.hash = resourceEntry.getHash();
+        return resource;
+    }
 
+    // Read, compress, encrypt and hash a resource
+    // NOTE This is called concurrently from the worker threads in write()
+    // and must only modify the entry it was given
+    private TransformedResource transformResource(ArchiveEntry entry, boolean excluded) throws IOException, CompileExceptionError {
+        TimeProfiler.start("Transform file");
+        TimeProfiler.addData("res", entry.getFilename());
+        try {
             byte[] buffer = this.loadResourceData(entry.getFilename());
 
+            byte[] sourceDigest = null;
+            int requestedFlags = getRequestedFlags(entry);
+            if (sourceDigests != null) {
+                sourceDigest = sha1(buffer);
+                if (previousArchive != null && !excluded) {
+                    TransformedResource reused = reuseResource(entry, sourceDigest, requestedFlags);
+                    if (reused != null) {
+                        TimeProfiler.addData("reused", true);
+                        reused.sourceDigest = sourceDigest;
+                        reused.requestedFlags = requestedFlags;
+                        return reused;
+                    }
+                }
+            }
+
             int resourceEntryFlags = 0;
 
             if (entry.isCompressed()) {
                 TimeProfiler.start("Compresss");
                 // Compress data
-                byte[] compressed = this.compressResourceData(buffer);
-                if (this.shouldUseCompressedResourceData(buffer, compressed)) {
+                CompressionPolicy policy = getCompressionPolicy(entry.getRelativeFilename());
+                byte[] compressed = null;
+                if (forceCompression) {
+                    compressed = this.compressResourceData(buffer);
+                } else if (policy.shouldCompress(buffer.length)) {
+                    compressed = this.compressResourceData(buffer, policy);
+                }
+                if (compressed != null && this.shouldUseCompressedResourceData(buffer, compressed, policy.getMaxRatio())) {
                     // Note, when forced, the compressed size may be larger than the original size (For unit tests)
                     buffer = compressed;
                     entry.setCompressedSize(compressed.length);
@@ -207,44 +520,143 @@ public class ArchiveBuilder {
                 TimeProfiler.stop();
             }
 
-            // Add entry to manifest
-            String normalisedPath = FilenameUtils.separatorsToUnix(entry.getRelativeFilename());
-
             // Calculate hash digest values for resource
-            String hexDigest = null;
+            byte[] hashDigest = null;
             try {
                 TimeProfiler.start("Hex");
-                byte[] hashDigest = ManifestBuilder.CryptographicOperations.hash(buffer, manifestBuilder.getResourceHashAlgorithm());
+                hashDigest = ManifestBuilder.CryptographicOperations.hash(buffer, manifestBuilder.getResourceHashAlgorithm());
                 entry.setHash(new byte[HASH_MAX_LENGTH]);
                 System.arraycopy(hashDigest, 0, entry.getHash(), 0, hashDigest.length);
-                hexDigest = ManifestBuilder.CryptographicOperations.hexdigest(hashDigest);
+                entry.setHexDigest(ManifestBuilder.CryptographicOperations.hexdigest(hashDigest));
                 TimeProfiler.stop();
             } catch (NoSuchAlgorithmException exception) {
                 throw new IOException("Unable to create a Resource Pack, the hashing algorithm is not supported!");
             }
+            TransformedResource resource = new TransformedResource(entry, buffer, resourceEntryFlags);
+            resource.hash = HashDigest.newBuilder().setData(ByteString.copyFrom(hashDigest)).build();
+            resource.sourceDigest = sourceDigest;
+            resource.requestedFlags = requestedFlags;
+            return resource;
+        } finally {
+            TimeProfiler.stop();
+        }
+    }
 
-            entry.setHexDigest(hexDigest);
-            hexDigestCache.put(entry.getRelativeFilename(), hexDigest);
-
-            TimeProfiler.start("Write");
-            // Write resource to resource pack or data archive
-            if (excludedResources.contains(normalisedPath)) {
-                this.writeResourcePack(entry, resourcePackDirectory.toString(), buffer);
-                entries.remove(i);
-                excludedEntries.add(entry);
-                resourceEntryFlags |= ResourceEntryFlag.EXCLUDED.getNumber();
-            } else {
-                alignBuffer(archiveData, this.resourcePadding);
-                entry.setResourceOffset((int) archiveData.getFilePointer());
-                archiveData.write(buffer, 0, buffer.length);
-                resourceEntryFlags |= ResourceEntryFlag.BUNDLED.getNumber();
+    private static TransformedResource waitForResource(Future<TransformedResource> future) throws IOException, CompileExceptionError {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating the archive", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof CompileExceptionError) {
+                throw (CompileExceptionError) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
-            TimeProfiler.stop();
+            throw new CompileExceptionError("Unable to create the archive", cause);
+        }
+    }
 
-            manifestBuilder.addResourceEntry(normalisedPath, buffer, entry.getSize(), entry.getCompressedSize(), resourceEntryFlags);
-            TimeProfiler.stop();
+    public void write(RandomAccessFile archiveIndex, RandomAccessFile archiveData, Path resourcePackDirectory, List<String> excludedResources) throws IOException, CompileExceptionError {
+        // INDEX
+        archiveIndex.writeInt(VERSION); // Version
+        archiveIndex.writeInt(0); // Pad
+        archiveIndex.writeLong(0); // UserData, used in runtime to distinguish between if the index and resources are memory mapped or loaded from disk
+        archiveIndex.writeInt(0); // EntryCount
+        archiveIndex.writeInt(0); // EntryOffset
+        archiveIndex.writeInt(0); // HashOffset
+        archiveIndex.writeInt(0); // HashLength
+        archiveIndex.write(new byte[MD5_HASH_DIGEST_BYTE_LENGTH]);
+
+        int archiveIndexHeaderOffset = (int) archiveIndex.getFilePointer();
+
+        Collections.sort(entries); // Since it has no hash, it sorts on path
+        List<ArchiveEntry> writeOrder = createWriteOrder();
+
+        // The resources are read, compressed, encrypted and hashed in parallel
+        // and then written in order, one at a time, to keep the layout of the
+        // archive deterministic. At most maxPending transformed resources are
+        // kept in memory while waiting to be written.
+        ExecutorService executor = Executors.newFixedThreadPool(maxThreads, (r) -> {
+            Thread thread = new Thread(r, "ArchiveBuilder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final int maxPending = maxThreads * 4;
+        final Set<String> excludedPaths = new HashSet<>(excludedResources);
+        ArrayDeque<Future<TransformedResource>> pending = new ArrayDeque<>();
+        // Identical resources produce identical stored data and hash, the
+        // data is written once and shared by all entries with the same hash
+        Map<String, ArchiveEntry> writtenEntries = new HashMap<>();
+        int next = 0;
+        try {
+            for (int i = 0; i < writeOrder.size(); ++i) {
+                while (next < writeOrder.size() && pending.size() < maxPending) {
+                    final ArchiveEntry nextEntry = writeOrder.get(next++);
+                    final boolean excluded = excludedPaths.contains(FilenameUtils.separatorsToUnix(nextEntry.getRelativeFilename()));
+                    pending.add(executor.submit(() -> transformResource(nextEntry, excluded)));
+                }
+                TransformedResource resource = waitForResource(pending.poll());
+                ArchiveEntry entry = resource.entry;
+                byte[] buffer = resource.buffer;
+                int resourceEntryFlags = resource.flags;
+
+                TimeProfiler.start("Write file");
+                TimeProfiler.addData("res", entry.getFilename());
+
+                // Add entry to manifest
+                String normalisedPath = FilenameUtils.separatorsToUnix(entry.getRelativeFilename());
+
+                hexDigestCache.put(entry.getRelativeFilename(), entry.getHexDigest());
+
+                // Write resource to resource pack or data archive
+                ArchiveEntry writtenEntry = excludedPaths.contains(normalisedPath) ? null : writtenEntries.get(entry.getHexDigest());
+                if (writtenEntry != null && isSameData(entry, writtenEntry)) {
+                    entry.setResourceOffset(writtenEntry.getResourceOffset());
+                    resourceEntryFlags |= ResourceEntryFlag.BUNDLED.getNumber();
+                    ++duplicateEntryCount;
+                    duplicateSize += getStoredSize(entry);
+                } else if (resource.reusedEntry != null) {
+                    // copy the unchanged data from the previous archive
+                    alignBuffer(archiveData, this.resourcePadding);
+                    entry.setResourceOffset((int) archiveData.getFilePointer());
+                    previousArchive.transferTo(resource.reusedEntry, archiveData.getChannel());
+                    resourceEntryFlags |= ResourceEntryFlag.BUNDLED.getNumber();
+                    ++reusedEntryCount;
+                } else if (excludedPaths.contains(normalisedPath)) {
+                    this.writeResourcePack(entry, resourcePackDirectory.toString(), buffer);
+                    excludedEntries.add(entry);
+                    resourceEntryFlags |= ResourceEntryFlag.EXCLUDED.getNumber();
+                } else {
+                    alignBuffer(archiveData, this.resourcePadding);
+                    entry.setResourceOffset((int) archiveData.getFilePointer());
+                    archiveData.write(buffer, 0, buffer.length);
+                    resourceEntryFlags |= ResourceEntryFlag.BUNDLED.getNumber();
+                }
+                if ((resourceEntryFlags & ResourceEntryFlag.BUNDLED.getNumber()) != 0) {
+                    writtenEntries.putIfAbsent(entry.getHexDigest(), entry);
+                }
+
+                // the data was hashed when it was transformed
+                manifestBuilder.addResourceEntry(normalisedPath, resource.hash, entry.getSize(), entry.getCompressedSize(), resourceEntryFlags);
+                if (sourceDigests != null) {
+                    sourceDigests.put(entry.getRelativeFilename(), resource.sourceDigest, resource.requestedFlags);
+                }
+                TimeProfiler.stop();
+            }
+        } finally {
+            executor.shutdownNow();
+            if (previousArchive != null) {
+                previousArchive.close();
+                previousArchive = null;
+            }
         }
 
+        entries.removeAll(new HashSet<>(excludedEntries));
         Collections.sort(entries); // Since it has a hash, it sorts on hash
 
         // Write sorted hashes to index file
@@ -279,6 +691,17 @@ public class ArchiveBuilder {
             throw new IOException("Unable to create a Resource Pack, the hashing algorithm is not supported!");
         }
 
+        if (sourceDigests != null) {
+            Set<String> paths = new HashSet<>(lookup);
+            for (String path : sourceDigests.getPaths()) {
+                if (!paths.contains(path)) {
+                    sourceDigests.remove(path);
+                }
+            }
+            sourceDigests.put(SOURCE_DIGESTS_ARCHIVE_KEY, archiveIndexMD5, getConfigurationHash());
+            sourceDigests.save(sourceDigestsFile);
+        }
+
         // Update index header with offsets
         archiveIndex.seek(0);
         archiveIndex.writeInt(VERSION);
@@ -291,6 +714,112 @@ public class ArchiveBuilder {
         archiveIndex.write(archiveIndexMD5);
     }
 
+    // the order in which the entry data is written to the archive
+    private List<ArchiveEntry> createWriteOrder() {
+        List<ArchiveEntry> writeOrder = new ArrayList<>(entries);
+        if (!loadOrderLayout || loadGroups == null) {
+            // reverse path order
+            Collections.reverse(writeOrder);
+            return writeOrder;
+        }
+        Map<String, Integer> loadOrder = new HashMap<>();
+        for (List<String> group : loadGroups.values()) {
+            for (String path : group) {
+                loadOrder.putIfAbsent(path, loadOrder.size());
+            }
+        }
+        // stable sort, entries which aren't loaded by any group stay in path order
+        writeOrder.sort(Comparator.comparingInt((ArchiveEntry e) -> loadOrder.getOrDefault(FilenameUtils.separatorsToUnix(e.getRelativeFilename()), Integer.MAX_VALUE)));
+        return writeOrder;
+    }
+
+    /**
+     * Write a report on how the resources of each load group are placed in
+     * the archive data. For each group the report contains the number of
+     * bundled resources, their stored size, the span of the archive data
+     * from the first to the last resource and the number of contiguous runs
+     * of data which must be read to load the group.
+     * Must be called after the archive has been written.
+     * @param os Stream to write the JSON report to
+     */
+    public void writeLocalityReport(OutputStream os) throws IOException {
+        Map<String, ArchiveEntry> bundled = new HashMap<>();
+        for (ArchiveEntry entry : entries) {
+            bundled.put(FilenameUtils.separatorsToUnix(entry.getRelativeFilename()), entry);
+        }
+        JsonGenerator generator = (new JsonFactory()).createJsonGenerator(new OutputStreamWriter(os));
+        try {
+            generator.useDefaultPrettyPrinter();
+            generator.writeStartObject();
+            generator.writeStringField("layout", loadOrderLayout ? "load-order" : "path");
+            generator.writeNumberField("dataSize", getStoredEnd(entries));
+            generator.writeArrayFieldStart("groups");
+            if (loadGroups != null) {
+                for (Map.Entry<String, List<String>> group : loadGroups.entrySet()) {
+                    List<ArchiveEntry> groupEntries = new ArrayList<>();
+                    for (String path : group.getValue()) {
+                        ArchiveEntry entry = bundled.get(path);
+                        if (entry != null) {
+                            groupEntries.add(entry);
+                        }
+                    }
+                    groupEntries.sort(Comparator.comparingInt(ArchiveEntry::getResourceOffset));
+
+                    long size = 0;
+                    int runs = 0;
+                    long runEnd = -1;
+                    for (ArchiveEntry entry : groupEntries) {
+                        long offset = entry.getResourceOffset();
+                        long end = offset + getStoredSize(entry);
+                        if (offset < runEnd) {
+                            // shared with a duplicate entry
+                            continue;
+                        }
+                        // entries are aligned, padding doesn't break a run
+                        long alignedRunEnd = (runEnd + (resourcePadding - 1)) & ~(resourcePadding - 1);
+                        if (runEnd < 0 || offset > alignedRunEnd) {
+                            ++runs;
+                        }
+                        size += end - offset;
+                        runEnd = end;
+                    }
+                    long span = groupEntries.isEmpty() ? 0 : getStoredEnd(groupEntries) - groupEntries.get(0).getResourceOffset();
+
+                    generator.writeStartObject();
+                    generator.writeStringField("group", group.getKey());
+                    generator.writeNumberField("resources", groupEntries.size());
+                    generator.writeNumberField("size", size);
+                    generator.writeNumberField("span", span);
+                    generator.writeNumberField("runs", runs);
+                    generator.writeEndObject();
+                }
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } finally {
+            generator.close();
+        }
+    }
+
+    private static int getStoredSize(ArchiveEntry entry) {
+        return entry.isCompressed() ? entry.getCompressedSize() : entry.getSize();
+    }
+
+    private static long getStoredEnd(List<ArchiveEntry> entries) {
+        long end = 0;
+        for (ArchiveEntry entry : entries) {
+            end = Math.max(end, (long) entry.getResourceOffset() + getStoredSize(entry));
+        }
+        return end;
+    }
+
+    // entries with the same hash may share data if it is stored the same way
+    private static boolean isSameData(ArchiveEntry a, ArchiveEntry b) {
+        return a.getSize() == b.getSize()
+            && a.getCompressedSize() == b.getCompressedSize()
+            && a.getFlags() == b.getFlags();
+    }
+
     private void alignBuffer(RandomAccessFile outFile, int align) throws IOException {
         int pos = (int) outFile.getFilePointer();
         int newPos = (int) (outFile.getFilePointer() + (align - 1));
@@ -0,0 +1,282 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.archive;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.dynamo.liveupdate.proto.Manifest.HashAlgorithm;
+import com.dynamo.liveupdate.proto.Manifest.ResourceEntry;
+
+/**
+ * Extracts the resources of an archive to a directory, decrypted and
+ * decompressed. The stored data of each resource is verified against the
+ * hash in the manifest before it is extracted.
+ * The extracted resources are recorded in a journal in the output directory.
+ * A resource which is recorded with the same manifest hash, and whose file
+ * still has the recorded content, is skipped. An interrupted extraction can
+ * therefore be resumed, and extracting another release to the same directory
+ * only writes the resources which have changed.
+ * The resources are extracted in parallel.
+ */
+public class ArchiveExtractor {
+
+    public static final String JOURNAL_FILENAME = ".archive_extract";
+
+    /**
+     * Outcome of an extraction
+     */
+    public static class Result {
+        /** Resources written to the output directory */
+        public int extracted;
+        /** Resources already extracted with the same content */
+        public int skipped;
+        /** Resources in the manifest which aren't bundled in the archive */
+        public int missing;
+        /** Urls of the resources which failed verification or extraction */
+        public List<String> failed = new ArrayList<>();
+    }
+
+    private enum Status {
+        EXTRACTED, SKIPPED, MISSING
+    }
+
+    /**
+     * Journal entry of an extracted resource
+     */
+    private static class Extracted {
+        final String storedHash;
+        final String contentHash;
+
+        Extracted(String storedHash, String contentHash) {
+            this.storedHash = storedHash;
+            this.contentHash = contentHash;
+        }
+    }
+
+    private final ArchiveReader reader;
+    private final File outputDir;
+    private Path canonicalOutputDir;
+    private String urlPrefix = "/";
+    private int maxThreads = Runtime.getRuntime().availableProcessors();
+    private HashAlgorithm hashAlgorithm;
+    private Map<String, Extracted> journal = new ConcurrentHashMap<>();
+    private BufferedWriter journalWriter;
+
+    /**
+     * @param reader A reader which has read an archive with a manifest
+     * @param outputDir Directory to extract the resources to
+     */
+    public ArchiveExtractor(ArchiveReader reader, File outputDir) {
+        this.reader = reader;
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Only extract the resources with urls starting with a prefix
+     * @param urlPrefix The prefix, ie /main/
+     */
+    public void setUrlPrefix(String urlPrefix) {
+        this.urlPrefix = urlPrefix;
+    }
+
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = Math.max(1, maxThreads);
+    }
+
+    private MessageDigest createMessageDigest() throws IOException {
+        try {
+            return ManifestBuilder.CryptographicOperations.getMessageDigest(hashAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unsupported resource hash algorithm: " + hashAlgorithm, e);
+        }
+    }
+
+    private String hashFile(File file) throws IOException {
+        MessageDigest digest = createMessageDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream is = new FileInputStream(file)) {
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return ManifestBuilder.CryptographicOperations.hexdigest(digest.digest());
+    }
+
+    private void readJournal(File journalFile) throws IOException {
+        if (!journalFile.isFile()) {
+            return;
+        }
+        try (BufferedReader journalReader = Files.newBufferedReader(journalFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = journalReader.readLine()) != null) {
+                // <stored hash> <content hash> <url>, later lines replace earlier ones
+                String[] parts = line.split(" ", 3);
+                if (parts.length == 3) {
+                    journal.put(parts[2], new Extracted(parts[0], parts[1]));
+                }
+            }
+        }
+    }
+
+    private void writeJournal(File journalFile) throws IOException {
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Extracted> entry : new TreeMap<>(journal).entrySet()) {
+                writer.write(entry.getValue().storedHash + " " + entry.getValue().contentHash + " " + entry.getKey() + "\n");
+            }
+        }
+        Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void appendJournal(String url, Extracted extracted) throws IOException {
+        synchronized (journalWriter) {
+            journalWriter.write(extracted.storedHash + " " + extracted.contentHash + " " + url + "\n");
+            journalWriter.flush();
+        }
+        journal.put(url, extracted);
+    }
+
+    // the urls come from the manifest and must not be trusted to stay within the output directory
+    private File getOutputFile(String url) throws IOException {
+        Path path = new File(canonicalOutputDir.toFile(), url).getCanonicalFile().toPath();
+        if (!path.startsWith(canonicalOutputDir) || path.equals(canonicalOutputDir)) {
+            throw new IOException(String.format("The resource url '%s' is outside of the output directory", url));
+        }
+        return path.toFile();
+    }
+
+    private Status extractResource(ResourceEntry resource) throws IOException {
+        String url = resource.getUrl();
+        String storedHash = ManifestBuilder.CryptographicOperations.hexdigest(resource.getHash().getData().toByteArray());
+        File file = getOutputFile(url);
+
+        Extracted extracted = journal.get(url);
+        if (extracted != null && extracted.storedHash.equals(storedHash) && file.isFile() && hashFile(file).equals(extracted.contentHash)) {
+            return Status.SKIPPED;
+        }
+
+        ArchiveEntry entry = reader.findEntryByUrl(url);
+        if (entry == null) {
+            return Status.MISSING;
+        }
+
+        MessageDigest digest = createMessageDigest();
+        digest.update(reader.getEntryStoredBuffer(entry));
+        if (!Arrays.equals(digest.digest(), resource.getHash().getData().toByteArray())) {
+            throw new IOException("The archive data doesn't match the manifest hash");
+        }
+
+        ByteBuffer content = reader.getEntryBuffer(entry);
+        digest.update(content.duplicate());
+        String contentHash = ManifestBuilder.CryptographicOperations.hexdigest(digest.digest());
+
+        // write to a temporary file first, an interrupted write must not look extracted
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        appendJournal(url, new Extracted(storedHash, contentHash));
+        return Status.EXTRACTED;
+    }
+
+    /**
+     * Extract the resources
+     * @return The outcome of the extraction
+     */
+    public Result extract() throws IOException {
+        hashAlgorithm = reader.getResourceHashAlgorithm();
+        outputDir.mkdirs();
+        canonicalOutputDir = outputDir.getCanonicalFile().toPath();
+        File journalFile = new File(outputDir, JOURNAL_FILENAME);
+        readJournal(journalFile);
+
+        List<ResourceEntry> resources = new ArrayList<>();
+        for (ResourceEntry resource : reader.getResources()) {
+            if (resource.getUrl().startsWith(urlPrefix)) {
+                resources.add(resource);
+            }
+        }
+        Collections.sort(resources, (a, b) -> a.getUrl().compareTo(b.getUrl()));
+
+        Result result = new Result();
+        ExecutorService executor = Executors.newFixedThreadPool(maxThreads, (r) -> {
+            Thread thread = new Thread(r, "ArchiveExtractor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            journalWriter = Files.newBufferedWriter(journalFile.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            List<Future<Status>> futures = new ArrayList<>(resources.size());
+            for (ResourceEntry resource : resources) {
+                futures.add(executor.submit(() -> extractResource(resource)));
+            }
+            for (int i = 0; i < futures.size(); ++i) {
+                String url = resources.get(i).getUrl();
+                try {
+                    switch (futures.get(i).get()) {
+                        case EXTRACTED: ++result.extracted; break;
+                        case SKIPPED: ++result.skipped; break;
+                        case MISSING: ++result.missing; break;
+                    }
+                } catch (ExecutionException e) {
+                    System.err.println("Unable to extract " + url + ": " + e.getCause().getMessage());
+                    journal.remove(url);
+                    result.failed.add(url);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while extracting the archive", e);
+        } finally {
+            executor.shutdownNow();
+            if (journalWriter != null) {
+                journalWriter.close();
+            }
+        }
+        // compact the journal now that all resources are done
+        writeJournal(journalFile);
+        return result;
+    }
+}
@@ -16,22 +16,41 @@ package com.dynamo.bob.archive;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
 
+import com.dynamo.bob.CompileExceptionError;
+import com.dynamo.liveupdate.proto.Manifest.HashAlgorithm;
 import com.dynamo.liveupdate.proto.Manifest.ManifestData;
 import com.dynamo.liveupdate.proto.Manifest.ManifestFile;
 import com.dynamo.liveupdate.proto.Manifest.ResourceEntry;
 
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+/**
+ * Reader of the archive index and data files. The index file is read into
+ * memory and the entries are read from the index when they are requested.
+ * Entries are found with a binary search of the sorted hashes in the index,
+ * or by url if the manifest is given. The data file is kept open until the
+ * reader is closed and the data of each entry is read when requested.
+ * Once read, the reader may be used concurrently from multiple threads.
+ */
 public class ArchiveReader {
     public static final int VERSION = 5;
     public static final int HASH_BUFFER_BYTESIZE = 64; // 512 bits
+    private static final int ENTRY_BYTESIZE = 16;
 
     private ArrayList<ArchiveEntry> entries = null;
 
@@ -43,9 +62,14 @@ public class ArchiveReader {
     private final String archiveIndexFilepath;
     private final String archiveDataFilepath;
     private final String manifestFilepath;
-    private RandomAccessFile archiveIndexFile = null;
-    private RandomAccessFile archiveDataFile = null;
+    private ByteBuffer archiveIndex = null;
+    private FileChannel archiveData = null;
+    private long archiveDataSize = 0;
     private ManifestFile manifestFile = null;
+    private ManifestData manifestData = null;
+    private Map<String, ResourceEntry> urlToResource = null;
+    private Map<ByteBuffer, ResourceEntry> hashToResource = null;
+    private LZ4SafeDecompressor decompressor = LZ4Factory.fastestInstance().safeDecompressor();
 
     public ArchiveReader(String archiveIndexFilepath, String archiveDataFilepath, String manifestFilepath) {
         this.archiveIndexFilepath = archiveIndexFilepath;
@@ -54,123 +78,301 @@ public class ArchiveReader {
     }
 
     public void read() throws IOException {
-        this.archiveIndexFile = new RandomAccessFile(this.archiveIndexFilepath, "r");
-        this.archiveDataFile = new RandomAccessFile(this.archiveDataFilepath, "r");
-
-        this.archiveIndexFile.seek(0);
-        this.archiveDataFile.seek(0);
+        this.archiveIndex = ByteBuffer.wrap(Files.readAllBytes(Paths.get(this.archiveIndexFilepath)));
+        this.archiveData = FileChannel.open(Paths.get(this.archiveDataFilepath), StandardOpenOption.READ);
+        this.archiveDataSize = this.archiveData.size();
 
         if (this.manifestFilepath != null) {
-            InputStream manifestInputStream = new FileInputStream(this.manifestFilepath);
-            this.manifestFile = ManifestFile.parseFrom(manifestInputStream);
-            manifestInputStream.close();
+            try (InputStream manifestInputStream = new FileInputStream(this.manifestFilepath)) {
+                this.manifestFile = ManifestFile.parseFrom(manifestInputStream);
+            }
         }
 
         // Version
-        int indexVersion = this.archiveIndexFile.readInt();
+        int indexVersion = this.archiveIndex.getInt(0);
         if (indexVersion == ArchiveReader.VERSION) {
-            readArchiveData();
+            readArchiveIndex();
         } else {
             throw new IOException("Unsupported archive index version: " + indexVersion);
         }
     }
 
-    private void readArchiveData() throws IOException {
+    private void readArchiveIndex() throws IOException {
         // INDEX
-        archiveIndexFile.readInt(); // Pad
-        archiveIndexFile.readLong(); // UserData, should be 0
-        entryCount = archiveIndexFile.readInt();
-        entryOffset = archiveIndexFile.readInt();
-        hashOffset = archiveIndexFile.readInt();
-        hashLength = archiveIndexFile.readInt();
-
-        entries = new ArrayList<ArchiveEntry>(entryCount);
+        // Version, Pad and UserData are skipped
+        entryCount = archiveIndex.getInt(16);
+        entryOffset = archiveIndex.getInt(20);
+        hashOffset = archiveIndex.getInt(24);
+        hashLength = archiveIndex.getInt(28);
 
-        // Hashes are stored linearly in memory instead of within each entry, so the hashes are read in a separate loop.
-        // Once the hashes are read, the rest of the entries are read.
+        if (hashLength > HASH_BUFFER_BYTESIZE
+                || hashOffset + (long) entryCount * HASH_BUFFER_BYTESIZE > archiveIndex.capacity()
+                || entryOffset + (long) entryCount * ENTRY_BYTESIZE > archiveIndex.capacity()) {
+            throw new IOException("Archive index is truncated or corrupt: " + archiveIndexFilepath);
+        }
 
-        ManifestData manifestData = null;
-        HashMap<ByteBuffer, ResourceEntry> hashToResourceLookup = new HashMap<ByteBuffer, ResourceEntry>();
         if (this.manifestFile != null) {    // some tests do not initialize this.manifestFile
             manifestData = ManifestData.parseFrom(this.manifestFile.getData());
+            urlToResource = new HashMap<>();
+            hashToResource = new HashMap<>();
             for (ResourceEntry resource : manifestData.getResourcesList()) {
-                hashToResourceLookup.put(ByteBuffer.wrap(resource.getHash().getData().toByteArray(), 0, hashLength), resource);
+                urlToResource.put(resource.getUrl(), resource);
+                hashToResource.put(ByteBuffer.wrap(resource.getHash().getData().toByteArray(), 0, hashLength), resource);
             }
         }
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public int getHashLength() {
+        return hashLength;
+    }
+
+    /**
+     * @return The algorithm of the resource hashes, from the manifest
+     */
+    public HashAlgorithm getResourceHashAlgorithm() throws IOException {
+        if (manifestData == null) {
+            throw new IOException("A manifest is required to get the resource hash algorithm");
+        }
+        return manifestData.getHeader().getResourceHashAlgorithm();
+    }
+
+    /**
+     * @return The resources in the manifest, including resources which aren't bundled in the archive
+     */
+    public List<ResourceEntry> getResources() throws IOException {
+        if (manifestData == null) {
+            throw new IOException("A manifest is required to get the resources");
+        }
+        return manifestData.getResourcesList();
+    }
 
-        // Read entry hashes
-        archiveIndexFile.seek(hashOffset);
-        for (int i = 0; i < entryCount; ++i) {
-            archiveIndexFile.seek(hashOffset + i * HASH_BUFFER_BYTESIZE);
-            ArchiveEntry e = new ArchiveEntry("");
-            byte[] hash = new byte[HASH_BUFFER_BYTESIZE];
-            archiveIndexFile.read(hash, 0, hashLength);
-            e.setHash(hash);
-            ResourceEntry resource = hashToResourceLookup.get(ByteBuffer.wrap(hash, 0, hashLength));
+    /**
+     * Get an entry from the index
+     * @param index index of the entry, entries are sorted on hash
+     * @return The entry
+     */
+    public ArchiveEntry getEntry(int index) throws IOException {
+        // Hashes are stored linearly in memory instead of within each entry
+        ArchiveEntry e = new ArchiveEntry("");
+        byte[] hash = new byte[HASH_BUFFER_BYTESIZE];
+        ByteBuffer hashes = archiveIndex.duplicate();
+        hashes.position(hashOffset + index * HASH_BUFFER_BYTESIZE);
+        hashes.get(hash, 0, hashLength);
+        e.setHash(hash);
+        if (hashToResource != null) {
+            ResourceEntry resource = hashToResource.get(ByteBuffer.wrap(hash, 0, hashLength));
             if (resource != null) {
                 e.setFilename(resource.getUrl());
                 e.setRelativeFilename(resource.getUrl());
             }
-            entries.add(e);
         }
 
-        // Read entries
-        archiveIndexFile.seek(entryOffset);
-        for (int i=0; i<entryCount; ++i) {
-            ArchiveEntry e = entries.get(i);
+        int offset = entryOffset + index * ENTRY_BYTESIZE;
+        e.setResourceOffset(archiveIndex.getInt(offset));
+        e.setSize(archiveIndex.getInt(offset + 4));
+        e.setCompressedSize(archiveIndex.getInt(offset + 8));
+        e.setFlags(archiveIndex.getInt(offset + 12));
+        return e;
+    }
 
-            e.setResourceOffset(archiveIndexFile.readInt());
-            e.setSize(archiveIndexFile.readInt());
-            e.setCompressedSize(archiveIndexFile.readInt());
-            e.setFlags(archiveIndexFile.readInt());
+    public List<ArchiveEntry> getEntries() throws IOException {
+        if (entries == null) {
+            entries = new ArrayList<ArchiveEntry>(entryCount);
+            for (int i = 0; i < entryCount; ++i) {
+                entries.add(getEntry(i));
+            }
         }
+        return entries;
     }
 
-    public List<ArchiveEntry> getEntries() {
-        return entries;
+    private int compareHash(int index, byte[] hash) {
+        int base = hashOffset + index * HASH_BUFFER_BYTESIZE;
+        for (int i = 0; i < hashLength; ++i) {
+            int a = archiveIndex.get(base + i) & 0xff;
+            int b = i < hash.length ? (hash[i] & 0xff) : 0;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
     }
 
-    public byte[] getEntryContent(ArchiveEntry entry) throws IOException {
-        byte[] buf = new byte[entry.getSize()];
-        archiveDataFile.seek(entry.getResourceOffset());
-        archiveDataFile.read(buf, 0, entry.getSize());
+    /**
+     * Find an entry from the hash of its stored data
+     * @param hash The hash to find
+     * @return The entry or null if there is no entry with the hash
+     */
+    public ArchiveEntry findEntry(byte[] hash) throws IOException {
+        int low = 0;
+        int high = entryCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareHash(mid, hash);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return getEntry(mid);
+            }
+        }
+        return null;
+    }
 
-        return buf;
+    /**
+     * Find an entry from the url of the resource in the manifest
+     * @param url The url of the resource, ie /main/main.collectionc
+     * @return The entry or null if the resource isn't bundled in the archive
+     */
+    public ArchiveEntry findEntryByUrl(String url) throws IOException {
+        if (urlToResource == null) {
+            throw new IOException("A manifest is required to find entries by url");
+        }
+        ResourceEntry resource = urlToResource.get(url);
+        if (resource == null) {
+            return null;
+        }
+        return findEntry(resource.getHash().getData().toByteArray());
     }
 
-    public void extractAll(String path) throws IOException {
+    /**
+     * Get the data of an entry as it is stored in the archive, compressed
+     * and encrypted if the entry is. The resource hash in the manifest is
+     * the hash of the stored data.
+     * @param entry The entry to get the stored data for
+     * @return Buffer with the archive data of the entry
+     */
+    public ByteBuffer getEntryStoredBuffer(ArchiveEntry entry) throws IOException {
+        int offset = entry.getResourceOffset();
+        int length = entry.isCompressed() ? entry.getCompressedSize() : entry.getSize();
+        if (offset < 0 || length < 0 || (long) offset + length > archiveDataSize) {
+            throw new IOException("Archive data is truncated or corrupt: " + archiveDataFilepath);
+        }
+        // positional reads don't change the position of the channel and may be made concurrently
+        ByteBuffer data = ByteBuffer.allocate(length);
+        while (data.hasRemaining()) {
+            if (archiveData.read(data, offset + data.position()) < 0) {
+                throw new IOException("Archive data is truncated or corrupt: " + archiveDataFilepath);
+            }
+        }
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Get the content of an entry. The content is decrypted and decompressed
+     * if needed.
+     * @param entry The entry to get content for
+     * @return Buffer with the content of the entry
+     */
+    public ByteBuffer getEntryBuffer(ArchiveEntry entry) throws IOException {
+        ByteBuffer data = getEntryStoredBuffer(entry);
+        if (entry.isEncrypted()) {
+            byte[] encrypted = new byte[data.remaining()];
+            data.get(encrypted);
+            byte[] decrypted;
+            try {
+                decrypted = ResourceEncryption.decrypt(encrypted);
+            } catch (CompileExceptionError e) {
+                throw new IOException(e.getMessage(), e.getCause());
+            }
+            if (decrypted == null) {
+                String name = entry.getFilename().isEmpty() ? ManifestBuilder.CryptographicOperations.hexdigest(Arrays.copyOf(entry.getHash(), hashLength)) : entry.getFilename();
+                throw new IOException(String.format("Unable to decrypt archive entry %s, the resources are encrypted by a custom encryption plugin", name));
+            }
+            data = ByteBuffer.wrap(decrypted);
+        }
+        if ((entry.getFlags() & ArchiveEntry.FLAG_COMPRESSED) != 0) {
+            ByteBuffer content = ByteBuffer.allocate(entry.getSize());
+            try {
+                int size = decompressor.decompress(data, data.position(), data.remaining(), content, 0, entry.getSize());
+                if (size != entry.getSize()) {
+                    throw new IOException(String.format("Decompressed size %d doesn't match the entry size %d", size, entry.getSize()));
+                }
+            } catch (LZ4Exception e) {
+                throw new IOException("Unable to decompress archive entry", e);
+            }
+            data = content;
+        }
+        return data;
+    }
+
+    public InputStream getEntryInputStream(ArchiveEntry entry) throws IOException {
+        return new ByteBufferInputStream(getEntryBuffer(entry));
+    }
 
-        int entryCount = entries.size();
+    public byte[] getEntryContent(ArchiveEntry entry) throws IOException {
+        ByteBuffer buffer = getEntryBuffer(entry);
+        byte[] buf = new byte[buffer.remaining()];
+        buffer.get(buf);
+        return buf;
+    }
 
+    public void extractAll(String path) throws IOException {
         System.out.println("Extracting entries to " + path + ": ");
         for (int i = 0; i < entryCount; i++) {
-            ArchiveEntry entry = entries.get(i);
-            String outdir = path + entry.getFilename();
-            System.out.println("> " + entry.getFilename());
-            int readSize = entry.getCompressedSize();
+            ArchiveEntry entry = getEntry(i);
+            String filename = entry.getFilename();
+            if (filename.isEmpty()) {
+                // not in the manifest, use the hash as name
+                byte[] hash = new byte[hashLength];
+                System.arraycopy(entry.getHash(), 0, hash, 0, hashLength);
+                filename = "/" + ManifestBuilder.CryptographicOperations.hexdigest(hash);
+            }
+            System.out.println("> " + filename);
 
             // extract
-            byte[] buf = new byte[entry.getSize()];
-            archiveDataFile.seek(entry.getResourceOffset());
-            archiveDataFile.read(buf, 0, readSize);
-
-            File fo = new File(outdir);
+            File fo = new File(path + filename);
             fo.getParentFile().mkdirs();
-            FileOutputStream os = new FileOutputStream(fo);
-            os.write(buf);
-            os.close();
+            ByteBuffer buffer = getEntryBuffer(entry);
+            try (FileChannel channel = FileChannel.open(fo.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
         }
     }
 
     public void close() throws IOException {
-        if (archiveIndexFile != null) {
-            archiveIndexFile.close();
-            archiveIndexFile = null;
+        archiveIndex = null;
+        if (archiveData != null) {
+            archiveData.close();
+            archiveData = null;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
         }
 
-        if (archiveDataFile != null) {
-            archiveDataFile.close();
-            archiveDataFile = null;
+        @Override
+        public int available() {
+            return buffer.remaining();
         }
     }
 }
@@ -0,0 +1,209 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.archive;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.dynamo.bob.CompileExceptionError;
+
+/**
+ * How the resources of one type are compressed in the archive.
+ *
+ * Policies are given per output extension, one per line:
+ * <pre>
+ * # extension [store] [level=&lt;0-17&gt;] [min_size=&lt;bytes&gt;] [max_ratio=&lt;ratio&gt;] [trial_levels=&lt;level,...&gt;] [trial_sample=&lt;bytes&gt;]
+ * oggc       store
+ * texturec   level=12 min_size=1024 max_ratio=0.9
+ * collectionc level=9 trial_levels=4,12,17 trial_sample=32768
+ * </pre>
+ * Level 0 is the fast LZ4 compressor and 1-17 are the LZ4 HC levels.
+ * Resources smaller than the minimum size are stored uncompressed, as are
+ * resources whose compressed size relative to the original size is larger
+ * than the maximum ratio.
+ * With trial levels a sample from the start of the resource, at most the
+ * trial sample size, is compressed with the level and each of the trial
+ * levels. The resource is then compressed with the level which gave the
+ * smallest sample.
+ */
+public class CompressionPolicy {
+
+    public static final int DEFAULT_LEVEL = 9; // LZ4 HC default
+    public static final int MAX_LEVEL = 17;
+    public static final double DEFAULT_MAX_RATIO = 0.95;
+    public static final int DEFAULT_TRIAL_SAMPLE = 64 * 1024;
+
+    public static final CompressionPolicy DEFAULT = new CompressionPolicy(false, DEFAULT_LEVEL, 0, DEFAULT_MAX_RATIO, new int[0], DEFAULT_TRIAL_SAMPLE);
+    public static final CompressionPolicy STORE = new CompressionPolicy(true, DEFAULT_LEVEL, 0, DEFAULT_MAX_RATIO, new int[0], DEFAULT_TRIAL_SAMPLE);
+
+    private final boolean store;
+    private final int level;
+    private final int minSize;
+    private final double maxRatio;
+    private final int[] trialLevels;
+    private final int trialSample;
+
+    public CompressionPolicy(boolean store, int level, int minSize, double maxRatio, int[] trialLevels, int trialSample) {
+        this.store = store;
+        this.level = level;
+        this.minSize = minSize;
+        this.maxRatio = maxRatio;
+        this.trialLevels = trialLevels;
+        this.trialSample = trialSample;
+    }
+
+    /**
+     * @return true if the resources are always stored uncompressed
+     */
+    public boolean isStore() {
+        return store;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public double getMaxRatio() {
+        return maxRatio;
+    }
+
+    public int[] getTrialLevels() {
+        return trialLevels;
+    }
+
+    /**
+     * @return maximum number of bytes compressed with each trial level
+     */
+    public int getTrialSample() {
+        return trialSample;
+    }
+
+    /**
+     * Check if a resource should be compressed at all
+     * @param size size of the resource
+     * @return true if the resource should be compressed
+     */
+    public boolean shouldCompress(int size) {
+        return !store && size >= minSize;
+    }
+
+    private static int parseLevel(String value) {
+        int level = Integer.parseInt(value);
+        if (level < 0 || level > MAX_LEVEL) {
+            throw new IllegalArgumentException("compression level must be between 0 and " + MAX_LEVEL);
+        }
+        return level;
+    }
+
+    /**
+     * Parse the settings of a policy
+     * @param settings settings separated by whitespace, ie "level=12 min_size=1024"
+     * @return The policy
+     */
+    public static CompressionPolicy parse(String settings) {
+        boolean store = false;
+        int level = DEFAULT_LEVEL;
+        int minSize = 0;
+        double maxRatio = DEFAULT_MAX_RATIO;
+        int[] trialLevels = new int[0];
+        int trialSample = DEFAULT_TRIAL_SAMPLE;
+        for (String setting : settings.trim().split("\\s+")) {
+            if (setting.isEmpty()) {
+                continue;
+            }
+            if (setting.equals("store")) {
+                store = true;
+                continue;
+            }
+            String[] keyValue = setting.split("=", 2);
+            if (keyValue.length != 2) {
+                throw new IllegalArgumentException("expected <key>=<value> but got '" + setting + "'");
+            }
+            String value = keyValue[1];
+            switch (keyValue[0]) {
+                case "level":
+                    level = parseLevel(value);
+                    break;
+                case "min_size":
+                    minSize = Integer.parseInt(value);
+                    break;
+                case "max_ratio":
+                    maxRatio = Double.parseDouble(value);
+                    break;
+                case "trial_levels":
+                    String[] levels = value.split(",");
+                    trialLevels = new int[levels.length];
+                    for (int i = 0; i < levels.length; ++i) {
+                        trialLevels[i] = parseLevel(levels[i]);
+                    }
+                    break;
+                case "trial_sample":
+                    trialSample = Integer.parseInt(value);
+                    if (trialSample <= 0) {
+                        throw new IllegalArgumentException("trial sample size must be larger than 0");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown setting '" + keyValue[0] + "'");
+            }
+        }
+        return new CompressionPolicy(store, level, minSize, maxRatio, trialLevels, trialSample);
+    }
+
+    /**
+     * Parse the policies of a set of output extensions
+     * @param text One policy per line, starting with the extension. Empty lines and lines starting with # are ignored.
+     * @return The policies keyed on output extension, without the leading dot
+     */
+    public static Map<String, CompressionPolicy> parsePolicies(String text) throws CompileExceptionError {
+        Map<String, CompressionPolicy> policies = new TreeMap<>();
+        String[] lines = text.split("\\r?\\n");
+        for (int i = 0; i < lines.length; ++i) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] extensionAndSettings = line.split("\\s+", 2);
+            String extension = extensionAndSettings[0];
+            if (extension.startsWith(".")) {
+                extension = extension.substring(1);
+            }
+            try {
+                policies.put(extension, parse(extensionAndSettings.length > 1 ? extensionAndSettings[1] : ""));
+            } catch (IllegalArgumentException e) {
+                throw new CompileExceptionError(String.format("Invalid compression policy on line %d: %s", i + 1, e.getMessage()), e);
+            }
+        }
+        return policies;
+    }
+
+    @Override
+    public String toString() {
+        if (store) {
+            return "store";
+        }
+        String s = String.format("level=%d min_size=%d max_ratio=%s", level, minSize, Double.toString(maxRatio));
+        if (trialLevels.length > 0) {
+            String levels = Arrays.toString(trialLevels).replaceAll("[\\[\\] ]", "");
+            s += String.format(" trial_levels=%s trial_sample=%d", levels, trialSample);
+        }
+        return s;
+    }
+}
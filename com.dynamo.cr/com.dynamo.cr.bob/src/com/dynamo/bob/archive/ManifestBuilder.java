@@ -16,7 +16,6 @@ package com.dynamo.bob.archive;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -31,12 +30,18 @@ import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.TreeMap;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -68,20 +73,21 @@ public class ManifestBuilder {
 
         }
 
-        public static byte[] hash(byte[] data, HashAlgorithm algorithm) throws NoSuchAlgorithmException {
-            MessageDigest messageDigest = null;
+        public static MessageDigest getMessageDigest(HashAlgorithm algorithm) throws NoSuchAlgorithmException {
             if (algorithm.equals(HashAlgorithm.HASH_MD5)) {
-                messageDigest = MessageDigest.getInstance("MD5");
+                return MessageDigest.getInstance("MD5");
             } else if (algorithm.equals(HashAlgorithm.HASH_SHA1)) {
-                messageDigest = MessageDigest.getInstance("SHA-1");
+                return MessageDigest.getInstance("SHA-1");
             } else if (algorithm.equals(HashAlgorithm.HASH_SHA256)) {
-                messageDigest = MessageDigest.getInstance("SHA-256");
+                return MessageDigest.getInstance("SHA-256");
             } else if (algorithm.equals(HashAlgorithm.HASH_SHA512)) {
-                messageDigest = MessageDigest.getInstance("SHA-512");
-            } else {
-                throw new NoSuchAlgorithmException("The algorithm specified is not supported!");
+                return MessageDigest.getInstance("SHA-512");
             }
+            throw new NoSuchAlgorithmException("The algorithm specified is not supported!");
+        }
 
+        public static byte[] hash(byte[] data, HashAlgorithm algorithm) throws NoSuchAlgorithmException {
+            MessageDigest messageDigest = getMessageDigest(algorithm);
             messageDigest.update(data);
             return messageDigest.digest();
         }
@@ -287,31 +293,10 @@ public class ManifestBuilder {
     private boolean outputManifestHash = false;
     private byte[] manifestDataHash = null;
     private byte[] archiveIdentifier = new byte[ArchiveBuilder.MD5_HASH_DIGEST_BYTE_LENGTH];
-    private HashMap<ResourceNode, HashSet<ResourceNode>> pathToDependants = new HashMap<>();
     private HashMap<String, ResourceEntry> urlToResource = new HashMap<>();
     private Set<HashDigest> supportedEngineVersions = new HashSet<HashDigest>();
-    private Set<ResourceEntry> resourceEntries = new TreeSet<ResourceEntry>(new Comparator<ResourceEntry>() {
-        // We need to make sure the entries are sorted properly in order to do the binary search
-        private int compare(byte[] left, byte[] right) {
-            for (int i = 0, j = 0; i < left.length && j < right.length; i++, j++) {
-                int a = (left[i] & 0xff);
-                int b = (right[j] & 0xff);
-                if (a != b) {
-                    return a - b;
-                }
-            }
-            return left.length - right.length;
-        }
-
-        public int compare(ResourceEntry s1, ResourceEntry s2) {
-            // We want a set sorted on hashes, so we can do binary search at runtime
-
-            // byte compare, because java does not have unsigned types
-            byte[] s1_bytes = ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(s1.getUrlHash()).array();
-            byte[] s2_bytes = ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(s2.getUrlHash()).array();
-            return compare(s1_bytes, s2_bytes);
-        }
-    });
+    // We want the entries sorted on unsigned url hash, so we can do binary search at runtime
+    private Map<Long, ResourceEntry> resourceEntries = new TreeMap<>(Long::compareUnsigned);
 
     public ManifestBuilder() {
 
@@ -400,54 +385,142 @@ public class ManifestBuilder {
 
     public void addResourceEntry(String url, byte[] data, int size, int compressed_size, int flags) throws IOException {
         try {
-            ResourceEntry.Builder builder = ResourceEntry.newBuilder();
-            builder.setUrl(url);
-            builder.setUrlHash(MurmurHash.hash64(url)); // sort on this
             HashDigest hash = CryptographicOperations.createHashDigest(data, this.resourceHashAlgorithm);
-            builder.setHash(hash);
-            builder.setFlags(flags);
-            builder.setSize(size);
-            builder.setCompressedSize(compressed_size);
-            this.resourceEntries.add(builder.buildPartial());
+            addResourceEntry(url, hash, size, compressed_size, flags);
         } catch (NoSuchAlgorithmException exception) {
             throw new IOException("Unable to create Manifest, hashing algorithm is not supported!");
         }
     }
 
-    public HashSet<ResourceNode> getAllDependants(ResourceNode node) throws IOException {
-        /* Once a candidate has been found the children, the children, and so
-           on are added to the list of dependants. If a CollectionProxy is
-           found that resource itself is added to the list of dependants, but
-           it is seen as a leaf and the Collection that it points to is ignored.
-
-           The reason children of a CollectionProxy is ignored is that they are
-           not required to load the parent Collection. This allows us to
-           exclude an entire Collection that is loaded through a CollectionProxy
-           and thus create a partial archive that has to be updated (through
-           LiveUpdate) before that CollectionProxy can be loaded.
-        */
+    public void addResourceEntry(String url, HashDigest hash, int size, int compressed_size, int flags) {
+        ResourceEntry.Builder builder = ResourceEntry.newBuilder();
+        builder.setUrl(url);
+        builder.setUrlHash(MurmurHash.hash64(url)); // sort on this
+        builder.setHash(hash);
+        builder.setFlags(flags);
+        builder.setSize(size);
+        builder.setCompressedSize(compressed_size);
+        this.resourceEntries.putIfAbsent(builder.getUrlHash(), builder.buildPartial());
+    }
 
-        if (node == null) {
-            return new HashSet<ResourceNode>();
+    /**
+     * The state of a node while the dependants are calculated
+     */
+    private static class DependantsNode {
+        final int id;
+        final ResourceNode node;
+        // number of expanded nodes which have this node as child
+        int parents = 0;
+        boolean expanded = false;
+        BitSet dependants = null;
+
+        DependantsNode(int id, ResourceNode node) {
+            this.id = id;
+            this.node = node;
         }
+    }
 
-        HashSet<ResourceNode> dependants = pathToDependants.get(node);
-        if (dependants != null) {
-            return dependants;
+    /**
+     * Calculate the dependants of a set of nodes in a single pass over the
+     * resource graph. The children, their children and so on are dependants
+     * of a node. If a CollectionProxy is found that resource itself is a
+     * dependant, but it is seen as a leaf and the Collection that it points to
+     * is ignored.
+     *
+     * The reason children of a CollectionProxy is ignored is that they are
+     * not required to load the parent Collection. This allows us to
+     * exclude an entire Collection that is loaded through a CollectionProxy
+     * and thus create a partial archive that has to be updated (through
+     * LiveUpdate) before that CollectionProxy can be loaded.
+     *
+     * The dependants of each node are kept as a bitset of node ids, merged
+     * from the children in post order. The bitset of a node is released once
+     * all of its parents have been calculated.
+     * @param roots Nodes to calculate dependants for
+     * @param nodes Receives the node of each id
+     * @return The dependants of each of the roots, as a bitset of node ids
+     */
+    private Map<ResourceNode, BitSet> calculateDependants(List<ResourceNode> roots, List<ResourceNode> nodes) {
+        Map<ResourceNode, DependantsNode> states = new HashMap<>();
+        List<DependantsNode> postOrder = new ArrayList<>();
+
+        // depth first traversal to number the nodes and count the parents of each node
+        ArrayDeque<DependantsNode> stack = new ArrayDeque<>();
+        ArrayDeque<Integer> nextChild = new ArrayDeque<>();
+        for (ResourceNode root : roots) {
+            DependantsNode rootState = states.computeIfAbsent(root, (n) -> new DependantsNode(nodes.size(), n));
+            if (rootState.id == nodes.size()) {
+                nodes.add(root);
+            }
+            if (rootState.expanded) {
+                continue;
+            }
+            rootState.expanded = true;
+            stack.push(rootState);
+            nextChild.push(0);
+            while (!stack.isEmpty()) {
+                DependantsNode current = stack.peek();
+                List<ResourceNode> children = current.node.getChildren();
+                int index = nextChild.pop();
+                if (index == children.size()) {
+                    stack.pop();
+                    postOrder.add(current);
+                    continue;
+                }
+                nextChild.push(index + 1);
+                ResourceNode child = children.get(index);
+                DependantsNode childState = states.computeIfAbsent(child, (n) -> new DependantsNode(nodes.size(), n));
+                if (childState.id == nodes.size()) {
+                    nodes.add(child);
+                }
+                if (child.checkType(ResourceNode.Type.CollectionProxy)) {
+                    continue;
+                }
+                ++childState.parents;
+                if (!childState.expanded) {
+                    childState.expanded = true;
+                    stack.push(childState);
+                    nextChild.push(0);
+                }
+            }
         }
 
-        dependants = new HashSet<ResourceNode>();
-
-        for (ResourceNode child : node.getChildren()) {
-            dependants.add(child);
-
-            if (!child.checkType(ResourceNode.Type.CollectionProxy)) {
-                dependants.addAll(getAllDependants(child));
+        // the children of a node are always calculated before the node itself
+        for (DependantsNode current : postOrder) {
+            BitSet dependants = new BitSet(nodes.size());
+            for (ResourceNode child : current.node.getChildren()) {
+                DependantsNode childState = states.get(child);
+                dependants.set(childState.id);
+                if (child.checkType(ResourceNode.Type.CollectionProxy)) {
+                    continue;
+                }
+                if (childState.dependants != null) {
+                    dependants.or(childState.dependants);
+                }
+                if (--childState.parents == 0) {
+                    childState.dependants = null;
+                }
             }
+            current.dependants = dependants;
         }
 
-        pathToDependants.put(node, dependants);
+        Map<ResourceNode, BitSet> result = new HashMap<>();
+        for (ResourceNode root : roots) {
+            result.put(root, states.get(root).dependants);
+        }
+        return result;
+    }
 
+    public HashSet<ResourceNode> getAllDependants(ResourceNode node) throws IOException {
+        HashSet<ResourceNode> dependants = new HashSet<ResourceNode>();
+        if (node == null) {
+            return dependants;
+        }
+        List<ResourceNode> nodes = new ArrayList<>();
+        BitSet bits = calculateDependants(Collections.singletonList(node), nodes).get(node);
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            dependants.add(nodes.get(i));
+        }
         return dependants;
     }
 
@@ -467,7 +540,7 @@ public class ManifestBuilder {
         return builder.build();
     }
 
-    private void buildUrlToResourceMap(Set<ResourceEntry> entries) throws IOException {
+    private void buildUrlToResourceMap(Collection<ResourceEntry> entries) throws IOException {
         for (ResourceEntry entry : entries) {
             if (entry.hasHash()) {
                 urlToResource.put(entry.getUrl(), entry);
@@ -488,27 +561,31 @@ public class ManifestBuilder {
         ManifestHeader manifestHeader = this.buildManifestHeader();
         builder.setHeader(manifestHeader);
 
-        buildUrlToResourceMap(this.resourceEntries);
+        buildUrlToResourceMap(this.resourceEntries.values());
 
         builder.addAllEngineVersions(this.supportedEngineVersions);
 
-        int resourceIndex = 0;
-        HashMap<String, Integer> resourceToIndex = new HashMap<>(); // at what index is the resource stored?
-        for (ResourceEntry entry : this.resourceEntries) {
-            resourceToIndex.put(entry.getUrl(), resourceIndex);
-            resourceIndex++;
+        // Since we'll only ever ask collection proxies, we only store those lists
+        // We'll only store the dependencies for the excluded collection proxies
+        List<ResourceNode> proxyNodes = new ArrayList<>();
+        for (ResourceEntry entry : this.resourceEntries.values()) {
+            ResourceNode proxyNode = resourceGraph.getResourceNodeFromPath(entry.getUrl());
+            if (proxyNode != null && proxyNode.checkType(ResourceNode.Type.ExcludedCollectionProxy)) {
+                proxyNodes.add(proxyNode);
+            }
         }
+        List<ResourceNode> nodes = new ArrayList<>();
+        Map<ResourceNode, BitSet> proxyDependants = calculateDependants(proxyNodes, nodes);
 
-        for (ResourceEntry entry : this.resourceEntries) {
+        for (ResourceEntry entry : this.resourceEntries.values()) {
             String url = entry.getUrl();
             ResourceEntry.Builder resourceEntryBuilder = entry.toBuilder();
 
-            // Since we'll only ever ask collection proxies, we only store those lists
             ResourceNode proxyNode = resourceGraph.getResourceNodeFromPath(url);
-            // We'll only store the dependencies for the excluded collection proxies
-            if (proxyNode != null && proxyNode.checkType(ResourceNode.Type.ExcludedCollectionProxy)) {
-                HashSet<ResourceNode> allProxyDependants = this.getAllDependants(proxyNode);
-                for (ResourceNode dependant : allProxyDependants) {
+            BitSet dependants = proxyNode != null ? proxyDependants.get(proxyNode) : null;
+            if (dependants != null) {
+                for (int i = dependants.nextSetBit(0); i >= 0; i = dependants.nextSetBit(i + 1)) {
+                    ResourceNode dependant = nodes.get(i);
                     // Exclude resources referenced from the main bundle
                     if (dependant.isInMainBundle()) {
                         continue;
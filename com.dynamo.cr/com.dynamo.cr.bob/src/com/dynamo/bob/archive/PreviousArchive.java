@@ -0,0 +1,178 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.dynamo.liveupdate.proto.Manifest.ManifestData;
+import com.dynamo.liveupdate.proto.Manifest.ManifestFile;
+import com.dynamo.liveupdate.proto.Manifest.ResourceEntry;
+
+/**
+ * The archive index, archive data and manifest written by a previous build.
+ * Used by the ArchiveBuilder to copy the stored data of unchanged resources
+ * instead of compressing and encrypting them again.
+ * The lookups may be done concurrently from the ArchiveBuilder worker threads.
+ */
+class PreviousArchive {
+
+    /**
+     * An entry in the previous archive index
+     */
+    static class IndexEntry {
+        final int offset;
+        final int size;
+        final int compressedSize;
+        final int flags;
+
+        IndexEntry(int offset, int size, int compressedSize, int flags) {
+            this.offset = offset;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.flags = flags;
+        }
+
+        /**
+         * @return number of bytes stored in the archive data for the entry
+         */
+        int getStoredSize() {
+            return compressedSize == ArchiveEntry.FLAG_UNCOMPRESSED ? size : compressedSize;
+        }
+    }
+
+    private byte[] archiveIdentifier;
+    private int hashLength;
+    private Map<String, IndexEntry> indexEntries = new HashMap<>();
+    private Map<String, ResourceEntry> resourceEntries = new HashMap<>();
+    private RandomAccessFile archiveData;
+
+    private PreviousArchive() {
+    }
+
+    /**
+     * Load a previous archive
+     * @param archiveIndex the .arci file
+     * @param archiveData the .arcd file
+     * @param manifest the .dmanifest file
+     * @return the archive or null if any of the files are missing or have another version
+     */
+    static PreviousArchive load(File archiveIndex, File archiveData, File manifest) throws IOException {
+        if (!archiveIndex.isFile() || !archiveData.isFile() || !manifest.isFile()) {
+            return null;
+        }
+        PreviousArchive archive = new PreviousArchive();
+
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(archiveIndex.toPath()));
+        if (index.remaining() < 48 || index.getInt() != ArchiveBuilder.VERSION) {
+            return null;
+        }
+        index.getInt(); // Pad
+        index.getLong(); // UserData
+        int entryCount = index.getInt();
+        int entryOffset = index.getInt();
+        int hashOffset = index.getInt();
+        archive.hashLength = index.getInt();
+        archive.archiveIdentifier = new byte[ArchiveBuilder.MD5_HASH_DIGEST_BYTE_LENGTH];
+        index.get(archive.archiveIdentifier);
+        if (archive.hashLength > ArchiveBuilder.HASH_MAX_LENGTH
+                || hashOffset + (long) entryCount * ArchiveBuilder.HASH_MAX_LENGTH > index.capacity()
+                || entryOffset + (long) entryCount * 16 > index.capacity()) {
+            return null;
+        }
+        for (int i = 0; i < entryCount; ++i) {
+            byte[] hash = new byte[archive.hashLength];
+            index.position(hashOffset + i * ArchiveBuilder.HASH_MAX_LENGTH);
+            index.get(hash);
+            index.position(entryOffset + i * 16);
+            IndexEntry entry = new IndexEntry(index.getInt(), index.getInt(), index.getInt(), index.getInt());
+            archive.indexEntries.put(ManifestBuilder.CryptographicOperations.hexdigest(hash), entry);
+        }
+
+        ManifestFile manifestFile = ManifestFile.parseFrom(Files.readAllBytes(manifest.toPath()));
+        if (!Arrays.equals(manifestFile.getArchiveIdentifier().toByteArray(), archive.archiveIdentifier)) {
+            return null;
+        }
+        ManifestData manifestData = ManifestData.parseFrom(manifestFile.getData());
+        for (ResourceEntry entry : manifestData.getResourcesList()) {
+            archive.resourceEntries.put(entry.getUrl(), entry);
+        }
+
+        archive.archiveData = new RandomAccessFile(archiveData, "r");
+        return archive;
+    }
+
+    /**
+     * @return the MD5 of the previous archive index
+     */
+    byte[] getArchiveIdentifier() {
+        return archiveIdentifier;
+    }
+
+    /**
+     * @return length of the resource hashes in the previous archive
+     */
+    int getHashLength() {
+        return hashLength;
+    }
+
+    /**
+     * Get the manifest entry of a resource
+     * @param url normalised path of the resource
+     * @return the entry or null if the resource wasn't in the previous manifest
+     */
+    ResourceEntry getResourceEntry(String url) {
+        return resourceEntries.get(url);
+    }
+
+    /**
+     * Get the index entry of a resource
+     * @param hash the hash of the stored resource data
+     * @return the entry or null if the resource wasn't bundled in the previous archive
+     */
+    IndexEntry getIndexEntry(byte[] hash) {
+        return indexEntries.get(ManifestBuilder.CryptographicOperations.hexdigest(hash));
+    }
+
+    /**
+     * Copy the stored data of an entry to the current position of a channel
+     * @param entry entry to copy
+     * @param target channel to copy to
+     */
+    void transferTo(IndexEntry entry, FileChannel target) throws IOException {
+        FileChannel source = archiveData.getChannel();
+        long position = entry.offset;
+        long remaining = entry.getStoredSize();
+        if (position + remaining > source.size()) {
+            throw new IOException("Previous archive data is truncated");
+        }
+        while (remaining > 0) {
+            long transferred = source.transferTo(position, remaining, target);
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    void close() throws IOException {
+        archiveData.close();
+    }
+}
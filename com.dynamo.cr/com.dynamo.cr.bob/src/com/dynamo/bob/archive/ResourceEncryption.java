@@ -28,12 +28,26 @@ public class ResourceEncryption {
 		public byte[] encrypt(byte[] resource) throws Exception {
 			return Crypt.encryptCTR(resource, KEY);
 		}
+
+		public byte[] decrypt(byte[] resource) throws Exception {
+			return Crypt.decryptCTR(resource, KEY);
+		}
 	}
 
 	private static ResourceEncryptionPlugin encryptionPlugin;
 
 	private static DefaultResourceEncryption defaultEncryption = new DefaultResourceEncryption();
 
+	/**
+	 * Get the name of the encryption used for resources, which changes when
+	 * a custom encryption plugin is added or removed
+	 * @return Name of the encryption
+	 */
+	public static String getName() throws CompileExceptionError {
+		ResourceEncryptionPlugin encryptionPlugin = PluginScanner.getOrCreatePlugin("com.dynamo.bob.archive", ResourceEncryptionPlugin.class);
+		return encryptionPlugin == null ? "default" : encryptionPlugin.getClass().getName();
+	}
+
 	/**
 	 * Encrypt a resource
 	 * @param resource Bytes of resource data to encrypt
@@ -54,4 +68,23 @@ public class ResourceEncryption {
 			throw new CompileExceptionError("Unable to encrypt resource", e);
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Decrypt a resource encrypted with the default encryption. Resources
+	 * encrypted by a custom encryption plugin can't be decrypted.
+	 * @param resource Bytes of encrypted resource data
+	 * @return Bytes of decrypted resource data or null if a custom encryption plugin is used
+	 */
+	public static byte[] decrypt(byte[] resource) throws CompileExceptionError {
+		ResourceEncryptionPlugin encryptionPlugin = PluginScanner.getOrCreatePlugin("com.dynamo.bob.archive", ResourceEncryptionPlugin.class);
+		if (encryptionPlugin != null) {
+			return null;
+		}
+		try {
+			return defaultEncryption.decrypt(resource);
+		}
+		catch (Exception e) {
+			throw new CompileExceptionError("Unable to decrypt resource", e);
+		}
+	}
+}
@@ -139,6 +139,15 @@ public class PublisherSettings {
         return this.getValue("liveupdate", "zip-filepath");
     }
 
+    public void setZipStoreCompressed(boolean value) {
+        this.setValue("liveupdate", "zip-store-compressed", value ? "true" : null);
+    }
+
+    public boolean getZipStoreCompressed() {
+        String value = this.getValue("liveupdate", "zip-store-compressed");
+        return "true".equals(value) || "1".equals(value);
+    }
+
     private static PublisherSettings doLoad(InputStream in) throws IOException, ParseException {
         PublisherSettings settings = new PublisherSettings();
         BufferedReader reader = new BufferedReader(new InputStreamReader(in));
@@ -14,21 +14,34 @@
 
 package com.dynamo.bob.archive.publisher;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.IOUtils;
 
 import com.dynamo.bob.CompileExceptionError;
+import com.dynamo.bob.archive.ArchiveEntry;
 import com.dynamo.bob.fs.IResource;
 import com.dynamo.bob.util.FileUtil;
 
@@ -37,6 +50,19 @@ public class ZipPublisher extends Publisher {
     private File resourcePackZip = null;
     private String projectRoot = null;
     private String filename = null;
+    private int maxThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * An entry which has been prepared to be written to the zip archive.
+     * Stored entries are copied from the file when written, deflated
+     * entries keep the deflated data until written.
+     */
+    private static class PreparedEntry {
+        File file;
+        long crc;
+        long size;
+        byte[] deflated;
+    }
 
     public ZipPublisher(String projectRoot, PublisherSettings settings) {
         super(settings);
@@ -48,6 +74,124 @@ public class ZipPublisher extends Publisher {
         this.filename = filename;
     }
 
+    /**
+     * Set the number of threads used to deflate the entries when the
+     * entries are written with zip-store-compressed
+     */
+    public void setMaxThreads(int maxThreads) {
+        this.maxThreads = Math.max(1, maxThreads);
+    }
+
+    private static boolean isCompressed(ArchiveEntry archiveEntry) {
+        return (archiveEntry.getFlags() & (ArchiveEntry.FLAG_COMPRESSED | ArchiveEntry.FLAG_ENCRYPTED)) != 0;
+    }
+
+    private static PreparedEntry prepareEntry(File file, boolean compressed) throws IOException {
+        PreparedEntry entry = new PreparedEntry();
+        entry.file = file;
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        if (compressed) {
+            // Compressed or encrypted data doesn't deflate, it is stored and
+            // only read here to calculate the checksum
+            try (InputStream is = new FileInputStream(file)) {
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    crc.update(buffer, 0, n);
+                    entry.size += n;
+                }
+            }
+        } else {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (InputStream is = new FileInputStream(file); DeflaterOutputStream os = new DeflaterOutputStream(bos, deflater)) {
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    crc.update(buffer, 0, n);
+                    os.write(buffer, 0, n);
+                    entry.size += n;
+                }
+            } finally {
+                deflater.end();
+            }
+            // Keep the deflated data only if it is smaller
+            if (bos.size() < entry.size) {
+                entry.deflated = bos.toByteArray();
+            }
+        }
+        entry.crc = crc.getValue();
+        return entry;
+    }
+
+    private static PreparedEntry waitForEntry(Future<PreparedEntry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating the zip archive", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void writeZip(File zipFile) throws IOException {
+        FileOutputStream resourcePackOutputStream = new FileOutputStream(zipFile);
+        ZipOutputStream zipOutputStream = new ZipOutputStream(resourcePackOutputStream);
+        try {
+            for (File fhandle : this.getEntries().keySet()) {
+                ZipEntry currentEntry = new ZipEntry(fhandle.getName());
+                zipOutputStream.putNextEntry(currentEntry);
+                FileUtil.writeToStream(fhandle, zipOutputStream);
+                zipOutputStream.closeEntry();
+            }
+        } finally {
+            IOUtils.closeQuietly(zipOutputStream);
+        }
+    }
+
+    // The entries are checksummed and deflated in parallel and then written
+    // in name order, one at a time. Already compressed or encrypted entries
+    // are stored and copied straight from their files to the zip archive.
+    // At most maxPending deflated entries are kept in memory while waiting
+    // to be written.
+    private void writeZipStoreCompressed(File zipFile) throws IOException {
+        List<Map.Entry<File, ArchiveEntry>> entries = new ArrayList<>(this.getEntries().entrySet());
+        entries.sort(Comparator.comparing((Map.Entry<File, ArchiveEntry> e) -> e.getKey().getName()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(maxThreads, (r) -> {
+            Thread thread = new Thread(r, "ZipPublisher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final int maxPending = maxThreads * 4;
+        ArrayDeque<Future<PreparedEntry>> pending = new ArrayDeque<>();
+        int next = 0;
+        try (ZipStreamWriter writer = new ZipStreamWriter(zipFile)) {
+            for (int i = 0; i < entries.size(); ++i) {
+                while (next < entries.size() && pending.size() < maxPending) {
+                    final Map.Entry<File, ArchiveEntry> nextEntry = entries.get(next++);
+                    final boolean compressed = isCompressed(nextEntry.getValue());
+                    pending.add(executor.submit(() -> prepareEntry(nextEntry.getKey(), compressed)));
+                }
+                PreparedEntry entry = waitForEntry(pending.poll());
+                if (entry.deflated != null) {
+                    writer.addDeflated(entry.file.getName(), entry.file.lastModified(), entry.deflated, entry.crc, entry.size);
+                } else {
+                    writer.addStored(entry.file.getName(), entry.file, entry.crc);
+                }
+            }
+            writer.finish();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Override
     public void Publish() throws CompileExceptionError {
         try {
@@ -59,21 +203,16 @@ public class ZipPublisher extends Publisher {
                 outputName = this.filename;
             }
 
-            FileOutputStream resourcePackOutputStream = new FileOutputStream(this.resourcePackZip);
-            ZipOutputStream zipOutputStream = new ZipOutputStream(resourcePackOutputStream);
             try {
-                for (File fhandle : this.getEntries().keySet()) {
-                    ZipEntry currentEntry = new ZipEntry(fhandle.getName());
-                    zipOutputStream.putNextEntry(currentEntry);
-                    FileUtil.writeToStream(fhandle, zipOutputStream);
-                    zipOutputStream.closeEntry();
+                if (this.getPublisherSettings().getZipStoreCompressed()) {
+                    writeZipStoreCompressed(this.resourcePackZip);
+                } else {
+                    writeZip(this.resourcePackZip);
                 }
             } catch (FileNotFoundException exception) {
                 throw new CompileExceptionError("Unable to find required file for liveupdate resources: " + exception.getMessage(), exception);
             } catch (IOException exception) {
                 throw new CompileExceptionError("Unable to write to zip archive for liveupdate resources: " + exception.getMessage(), exception);
-            } finally {
-                IOUtils.closeQuietly(zipOutputStream);
             }
 
             File exportFilehandle = new File(this.getPublisherSettings().getZipFilepath(), outputName);
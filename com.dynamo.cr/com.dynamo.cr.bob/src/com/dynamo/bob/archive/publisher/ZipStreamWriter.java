@@ -0,0 +1,250 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.archive.publisher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a zip file one entry at a time, with the central directory created
+ * when the writer is finished. Stored entries are copied straight from their
+ * files to the zip file, deflated entries are written from data which has
+ * already been deflated. Zip64 records are added when the sizes, offsets or
+ * the number of entries don't fit the regular records.
+ */
+class ZipStreamWriter implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final short ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    static final short METHOD_STORED = 0;
+    static final short METHOD_DEFLATED = 8;
+
+    private static final short VERSION = 20;
+    private static final short VERSION_ZIP64 = 45;
+    private static final short FLAG_UTF8 = 0x0800;
+
+    private static class Entry {
+        byte[] name;
+        short method;
+        int dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        long offset;
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final List<Entry> entries = new ArrayList<>();
+
+    ZipStreamWriter(File zipFile) throws IOException {
+        this.file = new RandomAccessFile(zipFile, "rw");
+        this.file.setLength(0);
+        this.channel = file.getChannel();
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    static int toDosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25
+             | time.getMonthValue() << 21
+             | time.getDayOfMonth() << 16
+             | time.getHour() << 11
+             | time.getMinute() << 5
+             | time.getSecond() >> 1;
+    }
+
+    private Entry writeLocalHeader(String name, short method, long lastModified, long crc, long compressedSize, long size) throws IOException {
+        Entry entry = new Entry();
+        entry.name = name.getBytes(StandardCharsets.UTF_8);
+        entry.method = method;
+        entry.dosTime = toDosTime(lastModified);
+        entry.crc = crc;
+        entry.compressedSize = compressedSize;
+        entry.size = size;
+        entry.offset = channel.position();
+        entries.add(entry);
+
+        boolean zip64 = compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+        ByteBuffer header = allocate(30 + entry.name.length + (zip64 ? 20 : 0));
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort(zip64 ? VERSION_ZIP64 : VERSION);
+        header.putShort(FLAG_UTF8);
+        header.putShort(method);
+        header.putInt(entry.dosTime);
+        header.putInt((int) crc);
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : compressedSize));
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : size));
+        header.putShort((short) entry.name.length);
+        header.putShort((short) (zip64 ? 20 : 0));
+        header.put(entry.name);
+        if (zip64) {
+            header.putShort(ZIP64_EXTRA_ID);
+            header.putShort((short) 16);
+            header.putLong(size);
+            header.putLong(compressedSize);
+        }
+        write(header);
+        return entry;
+    }
+
+    /**
+     * Add an entry which is copied uncompressed from a file
+     * @param name Name of the entry
+     * @param source File with the entry data
+     * @param crc CRC-32 of the file
+     */
+    void addStored(String name, File source, long crc) throws IOException {
+        try (RandomAccessFile sourceFile = new RandomAccessFile(source, "r")) {
+            FileChannel sourceChannel = sourceFile.getChannel();
+            long size = sourceChannel.size();
+            writeLocalHeader(name, METHOD_STORED, source.lastModified(), crc, size, size);
+            long position = 0;
+            while (position < size) {
+                position += sourceChannel.transferTo(position, size - position, channel);
+            }
+        }
+    }
+
+    /**
+     * Add an entry with data which has already been deflated
+     * @param name Name of the entry
+     * @param lastModified Modification time of the entry
+     * @param deflated The deflated data
+     * @param crc CRC-32 of the uncompressed data
+     * @param size Size of the uncompressed data
+     */
+    void addDeflated(String name, long lastModified, byte[] deflated, long crc, long size) throws IOException {
+        writeLocalHeader(name, METHOD_DEFLATED, lastModified, crc, deflated.length, size);
+        ByteBuffer data = ByteBuffer.wrap(deflated);
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    /**
+     * Write the central directory
+     */
+    void finish() throws IOException {
+        long centralDirectoryOffset = channel.position();
+        for (Entry entry : entries) {
+            boolean sizes64 = entry.compressedSize >= ZIP64_MAGIC || entry.size >= ZIP64_MAGIC;
+            boolean offset64 = entry.offset >= ZIP64_MAGIC;
+            int extraLength = (sizes64 || offset64) ? 4 + (sizes64 ? 16 : 0) + (offset64 ? 8 : 0) : 0;
+            short version = extraLength > 0 ? VERSION_ZIP64 : VERSION;
+
+            ByteBuffer header = allocate(46 + entry.name.length + extraLength);
+            header.putInt(CENTRAL_HEADER_SIGNATURE);
+            header.putShort(version); // made by
+            header.putShort(version); // needed to extract
+            header.putShort(FLAG_UTF8);
+            header.putShort(entry.method);
+            header.putInt(entry.dosTime);
+            header.putInt((int) entry.crc);
+            header.putInt((int) (sizes64 ? ZIP64_MAGIC : entry.compressedSize));
+            header.putInt((int) (sizes64 ? ZIP64_MAGIC : entry.size));
+            header.putShort((short) entry.name.length);
+            header.putShort((short) extraLength);
+            header.putShort((short) 0); // comment length
+            header.putShort((short) 0); // disk number
+            header.putShort((short) 0); // internal attributes
+            header.putInt(0); // external attributes
+            header.putInt((int) (offset64 ? ZIP64_MAGIC : entry.offset));
+            header.put(entry.name);
+            if (extraLength > 0) {
+                header.putShort(ZIP64_EXTRA_ID);
+                header.putShort((short) (extraLength - 4));
+                if (sizes64) {
+                    header.putLong(entry.size);
+                    header.putLong(entry.compressedSize);
+                }
+                if (offset64) {
+                    header.putLong(entry.offset);
+                }
+            }
+            write(header);
+        }
+        long centralDirectoryEnd = channel.position();
+        long centralDirectorySize = centralDirectoryEnd - centralDirectoryOffset;
+
+        boolean zip64 = entries.size() >= ZIP64_MAGIC_COUNT || centralDirectoryOffset >= ZIP64_MAGIC || centralDirectorySize >= ZIP64_MAGIC;
+        if (zip64) {
+            ByteBuffer end64 = allocate(56 + 20);
+            end64.putInt(ZIP64_END_SIGNATURE);
+            end64.putLong(44); // size of the remaining record
+            end64.putShort(VERSION_ZIP64);
+            end64.putShort(VERSION_ZIP64);
+            end64.putInt(0); // disk number
+            end64.putInt(0); // disk with the central directory
+            end64.putLong(entries.size());
+            end64.putLong(entries.size());
+            end64.putLong(centralDirectorySize);
+            end64.putLong(centralDirectoryOffset);
+            // locator
+            end64.putInt(ZIP64_LOCATOR_SIGNATURE);
+            end64.putInt(0); // disk with the zip64 end record
+            end64.putLong(centralDirectoryEnd);
+            end64.putInt(1); // number of disks
+            write(end64);
+        }
+
+        ByteBuffer end = allocate(22);
+        end.putInt(END_SIGNATURE);
+        end.putShort((short) 0); // disk number
+        end.putShort((short) 0); // disk with the central directory
+        end.putShort((short) Math.min(entries.size(), ZIP64_MAGIC_COUNT));
+        end.putShort((short) Math.min(entries.size(), ZIP64_MAGIC_COUNT));
+        end.putInt((int) Math.min(centralDirectorySize, ZIP64_MAGIC));
+        end.putInt((int) Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+        end.putShort((short) 0); // comment length
+        write(end);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
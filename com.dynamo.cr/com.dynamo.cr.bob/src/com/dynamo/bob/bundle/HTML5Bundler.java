@@ -14,20 +14,24 @@
 
 package com.dynamo.bob.bundle;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
@@ -39,11 +43,13 @@ import com.dynamo.bob.Bob;
 import com.dynamo.bob.CompileExceptionError;
 import com.dynamo.bob.Platform;
 import com.dynamo.bob.Project;
+import com.dynamo.bob.archive.ManifestBuilder;
 import com.dynamo.bob.logging.Logger;
 import com.dynamo.bob.util.StringUtil;
 import com.dynamo.bob.fs.IResource;
 import com.dynamo.bob.pipeline.ExtenderUtil;
 import com.dynamo.bob.util.BobProjectProperties;
+import com.dynamo.bob.util.ContentDefinedChunker;
 
 @BundlerParams(platforms = {Platform.JsWeb, Platform.WasmWeb})
 public class HTML5Bundler implements IBundler {
@@ -51,7 +57,7 @@ public class HTML5Bundler implements IBundler {
 
     private static final String SplitFileDir = "archive";
     private static final String SplitFileJson = "archive_files.json";
-    private static int SplitFileSegmentSize = 2 * 1024 * 1024;
+    private static final int SplitFileSegmentSize = 2 * 1024 * 1024;
 
     public static final String MANIFEST_NAME = "engine_template.html";
 
@@ -150,46 +156,96 @@ public class HTML5Bundler implements IBundler {
         properties.put("DEFOLD_HAS_WASM_ENGINE", architectures.contains(Platform.WasmWeb));
     }
 
-    class SplitFile {
+    static class SplitFile {
+
+        /**
+         * A piece of the split file
+         */
+        static class Segment {
+            final String name;
+            final long offset;
+            final long size;
+
+            Segment(String name, long offset, long size) {
+                this.name = name;
+                this.offset = offset;
+                this.size = size;
+            }
+        }
+
         private File source;
-        private List<File> subdivisions;
+        private List<Segment> segments;
 
         SplitFile(File src) {
             source = src;
-            subdivisions = new ArrayList<File>();
+            segments = new ArrayList<Segment>();
         }
 
-        private static String insertNumberBeforeExtension(String filePath, int number) {
+        private static String insertBeforeExtension(String filePath, String insert) {
             int dotIndex = filePath.indexOf('.');
             if (dotIndex > 0) {
                 String baseName = filePath.substring(0, dotIndex);
                 String extension = filePath.substring(dotIndex);
-                return baseName + number + extension;
+                return baseName + insert + extension;
             } else {
-                return filePath + number;
+                return filePath + insert;
             }
         }
 
-        void performSplit(File destDir) throws IOException {
-            InputStream input = null;
-            try {
-                input = new BufferedInputStream(new FileInputStream(source));
-                long remaining = source.length();
-                while (0 < remaining) {
-                    int thisRead = (int)Math.min(SplitFileSegmentSize, remaining);
-
-                    byte[] readBuffer = new byte[thisRead];
-                    long bytesRead = input.read(readBuffer, 0, thisRead);
-                    assert(bytesRead == thisRead);
-                    File output = new File(destDir, insertNumberBeforeExtension(source.getName(), subdivisions.size()));
-                    writeChunk(output, readBuffer);
-                    subdivisions.add(output);
-
-                    remaining -= thisRead;
+        /**
+         * Decide where the file is split and what the pieces are called.
+         * With content defined segments the boundaries are found with a
+         * rolling hash and the pieces are named after the SHA-1 of their
+         * content, otherwise the pieces have a fixed size and are numbered.
+         */
+        void createSegments(int segmentSize, boolean contentDefined) throws IOException {
+            long size = source.length();
+            if (!contentDefined) {
+                for (long offset = 0; offset < size; offset += segmentSize) {
+                    String name = insertBeforeExtension(source.getName(), Integer.toString(segments.size()));
+                    segments.add(new Segment(name, offset, Math.min(segmentSize, size - offset)));
                 }
+                return;
+            }
+            ContentDefinedChunker chunker = new ContentDefinedChunker(segmentSize);
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            // the file is streamed once, each chunk is hashed while it is in the read buffer
+            try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                long[] offset = new long[] { 0 };
+                chunker.split(channel, chunk -> {
+                    long length = chunk.remaining();
+                    digest.update(chunk);
+                    String hash = ManifestBuilder.CryptographicOperations.hexdigest(digest.digest());
+                    segments.add(new Segment(insertBeforeExtension(source.getName(), "_" + hash), offset[0], length));
+                    offset[0] += length;
+                });
             }
-            finally {
-                IOUtils.closeQuietly(input);
+        }
+
+        List<Segment> getSegments() {
+            return segments;
+        }
+
+        /**
+         * Copy a piece of the file to the destination directory. The data is
+         * transferred between the files without being copied to the heap.
+         */
+        void writeSegment(Segment segment, File destDir) throws IOException {
+            File dest = new File(destDir, segment.name);
+            try (FileChannel input = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                 FileChannel output = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = segment.offset;
+                long remaining = segment.size;
+                while (remaining > 0) {
+                    long transferred = input.transferTo(position, remaining, output);
+                    position += transferred;
+                    remaining -= transferred;
+                }
             }
         }
 
@@ -203,34 +259,18 @@ public class HTML5Bundler implements IBundler {
 
             generator.writeFieldName("pieces");
             generator.writeStartArray();
-            int offset = 0;
-            for (File split : this.subdivisions) {
-                String path = split.getName();
-
+            for (Segment segment : this.segments) {
                 generator.writeStartObject();
                 generator.writeFieldName("name");
-                generator.writeString(path);
+                generator.writeString(segment.name);
                 generator.writeFieldName("offset");
-                generator.writeNumber(offset);
+                generator.writeNumber(segment.offset);
                 generator.writeEndObject();
-
-                offset += split.length();
             }
             generator.writeEndArray();
 
             generator.writeEndObject();
         }
-
-        void writeChunk(File dest, byte[] data) throws IOException {
-            OutputStream output = null;
-            try {
-                output = new BufferedOutputStream(new FileOutputStream(dest));
-                output.write(data);
-            }
-            finally {
-                IOUtils.closeQuietly(output);
-            }
-        }
     }
 
     URL getResource(String name) {
@@ -265,7 +305,7 @@ public class HTML5Bundler implements IBundler {
         FileUtils.deleteDirectory(appDir);
         File splitDir = new File(appDir, SplitFileDir);
         splitDir.mkdirs();
-        createSplitFiles(buildDir, splitDir);
+        createSplitFiles(project, buildDir, splitDir);
 
         BundleHelper.throwIfCanceled(canceled);
         // Copy bundle resources into bundle directory
@@ -352,12 +392,64 @@ public class HTML5Bundler implements IBundler {
         }
     }
 
-    private void createSplitFiles(File buildDir, File targetDir) throws IOException {
+    private static void waitFor(List<Future<?>> futures) throws IOException {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while splitting the archive files", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void createSplitFiles(Project project, File buildDir, File targetDir) throws IOException {
+        BobProjectProperties projectProperties = project.getProjectProperties();
+        int segmentSize = projectProperties.getIntValue("html5", "archive_segment_size", SplitFileSegmentSize / 1024) * 1024;
+        boolean contentDefined = projectProperties.getBooleanValue("html5", "archive_content_defined_segments", false);
+        if (segmentSize <= 0) {
+            throw new IOException("Invalid html5.archive_segment_size: " + segmentSize / 1024);
+        }
+
         ArrayList<SplitFile> splitFiles = new ArrayList<SplitFile>();
         for (String name : BundleHelper.getArchiveFilenames(buildDir)) {
-            SplitFile toSplit = new SplitFile(new File(buildDir, name));
-            toSplit.performSplit(targetDir);
-            splitFiles.add(toSplit);
+            splitFiles.add(new SplitFile(new File(buildDir, name)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(project.getMaxCpuThreads(), (r) -> {
+            Thread thread = new Thread(r, "HTML5Bundler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            // find the segments of all files and then write the segments
+            List<Future<?>> futures = new ArrayList<>();
+            for (SplitFile splitFile : splitFiles) {
+                futures.add(executor.submit(() -> { splitFile.createSegments(segmentSize, contentDefined); return null; }));
+            }
+            waitFor(futures);
+
+            futures.clear();
+            // identical content defined segments are written once
+            Set<String> names = new HashSet<>();
+            for (SplitFile splitFile : splitFiles) {
+                for (SplitFile.Segment segment : splitFile.getSegments()) {
+                    if (names.add(segment.name)) {
+                        futures.add(executor.submit(() -> { splitFile.writeSegment(segment, targetDir); return null; }));
+                    }
+                }
+            }
+            waitFor(futures);
+        } finally {
+            executor.shutdownNow();
         }
         createSplitFilesJson(splitFiles, targetDir);
     }
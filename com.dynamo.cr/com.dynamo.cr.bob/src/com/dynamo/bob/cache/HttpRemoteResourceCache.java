@@ -0,0 +1,123 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Remote resource cache accessed with HEAD, GET and PUT requests on
+ * {remoteCacheUrl}/{key}.
+ * The connections are never explicitly disconnected and all responses are
+ * fully read, which lets HttpURLConnection keep the connections alive and
+ * reuse them for the following requests.
+ */
+public class HttpRemoteResourceCache implements IRemoteResourceCache {
+
+	private String remoteCacheUrl;
+
+	private volatile String authorization;
+
+	public HttpRemoteResourceCache(String remoteCacheUrl) {
+		this.remoteCacheUrl = remoteCacheUrl;
+	}
+
+	@Override
+	public void setAuthentication(String user, String pass) {
+		String userAndPass = user + ":" + pass;
+		authorization = "Basic " + Base64.getEncoder().encodeToString(userAndPass.getBytes());
+	}
+
+	private HttpURLConnection openConnection(String key, String method) throws IOException {
+		URL url = new URL(remoteCacheUrl + "/" + key);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod(method);
+		if (authorization != null) {
+			connection.setRequestProperty("Authorization", authorization);
+		}
+		return connection;
+	}
+
+	// read the rest of the response so that the connection can be reused
+	private void finish(HttpURLConnection connection, int code) throws IOException {
+		InputStream is = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (is != null) {
+			try {
+				IOUtils.skip(is, Long.MAX_VALUE);
+			} finally {
+				is.close();
+			}
+		}
+	}
+
+	@Override
+	public boolean exists(String key) throws IOException {
+		HttpURLConnection connection = openConnection(key, "HEAD");
+		int code = connection.getResponseCode();
+		finish(connection, code);
+		return code >= 200 && code < 400;
+	}
+
+	@Override
+	public boolean download(String key, File file) throws IOException {
+		HttpURLConnection connection = openConnection(key, "GET");
+		int code = connection.getResponseCode();
+		if (code == 404) {
+			finish(connection, code);
+			return false;
+		}
+		if (code >= 400) {
+			finish(connection, code);
+			throw new IOException(String.format("Status %d: Failed to download %s", code, connection.getURL()));
+		}
+		// download to a temporary file so that other builds sharing the
+		// local cache never see a partially written resource
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		try {
+			try (InputStream is = connection.getInputStream()) {
+				Files.copy(is, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+		return true;
+	}
+
+	@Override
+	public void upload(String key, File file) throws IOException {
+		HttpURLConnection connection = openConnection(key, "PUT");
+		connection.setRequestProperty("Content-type", "application/octet-stream");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(file.length());
+		try (OutputStream os = connection.getOutputStream()) {
+			Files.copy(file.toPath(), os);
+		}
+		int code = connection.getResponseCode();
+		finish(connection, code);
+		if ((code < 200) || (code > 202)) {
+			throw new IOException(String.format("Status %d: Failed to upload %s", code, connection.getURL()));
+		}
+	}
+}
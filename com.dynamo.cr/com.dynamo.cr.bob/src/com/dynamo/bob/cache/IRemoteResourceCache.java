@@ -0,0 +1,55 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.cache;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Remote storage of cached resources.
+ * The methods are called concurrently from the resource cache worker threads
+ * and must be thread safe.
+ */
+public interface IRemoteResourceCache {
+
+	/**
+	 * Set authentication information to use for all requests
+	 * @param user
+	 * @param pass
+	 */
+	void setAuthentication(String user, String pass);
+
+	/**
+	 * Check if a resource exists in the remote cache
+	 * @param key Key of the resource
+	 * @return true if the resource exists
+	 */
+	boolean exists(String key) throws IOException;
+
+	/**
+	 * Download a resource from the remote cache
+	 * @param key Key of the resource
+	 * @param file File to write the resource to
+	 * @return true if the resource was downloaded, false if it doesn't exist
+	 */
+	boolean download(String key, File file) throws IOException;
+
+	/**
+	 * Upload a resource to the remote cache
+	 * @param key Key of the resource
+	 * @param file File with the resource data
+	 */
+	void upload(String key, File file) throws IOException;
+}
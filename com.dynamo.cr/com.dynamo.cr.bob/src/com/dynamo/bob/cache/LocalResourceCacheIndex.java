@@ -0,0 +1,232 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import com.dynamo.bob.logging.Logger;
+import com.dynamo.bob.util.DigestTable;
+
+/**
+ * Index of the entries in the local resource cache with their size and time
+ * of last access, used to evict the least recently used entries when the
+ * cache grows larger than its budget.
+ * The index is stored in the cache directory. It is rebuilt from the files
+ * in the cache directory if it is missing or unreadable. Entries stored in
+ * the flat layout used by older versions are moved into their shard when
+ * the index is loaded.
+ */
+class LocalResourceCacheIndex {
+
+	private static Logger logger = Logger.getLogger(LocalResourceCacheIndex.class.getName());
+
+	// "BOBC"
+	private static final int MAGIC = 0x424f4243;
+	private static final int VERSION = 1;
+	private static final byte[] NO_DIGEST = new byte[0];
+
+	public static final String INDEX_FILE_NAME = "index";
+
+	// evict down to this fraction of the budget to not evict on every put
+	private static final double EVICTION_TARGET = 0.9;
+
+	private File cacheDir;
+
+	private File indexFile;
+
+	private Function<String, File> fileFromKey;
+
+	// size and last access time of each cache key
+	private DigestTable entries = new DigestTable(MAGIC, VERSION, 2);
+
+	// last access time of each cache key, least recently used first
+	private LinkedHashMap<String, Long> accessOrder = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long size = 0;
+
+	// entries accessed after this are in use by the current build and never evicted
+	private long sessionStart;
+
+	LocalResourceCacheIndex(File cacheDir, Function<String, File> fileFromKey) {
+		this.cacheDir = cacheDir;
+		this.indexFile = new File(cacheDir, INDEX_FILE_NAME);
+		this.fileFromKey = fileFromKey;
+		this.sessionStart = System.currentTimeMillis();
+	}
+
+	synchronized void load() {
+		boolean loaded = false;
+		try {
+			loaded = entries.load(indexFile);
+		} catch (IOException e) {
+			logger.warning("Unable to load the local resource cache index: %s", e.getMessage());
+		}
+		if (!loaded) {
+			rebuild();
+		}
+		migrateFlatEntries();
+		size = 0;
+		List<String> keys = new ArrayList<>(entries.getPaths());
+		keys.sort(Comparator.comparingLong(key -> entries.get(key).values[1]));
+		accessOrder.clear();
+		for (String key : keys) {
+			DigestTable.Entry entry = entries.get(key);
+			size += entry.values[0];
+			accessOrder.put(key, entry.values[1]);
+		}
+	}
+
+	// move the entries of the flat layout, {cacheDir}/{key}, into their shard
+	private void migrateFlatEntries() {
+		File[] files = cacheDir.listFiles(f -> f.isFile() && !f.getName().startsWith(INDEX_FILE_NAME));
+		if (files == null || files.length == 0) {
+			return;
+		}
+		int migrated = 0;
+		for (File file : files) {
+			String key = file.getName();
+			File shardFile = fileFromKey.apply(key);
+			try {
+				if (shardFile.exists()) {
+					Files.delete(file.toPath());
+				} else {
+					shardFile.getParentFile().mkdirs();
+					Files.move(file.toPath(), shardFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					entries.put(key, NO_DIGEST, shardFile.length(), shardFile.lastModified());
+					++migrated;
+				}
+			} catch (IOException e) {
+				logger.warning("Unable to move '%s' into the local resource cache: %s", file, e.getMessage());
+				file.delete();
+			}
+		}
+		logger.info("Moved %d resources of the flat layout into the local resource cache shards", migrated);
+	}
+
+	private void rebuild() {
+		entries = new DigestTable(MAGIC, VERSION, 2);
+		try (Stream<Path> paths = Files.walk(cacheDir.toPath(), 3)) {
+			paths.filter(p -> p.getNameCount() - cacheDir.toPath().getNameCount() == 3 && Files.isRegularFile(p)).forEach(p -> {
+				File file = p.toFile();
+				entries.put(file.getName(), NO_DIGEST, file.length(), file.lastModified());
+			});
+		} catch (IOException e) {
+			logger.warning("Unable to list the local resource cache: %s", e.getMessage());
+		}
+	}
+
+	synchronized void save() {
+		try {
+			entries.save(indexFile);
+		} catch (IOException e) {
+			logger.warning("Unable to save the local resource cache index: %s", e.getMessage());
+		}
+	}
+
+	/**
+	 * Add an entry, or replace an existing entry
+	 * @param key Cache key
+	 * @param entrySize Size of the cached file
+	 */
+	synchronized void add(String key, long entrySize) {
+		DigestTable.Entry prev = entries.get(key);
+		if (prev != null) {
+			size -= prev.values[0];
+		}
+		long now = System.currentTimeMillis();
+		entries.put(key, NO_DIGEST, entrySize, now);
+		accessOrder.put(key, now);
+		size += entrySize;
+	}
+
+	/**
+	 * Mark an entry as used
+	 * @param key Cache key
+	 * @param file The cached file, added to the index if it was cached by another process
+	 */
+	synchronized void touch(String key, File file) {
+		DigestTable.Entry entry = entries.get(key);
+		if (entry == null) {
+			add(key, file.length());
+		} else {
+			long now = System.currentTimeMillis();
+			entries.put(key, NO_DIGEST, entry.values[0], now);
+			accessOrder.put(key, now);
+		}
+	}
+
+	/**
+	 * Mark an entry as used if its file exists. Entries used by the current
+	 * build are not evicted, checking and marking the entry together makes
+	 * sure it isn't evicted by another task in between.
+	 * @param key Cache key
+	 * @param file The cached file
+	 * @return true if the file exists
+	 */
+	synchronized boolean touchIfExists(String key, File file) {
+		if (!file.exists()) {
+			return false;
+		}
+		touch(key, file);
+		return true;
+	}
+
+	synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Remove the least recently used entries until the cache is below its budget
+	 * @param maxSize The budget in bytes
+	 * @return Number of evicted entries
+	 */
+	synchronized int evict(long maxSize) {
+		if (size <= maxSize) {
+			return 0;
+		}
+		long targetSize = (long) (maxSize * EVICTION_TARGET);
+		int evicted = 0;
+		Iterator<Map.Entry<String, Long>> it = accessOrder.entrySet().iterator();
+		while (it.hasNext() && size > targetSize) {
+			Map.Entry<String, Long> lru = it.next();
+			if (lru.getValue() >= sessionStart) {
+				// the remaining entries are in use by the current build
+				break;
+			}
+			String key = lru.getKey();
+			File file = fileFromKey.apply(key);
+			if (file.delete() || !file.exists()) {
+				size -= entries.get(key).values[0];
+				entries.remove(key);
+				it.remove();
+				++evicted;
+			}
+		}
+		logger.fine("Evicted %d resources from the local cache", evicted);
+		return evicted;
+	}
+}
@@ -16,71 +16,162 @@ package com.dynamo.bob.cache;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.URL;
-import java.net.MalformedURLException;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.dynamo.bob.util.HttpUtil;
 import com.dynamo.bob.logging.Logger;
 
+/**
+ * Local resource cache, optionally backed by a remote cache.
+ * The local cache stores each entry in a two level sharded directory
+ * {localCacheDir}/ab/cd/abcd... and can be given a size budget. The least
+ * recently used entries are evicted when the cache grows larger than the budget.
+ * Entries stored in the flat {localCacheDir}/abcd... layout of older versions
+ * are moved into their shard when the cache is initialised.
+ * Requests to the remote cache run on a bounded pool of worker threads.
+ * Existence checks of several keys are made concurrently and their results
+ * are remembered for the rest of the build. Uploads run in the background
+ * and are waited for in {@link #flush()}.
+ */
 public class ResourceCache {
 
 	private static Logger logger = Logger.getLogger(ResourceCache.class.getName());
 
+	// HttpURLConnection keeps this many idle connections per host alive,
+	// using as many workers lets all requests reuse a connection
+	private static final int REMOTE_CONNECTIONS = Integer.getInteger("http.maxConnections", 5);
+
 	private String localCacheDir;
 
-	private String remoteCacheUrl;
+	private IRemoteResourceCache remoteCache;
+
+	private ExecutorService remoteExecutor;
+
+	// keys known to exist, or not exist, in the remote cache
+	private Map<String, Boolean> remoteKeys = new ConcurrentHashMap<>();
 
-	private HttpUtil http = new HttpUtil();
+	private List<Future<?>> pendingUploads = new ArrayList<>();
 
 	private boolean enabled = false;
 
+	private LocalResourceCacheIndex localIndex;
+
+	// maximum size of the local cache in bytes, 0 for no limit
+	private long maxLocalCacheSize = 0;
+
+	private AtomicInteger localHits = new AtomicInteger();
+	private AtomicInteger remoteHits = new AtomicInteger();
+	private AtomicInteger misses = new AtomicInteger();
+	private AtomicInteger evictions = new AtomicInteger();
+
 	public ResourceCache() {}
 
 	public void init(String localCacheDir, String remoteCacheUrl) {
 		logger.fine("Initialising resource cache with local cache dir '%s' and remote '%s'", localCacheDir, remoteCacheUrl);
 		this.localCacheDir = localCacheDir;
-		this.remoteCacheUrl = remoteCacheUrl;
 		this.enabled = localCacheDir != null;
+		this.localIndex = null;
+		localHits.set(0);
+		remoteHits.set(0);
+		misses.set(0);
+		evictions.set(0);
 		if (localCacheDir != null) {
 			File f = new File(localCacheDir);
 			if (!f.exists()) {
 				f.mkdirs();
 			}
+			localIndex = new LocalResourceCacheIndex(f, this::fileFromKey);
+			localIndex.load();
 		}
+		setRemoteCache(remoteCacheUrl != null ? new HttpRemoteResourceCache(remoteCacheUrl) : null);
 	}
 
-	private File fileFromKey(String key) {
-		return new File(localCacheDir, key);
+	/**
+	 * Set the remote cache to use together with the local cache
+	 * @param remoteCache Remote cache or null to only use the local cache
+	 */
+	public void setRemoteCache(IRemoteResourceCache remoteCache) {
+		this.remoteCache = remoteCache;
+		this.remoteKeys = new ConcurrentHashMap<>();
+		if (remoteCache != null && remoteExecutor == null) {
+			remoteExecutor = Executors.newFixedThreadPool(REMOTE_CONNECTIONS, (r) -> {
+				Thread thread = new Thread(r, "ResourceCache");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Set the size budget of the local cache
+	 * @param maxLocalCacheSize Maximum size in bytes, 0 for no limit
+	 */
+	public void setMaxLocalCacheSize(long maxLocalCacheSize) {
+		this.maxLocalCacheSize = maxLocalCacheSize;
 	}
 
-	private URL urlFromFile(File file) throws MalformedURLException {
-		return new URL(remoteCacheUrl + "/" + file.getName());
+	private File fileFromKey(String key) {
+		// keys shorter than the shard prefix are padded
+		String shard = key.length() >= 4 ? key : ("0000" + key).substring(key.length());
+		return new File(new File(new File(localCacheDir, shard.substring(0, 2)), shard.substring(2, 4)), key);
 	}
 
-	private void saveToLocalCache(File file, byte[] data) throws IOException {
+	private void saveToLocalCache(String key, File file, byte[] data) throws IOException {
 		logger.fine("Resource '%s' saved to the local cache", file);
+		file.getParentFile().mkdirs();
 		Files.write(file.toPath(), data);
+		localIndex.add(key, data.length);
+		if (maxLocalCacheSize > 0) {
+			evictions.addAndGet(localIndex.evict(maxLocalCacheSize));
+		}
 	}
 
-	private byte[] loadFromLocalCache(File file) throws IOException {
-		if (file.exists()) {
+	private byte[] loadFromLocalCache(String key, File file) throws IOException {
+		if (localIndex.touchIfExists(key, file)) {
 			logger.fine("Resource '%s' loaded from the local cache", file);
 			return Files.readAllBytes(file.toPath());
 		}
 		return null;
 	}
 
-	private void uploadToRemoteCache(File file) throws MalformedURLException {
-		if (remoteCacheUrl == null) {
-			return;
+	private static <T> T waitFor(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
 		}
-		if (!file.exists()) {
-			return;
+	}
+
+	private boolean existsInRemoteCache(String key) throws IOException {
+		Boolean exists = remoteKeys.get(key);
+		if (exists == null) {
+			exists = remoteCache.exists(key);
+			remoteKeys.put(key, exists);
 		}
-		URL url = urlFromFile(file);
-		if (!http.exists(url)) {
-			http.uploadFile(url, file);
+		return exists;
+	}
+
+	private void uploadToRemoteCache(String key, File file) throws IOException {
+		if (!existsInRemoteCache(key)) {
+			remoteCache.upload(key, file);
+			remoteKeys.put(key, true);
 			logger.fine("Resource '%s' uploaded to the remote cache", file);
 		}
 		else {
@@ -88,18 +179,20 @@ public class ResourceCache {
 		}
 	}
 
-	private void downloadFromRemoteCache(File file) throws MalformedURLException {
-		if (remoteCacheUrl == null) {
-			return;
+	private boolean downloadFromRemoteCache(String key, File file) throws IOException {
+		if (Boolean.FALSE.equals(remoteKeys.get(key))) {
+			return false;
 		}
-		URL url = urlFromFile(file);
-		if (http.exists(url)) {
-			http.downloadToFile(url, file);
+		file.getParentFile().mkdirs();
+		boolean downloaded = remoteCache.download(key, file);
+		remoteKeys.put(key, downloaded);
+		if (downloaded) {
 			logger.fine("Resource '%s' downloaded from the remote cache", file);
 		}
 		else {
 			logger.fine("Resource '%s' does not exist in the remote cache", file);
 		}
+		return downloaded;
 	}
 
 	/**
@@ -120,11 +213,14 @@ public class ResourceCache {
 	 * @param pass
 	 */
 	public void setRemoteAuthentication(String user, String pass) {
-		http.setAuthentication(user, pass);
+		if (remoteCache != null) {
+			remoteCache.setAuthentication(user, pass);
+		}
 	}
 
 	/**
 	 * Put data in the resource cache
+	 * The data is uploaded to the remote cache in the background.
 	 * @param key Key to associate data with
 	 * @param data The data to store
 	 */
@@ -139,12 +235,22 @@ public class ResourceCache {
 		}
 
 		logger.fine("Caching resource '%s'", file);
-		saveToLocalCache(file, data);
-		uploadToRemoteCache(file);
+		saveToLocalCache(key, file, data);
+		if (remoteCache != null && !Boolean.TRUE.equals(remoteKeys.get(key))) {
+			Future<?> upload = remoteExecutor.submit(() -> {
+				uploadToRemoteCache(key, file);
+				return null;
+			});
+			synchronized (pendingUploads) {
+				pendingUploads.add(upload);
+			}
+		}
 	}
 
 	/**
 	 * Get data from the resource cache
+	 * A resource which can't be read, for instance because it was removed
+	 * by another process, is treated as missing.
 	 * @param key Key associated with the data to get
 	 * @return The data or null if no data exists in the cache
 	 */
@@ -153,15 +259,24 @@ public class ResourceCache {
 			return null;
 		}
 		File file = fileFromKey(key);
-		if (!file.exists()) {
-			downloadFromRemoteCache(file);
-		}
+		try {
+			if (!file.exists() && remoteCache != null) {
+				if (waitFor(remoteExecutor.submit(() -> downloadFromRemoteCache(key, file)))) {
+					localIndex.add(key, file.length());
+				}
+			}
 
-		return loadFromLocalCache(file);
+			return loadFromLocalCache(key, file);
+		} catch (IOException e) {
+			logger.warning("Unable to get resource '%s' from the cache: %s", file, e.getMessage());
+			return null;
+		}
 	}
 
 	/**
 	 * Check if the cache contains a resource
+	 * A resource found in the local cache is marked as used and isn't evicted
+	 * during the current build.
 	 * @param key The key to check for in the cache
 	 * @return true if a resource with the specified key exists
 	 */
@@ -169,7 +284,98 @@ public class ResourceCache {
 		if (!enabled) {
 			return false;
 		}
-		File f = fileFromKey(key);
-		return f.exists() || (remoteCacheUrl != null && http.exists(urlFromFile(f)));
+		if (localIndex.touchIfExists(key, fileFromKey(key))) {
+			localHits.incrementAndGet();
+			return true;
+		}
+		if (remoteCache != null && waitFor(remoteExecutor.submit(() -> existsInRemoteCache(key)))) {
+			remoteHits.incrementAndGet();
+			return true;
+		}
+		misses.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Check if the cache contains all of a number of resources
+	 * Keys not in the local cache are checked in the remote cache concurrently.
+	 * Resources found in the local cache are marked as used and aren't evicted
+	 * during the current build.
+	 * @param keys The keys to check for in the cache
+	 * @return true if resources with all of the keys exist
+	 */
+	public boolean containsAll(Collection<String> keys) throws IOException {
+		if (!enabled) {
+			return false;
+		}
+		Map<String, Future<Boolean>> remoteChecks = new LinkedHashMap<>();
+		for (String key : keys) {
+			if (localIndex.touchIfExists(key, fileFromKey(key))) {
+				localHits.incrementAndGet();
+				continue;
+			}
+			if (remoteCache == null || Boolean.FALSE.equals(remoteKeys.get(key))) {
+				misses.incrementAndGet();
+				return false;
+			}
+			remoteChecks.put(key, remoteExecutor.submit(() -> existsInRemoteCache(key)));
+		}
+		boolean all = true;
+		for (Future<Boolean> check : remoteChecks.values()) {
+			if (waitFor(check)) {
+				remoteHits.incrementAndGet();
+			} else {
+				misses.incrementAndGet();
+				all = false;
+			}
+		}
+		return all;
+	}
+
+	public int getLocalHitCount() {
+		return localHits.get();
+	}
+
+	public int getRemoteHitCount() {
+		return remoteHits.get();
+	}
+
+	public int getMissCount() {
+		return misses.get();
+	}
+
+	public int getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Get the size of the local cache
+	 * @return Size in bytes of the entries in the local cache
+	 */
+	public long getLocalCacheSize() {
+		return localIndex != null ? localIndex.getSize() : 0;
+	}
+
+	/**
+	 * Wait for all background uploads to the remote cache to finish and
+	 * save the index of the local cache.
+	 * Failed uploads are logged but don't fail the build.
+	 */
+	public void flush() {
+		List<Future<?>> uploads;
+		synchronized (pendingUploads) {
+			uploads = new ArrayList<>(pendingUploads);
+			pendingUploads.clear();
+		}
+		for (Future<?> upload : uploads) {
+			try {
+				waitFor(upload);
+			} catch (IOException e) {
+				logger.warning("Unable to upload resource to the remote cache: %s", e.getMessage());
+			}
+		}
+		if (localIndex != null) {
+			localIndex.save();
+		}
 	}
 }
@@ -15,14 +15,13 @@
 package com.dynamo.bob.cache;
 
 import java.security.MessageDigest;
+import java.util.HashMap;
 import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
 import java.util.Set;
-import java.util.HashSet;
+import java.util.TreeSet;
 import java.util.Collections;
 import java.io.IOException;
-import java.math.BigInteger;
 
 import com.dynamo.bob.Task;
 import com.dynamo.bob.fs.IResource;
@@ -30,11 +29,13 @@ import com.dynamo.bob.archive.EngineVersion;
 
 public class ResourceCacheKey {
 
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
 	/*
 	 * A set of options which have an impact on the created resources
 	 * and must be included when calculating the resource key
 	 */
-	private static Set<String> options = new HashSet<String>();
+	private static Set<String> options = Collections.synchronizedSet(new TreeSet<String>());
 
 	/**
 	 * Add an option that should be included in the resource key
@@ -44,38 +45,71 @@ public class ResourceCacheKey {
 		options.add(option);
 	}
 
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; ++i) {
+			hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	private static MessageDigest cloneDigest(MessageDigest digest) {
+		try {
+			return (MessageDigest) digest.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
 	/**
-	 * Calculate the key to use when caching a resource.
-	 * The key is created from the task used which created the resource, the
-	 * bytes of the resource itself, as well as engine sha and project options.
-	 * @param task The task which created the resource
+	 * Calculate the keys to use when caching the resources created by a task.
+	 * The keys are created from the task which created the resources, the
+	 * path of each resource, as well as engine sha and project options.
+	 * The task signature digest is reused if the task signature has been
+	 * calculated, and is shared by all resources of the task.
+	 * @param task The task which created the resources
 	 * @param projectOptions The project options
-	 * @param resource The resource to calculate cache key for
-	 * @return The cache key as a hex string
+	 * @param resources The resources to calculate cache keys for
+	 * @return The cache keys as fixed width (40 characters) hex strings
 	 */
-	public static String calculate(Task<?> task, Map<String, String> projectOptions, IResource resource) throws RuntimeException, IOException {
-		MessageDigest digest = task.calculateSignatureDigest();
+	public static Map<IResource, String> calculate(Task<?> task, Map<String, String> projectOptions, List<IResource> resources) throws RuntimeException, IOException {
+		MessageDigest digest = task.getSignatureDigest();
 
-		digest.update(resource.getPath().getBytes());
 		digest.update(EngineVersion.sha1.getBytes());
 
-		// sort and add project options
-		List<String> keys = new ArrayList<String>(projectOptions.keySet());
-		Collections.sort(keys);
-		for (String key : keys) {
-			if (options.contains(key)) {
-				digest.update(key.getBytes());
-				String value = projectOptions.get(key);
-				if (value == null) {
-					value = "";
+		// add project options, sorted by key
+		synchronized (options) {
+			for (String key : options) {
+				if (projectOptions.containsKey(key)) {
+					digest.update(key.getBytes());
+					String value = projectOptions.get(key);
+					if (value == null) {
+						value = "";
+					}
+					digest.update(value.getBytes());
 				}
-				digest.update(value.getBytes());
 			}
 		}
 
-		byte[] key = digest.digest();
-		// byte digest to hex string
-		return new BigInteger(1, key).toString(16);
+		Map<IResource, String> keys = new HashMap<>();
+		for (IResource resource : resources) {
+			MessageDigest resourceDigest = cloneDigest(digest);
+			resourceDigest.update(resource.getPath().getBytes());
+			keys.put(resource, toHex(resourceDigest.digest()));
+		}
+		return keys;
+	}
+
+	/**
+	 * Calculate the key to use when caching a resource.
+	 * @param task The task which created the resource
+	 * @param projectOptions The project options
+	 * @param resource The resource to calculate cache key for
+	 * @return The cache key as a fixed width (40 characters) hex string
+	 * @see #calculate(Task, Map, List)
+	 */
+	public static String calculate(Task<?> task, Map<String, String> projectOptions, IResource resource) throws RuntimeException, IOException {
+		return calculate(task, projectOptions, Collections.singletonList(resource)).get(resource);
 	}
 }
@@ -16,7 +16,9 @@ package com.dynamo.bob.fs;
 
 import static org.apache.commons.io.FilenameUtils.concat;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -24,6 +26,8 @@ import org.apache.commons.io.FilenameUtils;
 
 
 public abstract class AbstractResource<F extends IFileSystem> implements IResource {
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+
     protected F fileSystem;
     protected String path;
     private boolean cacheable = true;
@@ -48,20 +52,40 @@ public abstract class AbstractResource<F extends IFileSystem> implements IResour
 
     @Override
     public byte[] sha1() throws IOException {
-        byte[] content = getContent();
-        if (content == null) {
-            throw new IllegalArgumentException(String.format("Resource '%s' is not created", path));
-        }
         MessageDigest sha1;
         try {
             sha1 = MessageDigest.getInstance("SHA1");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
-        sha1.update(content);
+        try (InputStream is = getInputStream()) {
+            if (is == null) {
+                throw new IllegalArgumentException(String.format("Resource '%s' is not created", path));
+            }
+            byte[] buffer = new byte[HASH_BUFFER_SIZE];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                sha1.update(buffer, 0, n);
+            }
+        }
         return sha1.digest();
     }
 
+    /**
+     * Open a stream to read the content of the resource. Resources that
+     * can stream their content override this to avoid reading all of it
+     * into memory, e.g. when hashing.
+     * @return stream or null if the resource doesn't exist
+     * @throws IOException
+     */
+    protected InputStream getInputStream() throws IOException {
+        byte[] content = getContent();
+        if (content == null) {
+            return null;
+        }
+        return new ByteArrayInputStream(content);
+    }
+
     @Override
     public String getAbsPath() {
         return concat(fileSystem.getRootDirectory(), path);
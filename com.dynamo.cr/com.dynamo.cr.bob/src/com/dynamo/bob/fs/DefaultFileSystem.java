@@ -14,33 +14,46 @@
 
 package com.dynamo.bob.fs;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
+
+import com.dynamo.bob.util.DigestTable;
 
 
 public class DefaultFileSystem extends AbstractFileSystem<DefaultFileSystem, DefaultResource> {
 
-    static class CacheEntry implements Serializable {
-        private static final long serialVersionUID = 1L;
-        long mTime;
-        byte[] sha1;
-    }
+    // "BOBD"
+    private static final int CACHE_MAGIC = 0x424f4244;
+    private static final int CACHE_VERSION = 2;
+    // size, modification time, inode and change time
+    private static final int CACHE_STAMP_SIZE = 4;
+
+    // files are read in chunks into a reusable direct buffer. They aren't
+    // memory mapped since a mapping keeps the file locked on Windows until
+    // the buffer is garbage collected, and the file may be an output which
+    // is written again later in the build
+    private static final int HASH_BUFFER_SIZE = 256 * 1024;
 
-    private Map<String, CacheEntry> cache = new HashMap<String, DefaultFileSystem.CacheEntry>();
+    private static final ThreadLocal<ByteBuffer> hashBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
+    private static volatile boolean unixAttributes = true;
+
+    // sha1 of the files together with the file stamp they were calculated for
+    private DigestTable cache = new DigestTable(CACHE_MAGIC, CACHE_VERSION, CACHE_STAMP_SIZE);
 
     @Override
     public IResource get(String path) {
@@ -54,63 +67,83 @@ public class DefaultFileSystem extends AbstractFileSystem<DefaultFileSystem, Def
         return new DefaultResource(this, path);
     }
 
-    private byte[] calcSha1(DefaultResource resource) throws IOException {
-        byte[] content = resource.getContent();
-        if (content == null) {
-            throw new IllegalArgumentException(String.format("Resource '%s' is not created", resource.getPath()));
-        }
+    private static byte[] calcSha1(Path path) throws IOException {
         MessageDigest sha1;
         try {
             sha1 = MessageDigest.getInstance("SHA1");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
-        sha1.update(content);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = hashBuffer.get();
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                sha1.update(buffer);
+                buffer.clear();
+            }
+        }
         return sha1.digest();
     }
 
+    private static long toNanos(Object time) {
+        return ((FileTime) time).to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the values identifying the current version of a file: size,
+     * modification time, inode and change time. Inode and change time are
+     * 0 on file systems without unix attributes.
+     */
+    private static long[] getFileStamp(Path path) throws IOException {
+        if (unixAttributes) {
+            try {
+                Map<String, Object> attrs = Files.readAttributes(path, "unix:size,lastModifiedTime,ino,ctime");
+                return new long[] {(Long) attrs.get("size"), toNanos(attrs.get("lastModifiedTime")), (Long) attrs.get("ino"), toNanos(attrs.get("ctime"))};
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                unixAttributes = false;
+            }
+        }
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        return new long[] {attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), 0, 0};
+    }
+
     byte[] sha1(DefaultResource resource) throws IOException {
-        String absPath = resource.getAbsPath();
-        File file = new File(absPath);
-        CacheEntry e = cache.get(resource.getPath());
-        if (e != null && file.lastModified() == e.mTime) {
-            return e.sha1;
+        Path path = new File(resource.getAbsPath()).toPath();
+        long[] stamp;
+        try {
+            stamp = getFileStamp(path);
+        } catch (NoSuchFileException e) {
+            throw new IllegalArgumentException(String.format("Resource '%s' is not created", resource.getPath()));
+        }
+        DigestTable.Entry e = cache.get(resource.getPath());
+        if (e != null && Arrays.equals(stamp, e.values)) {
+            return e.digest;
         } else {
-            e = new CacheEntry();
-            e.mTime = file.lastModified();
-            e.sha1 = calcSha1(resource);
-            cache.put(resource.getPath(), e);
-            return e.sha1;
+            byte[] sha1 = calcSha1(path);
+            cache.put(resource.getPath(), sha1, stamp);
+            return sha1;
         }
     }
 
-    @SuppressWarnings("unchecked")
+    private File getCacheFile() {
+        return new File(FilenameUtils.concat(FilenameUtils.concat(this.rootDirectory, this.buildDirectory), "digest_cache"));
+    }
+
     @Override
     public void loadCache() {
-        cache = new HashMap<String, DefaultFileSystem.CacheEntry>();
-        String fileName = FilenameUtils.concat(FilenameUtils.concat(this.rootDirectory, this.buildDirectory), "digest_cache");
-        ObjectInputStream is = null;
+        cache = new DigestTable(CACHE_MAGIC, CACHE_VERSION, CACHE_STAMP_SIZE);
         try {
-            is = new ObjectInputStream(new BufferedInputStream(new FileInputStream(fileName)));
-            cache = (Map<String, CacheEntry>) is.readObject();
-            is.close();
+            cache.load(getCacheFile());
         } catch (IOException e) {
-        } catch (ClassNotFoundException e) {
-        } finally {
-            IOUtils.closeQuietly(is);
         }
     }
 
     @Override
     public void saveCache() {
-        String fileName = FilenameUtils.concat(FilenameUtils.concat(this.rootDirectory, this.buildDirectory), "digest_cache");
-        ObjectOutputStream os = null;
         try {
-            os = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
-            os.writeObject(cache);
+            cache.save(getCacheFile());
         } catch (IOException e) {
-        } finally {
-            IOUtils.closeQuietly(os);
         }
     }
 
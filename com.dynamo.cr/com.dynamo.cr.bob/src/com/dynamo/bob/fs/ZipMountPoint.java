@@ -62,6 +62,11 @@ public class ZipMountPoint implements IMountPoint {
             }
         }
 
+        @Override
+        protected InputStream getInputStream() throws IOException {
+            return file.getInputStream(this.entry);
+        }
+
         @Override
         public void setContent(byte[] content) throws IOException {
             throw new IOException("Zip resources can't be written to.");
@@ -16,6 +16,7 @@ package com.dynamo.bob.pipeline;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
@@ -27,6 +28,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -48,6 +50,7 @@ import com.dynamo.bob.Task;
 import com.dynamo.bob.Task.TaskBuilder;
 import com.dynamo.bob.archive.ArchiveBuilder;
 import com.dynamo.bob.archive.ArchiveEntry;
+import com.dynamo.bob.archive.CompressionPolicy;
 import com.dynamo.bob.archive.EngineVersion;
 import com.dynamo.bob.archive.ManifestBuilder;
 import com.dynamo.bob.archive.publisher.Publisher;
@@ -123,6 +126,12 @@ public class GameProjectBuilder extends Builder<Void> {
             builder.addInput(propertyFile);
         }
 
+        // the policy file may be outside of the project
+        String compressionPolicyText = getCompressionPolicyText();
+        if (compressionPolicyText != null) {
+            builder.addExtraCacheKey(compressionPolicyText);
+        }
+
         TimeProfiler.start("Add outputs");
         if (project.option("archive", "false").equals("true")) {
             builder.addOutput(input.changeExt(".arci").disableCache());
@@ -211,6 +220,29 @@ public class GameProjectBuilder extends Builder<Void> {
         return resourcePadding;
     }
 
+    private String getCompressionPolicyText() throws IOException, CompileExceptionError {
+        String policyPath = project.option("archive-compression-policy", null);
+        if (policyPath == null) {
+            return null;
+        }
+        File policyFile = new File(policyPath);
+        if (!policyFile.isAbsolute() && !policyFile.exists()) {
+            policyFile = new File(project.getRootDirectory(), policyPath);
+        }
+        if (!policyFile.exists()) {
+            throw new CompileExceptionError(String.format("Could not find the compression policy file '%s'", policyPath));
+        }
+        return FileUtils.readFileToString(policyFile);
+    }
+
+    private Map<String, CompressionPolicy> getCompressionPolicies() throws IOException, CompileExceptionError {
+        String policyText = getCompressionPolicyText();
+        if (policyText == null) {
+            return new HashMap<>();
+        }
+        return CompressionPolicy.parsePolicies(policyText);
+    }
+
     private void createArchive(ArchiveBuilder archiveBuilder, Collection<IResource> resources, RandomAccessFile archiveIndex, RandomAccessFile archiveData, List<String> excludedResources, Path resourcePackDirectory) throws IOException, CompileExceptionError {
         TimeProfiler.start("createArchive");
         logger.info("GameProjectBuilder.createArchive");
@@ -233,6 +265,9 @@ public class GameProjectBuilder extends Builder<Void> {
         archiveBuilder.write(archiveIndex, archiveData, resourcePackDirectory, excludedResources);
         archiveIndex.close();
         archiveData.close();
+        TimeProfiler.addData("reusedResources", archiveBuilder.getReusedEntryCount());
+        TimeProfiler.addData("duplicateResources", archiveBuilder.getDuplicateEntryCount());
+        TimeProfiler.addData("duplicateSize", (float) archiveBuilder.getDuplicateSize());
         TimeProfiler.stop();
 
         // Populate publisher with the resource pack
@@ -266,7 +301,7 @@ public class GameProjectBuilder extends Builder<Void> {
     }
 
     private ResourceGraph createResourceGraph(Project project) throws CompileExceptionError {
-        ResourceGraph graph = new ResourceGraph(project);
+        ResourceGraph graph = new ResourceGraph(project, project.getResourceGraphCache());
 
         if (project.option("keep-unused", "false").equals("true")) {
             // All outputs of the project should be considered resources
@@ -420,6 +455,8 @@ public class GameProjectBuilder extends Builder<Void> {
                 ResourceGraph resourceGraph = createResourceGraph(project);
                 long tend = System.currentTimeMillis();
                 logger.info("Generating the resource graph took %f s", (tend-tstart)/1000.0);
+                TimeProfiler.addData("cachedResources", resourceGraph.getCacheHits());
+                TimeProfiler.addData("walkedResources", resourceGraph.getCacheMisses());
                 TimeProfiler.stop();
 
                 // create full list of resources including the custom resources
@@ -459,7 +496,26 @@ public class GameProjectBuilder extends Builder<Void> {
                 // create the archive and manifest
                 ManifestBuilder manifestBuilder = createManifestBuilder(resourceGraph);
                 ArchiveBuilder archiveBuilder = new ArchiveBuilder(root, manifestBuilder, getResourcePadding());
+                archiveBuilder.setMaxThreads(project.getMaxCpuThreads());
+                archiveBuilder.setCompressionPolicies(getCompressionPolicies());
+                // reuse the unchanged entries of the archive from the previous build
+                archiveBuilder.setPreviousArchive(new File(task.getOutputs().get(1).getAbsPath()),
+                                                  new File(task.getOutputs().get(2).getAbsPath()),
+                                                  new File(task.getOutputs().get(3).getAbsPath()),
+                                                  new File(FilenameUtils.concat(root, "_BobArchiveDigests_")));
+                // place the resources loaded together next to each other in the archive data
+                boolean loadOrderLayout = project.option("archive-load-order-layout", "false").equals("true");
+                String localityReportPath = project.option("archive-locality-report", null);
+                if (loadOrderLayout || localityReportPath != null) {
+                    archiveBuilder.setLoadGroups(resourceGraph.createLoadGroups());
+                    archiveBuilder.setLoadOrderLayout(loadOrderLayout);
+                }
                 createArchive(archiveBuilder, resources, archiveIndex, archiveData, excludedResources, resourcePackDirectory);
+                if (localityReportPath != null) {
+                    try (FileOutputStream os = new FileOutputStream(localityReportPath)) {
+                        archiveBuilder.writeLocalityReport(os);
+                    }
+                }
                 byte[] manifestFile = manifestBuilder.buildManifest();
 
                 // Write outputs to the build system
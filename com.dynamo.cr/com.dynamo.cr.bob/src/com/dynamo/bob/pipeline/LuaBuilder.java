@@ -27,6 +27,10 @@ import java.util.HashSet;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.vecmath.Quat4d;
 import javax.vecmath.Vector3d;
@@ -72,22 +76,29 @@ public abstract class LuaBuilder extends Builder<Void> {
     private static List<ILuaPreprocessor> luaPreprocessors = null;
     private static List<ILuaObfuscator> luaObfuscators = null;
 
+    private Map<String, String> luaSources = new HashMap<>();
     private Map<String, LuaScanner> luaScanners = new HashMap();
 
+    private static ExecutorService bytecodeExecutor = Executors.newCachedThreadPool((r) -> {
+        Thread thread = new Thread(r, "LuaBuilder bytecode");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
-     * Get a LuaScanner instance for a resource
-     * This will cache the LuaScanner instance per resource to avoid parsing the
+     * Get the Lua code of a resource after running the preprocessors
+     * This will cache the code per resource to avoid preprocessing the
      * resource more than once
-     * @param resource The resource to get a LuaScanner for
-     * @return A LuaScanner instance
+     * @param resource The resource to get the Lua code of
+     * @return The preprocessed Lua code
      */
-    private LuaScanner getLuaScanner(IResource resource) throws IOException, CompileExceptionError {
+    private String getLuaSource(IResource resource) throws IOException, CompileExceptionError {
         final String path = resource.getAbsPath();
         final String variant = project.option("variant", Bob.VARIANT_RELEASE);
-        LuaScanner scanner = luaScanners.get(path);
-        if (scanner == null) {
+        String script = luaSources.get(path);
+        if (script == null) {
             final byte[] scriptBytes = resource.getContent();
-            String script = new String(scriptBytes, "UTF-8");
+            script = new String(scriptBytes, "UTF-8");
 
             // Create and run preprocessors if some exists.
             if (luaPreprocessors == null) {
@@ -107,13 +118,59 @@ public abstract class LuaBuilder extends Builder<Void> {
                 }
             }
 
-            scanner = new LuaScanner();
-            scanner.parse(script);
+            luaSources.put(path, script);
+        }
+        return script;
+    }
+
+    /**
+     * Get a LuaScanner instance for a resource
+     * This will cache the LuaScanner instance per resource to avoid parsing the
+     * resource more than once
+     * @param resource The resource to get a LuaScanner for
+     * @return A LuaScanner instance
+     */
+    private LuaScanner getLuaScanner(IResource resource) throws IOException, CompileExceptionError {
+        final String path = resource.getAbsPath();
+        LuaScanner scanner = luaScanners.get(path);
+        if (scanner == null) {
+            scanner = LuaScanner.scan(getLuaSource(resource));
             luaScanners.put(path, scanner);
         }
         return scanner;
     }
 
+    /**
+     * Get the modules and resource properties of a resource from the Lua
+     * module index of the project. The resource is only scanned if it isn't
+     * indexed or if its code has changed since the previous build.
+     * @param resource The resource to get the index entry for
+     * @return The index entry
+     */
+    private LuaModuleIndex.Entry getLuaModuleIndexEntry(IResource resource) throws IOException, CompileExceptionError {
+        String path = resource.getPath();
+        if (!path.startsWith("/")) {
+            path = "/" + path;
+        }
+        LuaModuleIndex index = project.getLuaModuleIndex();
+        byte[] digest = LuaScanner.digest(getLuaSource(resource));
+        LuaModuleIndex.Entry entry = index != null ? index.get(path, digest) : null;
+        if (entry == null) {
+            LuaScanner scanner = getLuaScanner(resource);
+            List<LuaScanner.Property> resourceProperties = new ArrayList<>();
+            for (LuaScanner.Property property : scanner.getProperties()) {
+                if (property.isResource) {
+                    resourceProperties.add(property);
+                }
+            }
+            entry = new LuaModuleIndex.Entry(digest, MurmurHash.hash64(scanner.getParsedLua()), scanner.getModules(), resourceProperties);
+            if (index != null) {
+                index.put(path, entry);
+            }
+        }
+        return entry;
+    }
+
     @Override
     public Task<Void> create(IResource input) throws IOException, CompileExceptionError {
         Task.TaskBuilder<Void> taskBuilder = Task.<Void>newBuilder(this)
@@ -121,33 +178,70 @@ public abstract class LuaBuilder extends Builder<Void> {
                 .addInput(input)
                 .addOutput(input.changeExt(params.outExt()));
 
-        LuaScanner scanner = getLuaScanner(input);
-        long finalLuaHash = MurmurHash.hash64(scanner.getParsedLua());
-        taskBuilder.addExtraCacheKey(Long.toString(finalLuaHash));
-
-        List<LuaScanner.Property> properties = scanner.getProperties();
-        for (LuaScanner.Property property : properties) {
-
-            if (property.isResource) {
-                String value = (String) property.value;
+        LuaModuleIndex.Entry entry = getLuaModuleIndexEntry(input);
+        taskBuilder.addExtraCacheKey(Long.toString(entry.parsedLuaHash));
+
+        // the compiled script only refers to the modules by name, which means
+        // that it only has to be built again if a required module is added or
+        // removed, not when the code of a module changes
+        LuaModuleIndex index = project.getLuaModuleIndex();
+        StringBuilder modulesKey = new StringBuilder();
+        for (String module : entry.modules) {
+            boolean exists = index != null
+                    ? index.moduleFileExists(module, moduleFile -> project.getResource(moduleFile).exists())
+                    : project.getResource(LuaModuleIndex.getModuleFile(module)).exists();
+            if (exists) {
+                modulesKey.append(module).append(';');
+            }
+        }
+        if (modulesKey.length() > 0) {
+            taskBuilder.addExtraCacheKey(modulesKey.toString());
+        }
 
-                if (value.isEmpty())
-                {
-                    continue;
-                }
-                else if (!PropertiesUtil.isResourceProperty(project, property.type, value)) {
-                    throw new IOException(String.format("Resource '%s' referenced from script resource property '%s' does not exist", value, property.name));
-                }
+        for (LuaScanner.Property property : entry.resourceProperties) {
+            String value = (String) property.value;
 
-                IResource resource = BuilderUtil.checkResource(this.project, input, property.name + " resource", value);
-                taskBuilder.addInput(resource);
-                PropertiesUtil.createResourcePropertyTasks(this.project, resource, input);
+            if (value.isEmpty())
+            {
+                continue;
             }
+            else if (!PropertiesUtil.isResourceProperty(project, property.type, value)) {
+                throw new IOException(String.format("Resource '%s' referenced from script resource property '%s' does not exist", value, property.name));
+            }
+
+            IResource resource = BuilderUtil.checkResource(this.project, input, property.name + " resource", value);
+            taskBuilder.addInput(resource);
+            PropertiesUtil.createResourcePropertyTasks(this.project, resource, input);
         }
 
         return taskBuilder.build();
     }
 
+    private void throwLuaError(Task<Void> task, String cmdOutput) throws CompileExceptionError {
+        // first delimiter is the executable name "luajit:" or "luac:"
+        int execSep = cmdOutput.indexOf(':');
+        if (execSep > 0) {
+            // then comes the filename and the line like this:
+            // "file.lua:30: <error message>"
+            int lineBegin = cmdOutput.indexOf(':', execSep + 1);
+            if (lineBegin > 0) {
+                int lineEnd = cmdOutput.indexOf(':', lineBegin + 1);
+                if (lineEnd > 0) {
+                    throw new CompileExceptionError(task.input(0),
+                            Integer.parseInt(cmdOutput.substring(
+                                    lineBegin + 1, lineEnd)),
+                            cmdOutput.substring(lineEnd + 2));
+                }
+            }
+        }
+        else {
+            System.out.printf("Lua Error: for file %s: '%s'\n", task.input(0).getPath(), cmdOutput);
+        }
+        // Since parsing out the actual error failed, as a backup just
+        // spit out whatever luajit/luac said.
+        throw new CompileExceptionError(task.input(0), 1, cmdOutput);
+    }
+
     public byte[] constructBytecode(Task<Void> task, String source, File inputFile, File outputFile, List<String> options, Map<String, String> env) throws IOException, CompileExceptionError {
         FileOutputStream fo = null;
         RandomAccessFile rdr = null;
@@ -178,29 +272,8 @@ public abstract class LuaBuilder extends Builder<Void> {
 
                 String cmdOutput = new String(buf);
                 if (ret != 0) {
-                    // first delimiter is the executable name "luajit:" or "luac:"
-                    int execSep = cmdOutput.indexOf(':');
-                    if (execSep > 0) {
-                        // then comes the filename and the line like this:
-                        // "file.lua:30: <error message>"
-                        int lineBegin = cmdOutput.indexOf(':', execSep + 1);
-                        if (lineBegin > 0) {
-                            int lineEnd = cmdOutput.indexOf(':', lineBegin + 1);
-                            if (lineEnd > 0) {
-                                throw new CompileExceptionError(task.input(0),
-                                        Integer.parseInt(cmdOutput.substring(
-                                                lineBegin + 1, lineEnd)),
-                                        cmdOutput.substring(lineEnd + 2));
-                            }
-                        }
-                    }
-                    else {
-                        System.out.printf("Lua Error: for file %s: '%s'\n", task.input(0).getPath(), cmdOutput);
-                    }
-                    // Since parsing out the actual error failed, as a backup just
-                    // spit out whatever luajit/luac said.
                     inputFile.delete();
-                    throw new CompileExceptionError(task.input(0), 1, cmdOutput);
+                    throwLuaError(task, cmdOutput);
                 }
             } catch (InterruptedException e) {
                 logger.severe("Unexpected interruption", e);
@@ -288,8 +361,37 @@ public abstract class LuaBuilder extends Builder<Void> {
     }
     */
 
+    private static byte[] waitForBytecode(Future<byte[]> future) throws IOException, CompileExceptionError {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compiling Lua bytecode", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof CompileExceptionError) {
+                throw (CompileExceptionError) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new CompileExceptionError("Unable to compile Lua bytecode", cause);
+        }
+    }
+
     public byte[] constructLuaJITBytecode(Task<Void> task, String luajitExe, String source) throws IOException, CompileExceptionError {
 
+        // Compile with a persistent worker process unless the workers are disabled
+        int workerCount = Integer.parseInt(this.project.option("luajit-worker-count", Integer.toString(this.project.getMaxCpuThreads())));
+        if (workerCount > 0) {
+            LuaJITWorkerPool.Result result = LuaJITWorkerPool.get(luajitExe, workerCount).compile(task.input(0).getPath(), source.getBytes());
+            if (result.error != null) {
+                throwLuaError(task, result.error);
+            }
+            return result.bytecode;
+        }
+
         Bob.initLua(); // unpack the lua resources
 
         File outputFile = File.createTempFile("script", ".raw");
@@ -346,51 +448,72 @@ public abstract class LuaBuilder extends Builder<Void> {
          * * bytes - The 32-bit bytecode values to apply to the 64-bit bytecode starting
          *           at the index.
          */
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final int length = bytecode32.length;
+        final int indexSize = length >= (1 << 24) ? 4 : length >= (1 << 16) ? 3 : length >= (1 << 8) ? 2 : 1;
+
+        // Worst case every other byte differs, or runs are split at 255 bytes
+        int maxRuns = length / 2 + length / 255 + 1;
+        byte[] delta = new byte[length + maxRuns * (indexSize + 1)];
+        int pos = 0;
         int i = 0;
-        while(i < bytecode32.length) {
+        while (i < length) {
+            // skip the bytes which are the same, a word at a time
+            int mismatch = Arrays.mismatch(bytecode32, i, length, bytecode64, i, length);
+            if (mismatch < 0) {
+                break;
+            }
+            i += mismatch;
+
             // find sequences of consecutive bytes that differ
             // max 255 at a time
-            int count = 0;
-            while(count < 255 && (i + count) < bytecode32.length) {
-                if (bytecode32[i + count] == bytecode64[i + count]) {
-                    break;
-                }
+            int end = Math.min(i + 255, length);
+            int count = 1;
+            while (i + count < end && bytecode32[i + count] != bytecode64[i + count]) {
                 count++;
             }
 
-            // found a sequence of bytes
-            // write index, count and bytes
-            if (count > 0) {
-                if (count == 256) {
-                    logger.info("\n\nLuaBuilder count %d\n\n", count);
-                }
-
-                // write index of diff
-                bos.write(i);
-                if (bytecode32.length >= (1 << 8)) {
-                    bos.write((i & 0xFF00) >> 8);
-                }
-                if (bytecode32.length >= (1 << 16)) {
-                    bos.write((i & 0xFF0000) >> 16);
-                }
-                if (bytecode32.length >= (1 << 24)) {
-                    bos.write((i & 0xFF000000) >> 24);
-                }
-
-                bos.write(count);
+            // write index of diff
+            for (int b = 0; b < indexSize; ++b) {
+                delta[pos++] = (byte) (i >> (b * 8));
+            }
+            // write count and the consecutive bytes that differ
+            delta[pos++] = (byte) count;
+            System.arraycopy(bytecode32, i, delta, pos, count);
+            pos += count;
+            i += count;
+        }
+        return Arrays.copyOf(delta, pos);
+    }
 
-                // write consecutive bytes that differ
-                bos.write(bytecode32, i, count);
-                i += count;
+    /**
+     * Apply a delta created by {@link #constructBytecodeDelta(byte[], byte[])}
+     * to the 64-bit bytecode to get the 32-bit bytecode, the same way as the
+     * engine does.
+     * @param bytecode64 The 64-bit bytecode, which is not modified
+     * @param delta The delta
+     * @return The 32-bit bytecode
+     */
+    public byte[] applyBytecodeDelta(byte[] bytecode64, byte[] delta) throws CompileExceptionError {
+        final int length = bytecode64.length;
+        final int indexSize = length >= (1 << 24) ? 4 : length >= (1 << 16) ? 3 : length >= (1 << 8) ? 2 : 1;
+        byte[] bytecode32 = Arrays.copyOf(bytecode64, length);
+        int i = 0;
+        while (i < delta.length) {
+            if (i + indexSize + 1 > delta.length) {
+                throw new CompileExceptionError("Byte code delta is truncated");
             }
-            else {
-                i += 1;
+            int index = 0;
+            for (int b = 0; b < indexSize; ++b) {
+                index |= (delta[i++] & 0xff) << (b * 8);
+            }
+            int count = delta[i++] & 0xff;
+            if (i + count > delta.length || index < 0 || index + count > length) {
+                throw new CompileExceptionError("Byte code delta is out of range");
             }
+            System.arraycopy(delta, i, bytecode32, index, count);
+            i += count;
         }
-
-        byte[] delta = bos.toByteArray();
-        return delta;
+        return bytecode32;
     }
 
     @Override
@@ -406,7 +529,7 @@ public abstract class LuaBuilder extends Builder<Void> {
 
         // add detected modules to builder
         for (String module : modules) {
-            String module_file = String.format("/%s.lua", module.replaceAll("\\.", "/"));
+            String module_file = LuaModuleIndex.getModuleFile(module);
             BuilderUtil.checkResource(this.project, task.input(0), "module", module_file);
             builder.addModules(module);
             builder.addResources(module_file + "c");
@@ -490,9 +613,26 @@ public abstract class LuaBuilder extends Builder<Void> {
 
             byte[] bytecode32 = new byte[0];
             byte[] bytecode64 = new byte[0];
-            if (needs32bit)
+            if (needs32bit && needs64bit) {
+                // the two bitnesses are compiled by separate processes, run them at the same time
+                final String source = script;
+                Future<byte[]> future32 = bytecodeExecutor.submit(() -> constructLuaJITBytecode(task, "luajit-32", source));
+                try {
+                    bytecode64 = constructLuaJITBytecode(task, "luajit-64", script);
+                } catch (IOException | CompileExceptionError | RuntimeException e) {
+                    // the 32-bit compile is still waited for, any error from it is attached to the 64-bit error
+                    try {
+                        waitForBytecode(future32);
+                    } catch (IOException | CompileExceptionError | RuntimeException e32) {
+                        e.addSuppressed(e32);
+                    }
+                    throw e;
+                }
+                bytecode32 = waitForBytecode(future32);
+            }
+            else if (needs32bit)
                 bytecode32 = constructLuaJITBytecode(task, "luajit-32", script);
-            if (needs64bit)
+            else if (needs64bit)
                 bytecode64 = constructLuaJITBytecode(task, "luajit-64", script);
 
             if ( needs32bit ^ needs64bit ) { // if only one of them is set
@@ -511,7 +651,7 @@ public abstract class LuaBuilder extends Builder<Void> {
                 srcBuilder.setBytecode64(ByteString.copyFrom(bytecode64));
             }
             else {
-                byte[] delta = constructBytecodeDelta(bytecode32, bytecode64);
+                byte[] delta = constructBytecodeDelta(bytecode64, bytecode32);
                 srcBuilder.setDelta(ByteString.copyFrom(delta));
 
                 logger.fine("Writing 64-bit bytecode with 32-bit delta for %s", task.input(0).getPath());
@@ -0,0 +1,231 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import com.dynamo.bob.Bob;
+import com.dynamo.bob.Platform;
+import com.dynamo.bob.logging.Logger;
+
+/**
+ * Pool of long lived LuaJIT processes which compile Lua source to bytecode.
+ * There is one pool per LuaJIT executable (luajit-32 and luajit-64) and each
+ * pool starts at most maxWorkers processes, when they are first needed.
+ * The processes run luajit_worker.lua, which reads length prefixed requests
+ * from stdin and writes the bytecode or the error message to stdout, so that
+ * a process doesn't have to be started, and no temporary files have to be
+ * written, for every script.
+ * The pools may be used concurrently from multiple threads.
+ */
+public class LuaJITWorkerPool {
+
+    private static Logger logger = Logger.getLogger(LuaJITWorkerPool.class.getName());
+
+    private static final String WORKER_SCRIPT = "luajit_worker.lua";
+
+    private static final Map<String, LuaJITWorkerPool> pools = new HashMap<>();
+    private static File workerScript = null;
+
+    /**
+     * The outcome of compiling a script, either bytecode or the error
+     * message from LuaJIT, in the same format as "luajit -b" prints it
+     */
+    public static class Result {
+        public final byte[] bytecode;
+        public final String error;
+
+        Result(byte[] bytecode, String error) {
+            this.bytecode = bytecode;
+            this.error = error;
+        }
+    }
+
+    private static class Worker {
+        final Process process;
+        final DataOutputStream out;
+        final DataInputStream in;
+
+        Worker(Process process) {
+            this.process = process;
+            this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        Result compile(String chunkName, byte[] source) throws IOException {
+            byte[] name = chunkName.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(name.length);
+            out.write(name);
+            out.writeInt(source.length);
+            out.write(source);
+            out.flush();
+
+            int status = in.readUnsignedByte();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            if (status == 0) {
+                return new Result(payload, null);
+            }
+            return new Result(null, new String(payload, StandardCharsets.UTF_8));
+        }
+
+        void destroy() {
+            process.destroy();
+        }
+    }
+
+    private final String luajitExe;
+    private final int maxWorkers;
+    private final LinkedBlockingDeque<Worker> idleWorkers = new LinkedBlockingDeque<>();
+    private final List<Worker> workers = new ArrayList<>();
+
+    private LuaJITWorkerPool(String luajitExe, int maxWorkers) {
+        this.luajitExe = luajitExe;
+        this.maxWorkers = maxWorkers;
+    }
+
+    /**
+     * Get the pool of an executable, the pool is created the first time
+     * @param luajitExe Name of the executable, "luajit-32" or "luajit-64"
+     * @param maxWorkers Max number of processes, only used when the pool is created
+     * @return The pool
+     */
+    public static synchronized LuaJITWorkerPool get(String luajitExe, int maxWorkers) {
+        LuaJITWorkerPool pool = pools.get(luajitExe);
+        if (pool == null) {
+            if (pools.isEmpty()) {
+                Runtime.getRuntime().addShutdownHook(new Thread(LuaJITWorkerPool::shutdownAll));
+            }
+            pool = new LuaJITWorkerPool(luajitExe, Math.max(1, maxWorkers));
+            pools.put(luajitExe, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Stop the processes of all pools
+     */
+    public static synchronized void shutdownAll() {
+        for (LuaJITWorkerPool pool : pools.values()) {
+            pool.shutdown();
+        }
+        pools.clear();
+    }
+
+    private static synchronized File getWorkerScript() throws IOException {
+        if (workerScript == null || !workerScript.isFile()) {
+            Bob.initLua(); // unpack the lua resources
+            File script = new File(Bob.getPath("share/luajit/"), WORKER_SCRIPT);
+            try (InputStream is = LuaJITWorkerPool.class.getResourceAsStream("resources/" + WORKER_SCRIPT)) {
+                if (is == null) {
+                    throw new IOException("Unable to find " + WORKER_SCRIPT);
+                }
+                Files.copy(is, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            workerScript = script;
+        }
+        return workerScript;
+    }
+
+    private Worker startWorker() throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(Bob.getExe(Platform.getHostPlatform(), luajitExe), getWorkerScript().getAbsolutePath());
+        pb.environment().put("LUA_PATH", Bob.getPath("share/luajit/") + "/?.lua");
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Worker worker = new Worker(pb.start());
+        logger.fine("Started %s worker %d", luajitExe, workers.size());
+        return worker;
+    }
+
+    private Worker acquire() throws IOException {
+        try {
+            while (true) {
+                Worker worker = idleWorkers.poll();
+                if (worker != null) {
+                    return worker;
+                }
+                synchronized (this) {
+                    if (workers.size() < maxWorkers) {
+                        worker = startWorker();
+                        workers.add(worker);
+                        return worker;
+                    }
+                }
+                // all workers are busy, wait for one to be released (or discarded)
+                worker = idleWorkers.poll(100, TimeUnit.MILLISECONDS);
+                if (worker != null) {
+                    return worker;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a " + luajitExe + " worker", e);
+        }
+    }
+
+    private void release(Worker worker) {
+        idleWorkers.push(worker);
+    }
+
+    private synchronized void discard(Worker worker) {
+        worker.destroy();
+        workers.remove(worker);
+    }
+
+    private synchronized void shutdown() {
+        for (Worker worker : workers) {
+            worker.destroy();
+        }
+        workers.clear();
+        idleWorkers.clear();
+    }
+
+    /**
+     * Compile a script to bytecode, keeping the debug info
+     * @param chunkName Name of the chunk, without the "@" prefix
+     * @param source The Lua source
+     * @return The bytecode or the compile error
+     */
+    public Result compile(String chunkName, byte[] source) throws IOException {
+        // a worker which has died is replaced once
+        for (int attempt = 0; ; ++attempt) {
+            Worker worker = acquire();
+            try {
+                Result result = worker.compile(chunkName, source);
+                release(worker);
+                return result;
+            } catch (IOException e) {
+                discard(worker);
+                if (attempt > 0) {
+                    throw new IOException(String.format("The %s worker failed to compile %s", luajitExe, chunkName), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import com.dynamo.bob.fs.IResource;
+import com.dynamo.bob.pipeline.LuaScanner.Property;
+import com.dynamo.gameobject.proto.GameObject.PropertyType;
+
+/**
+ * Persistent index of the Lua modules required by each script.
+ * For each script the index keeps the modules it requires and the result of
+ * scanning it which is needed when creating its build task, keyed by the
+ * digest of the preprocessed Lua code. A script whose code is unchanged since
+ * the previous build doesn't have to be scanned again.
+ * The index also keeps the reverse edges, from each module to the scripts
+ * requiring it, and whether each module file exists in the project, which is
+ * only checked once per build.
+ */
+public class LuaModuleIndex {
+
+    // "BOBL"
+    private static final int MAGIC = 0x424f424c;
+    private static final int VERSION = 1;
+
+    /**
+     * The scan result of a script
+     */
+    public static class Entry {
+        public final byte[] digest;
+        public final long parsedLuaHash;
+        public final List<String> modules;
+        public final List<Property> resourceProperties;
+
+        public Entry(byte[] digest, long parsedLuaHash, List<String> modules, List<Property> resourceProperties) {
+            this.digest = digest;
+            this.parsedLuaHash = parsedLuaHash;
+            this.modules = modules;
+            this.resourceProperties = resourceProperties;
+        }
+    }
+
+    private Map<String, Entry> entries = new HashMap<>();
+    // module file to the scripts requiring it
+    private Map<String, Set<String>> dependents = new HashMap<>();
+    // scripts looked up or indexed since the index was loaded
+    private Set<String> used = new HashSet<>();
+    // existence of the module files, not saved since the files may change between builds
+    private Map<String, Boolean> moduleFileExists = new ConcurrentHashMap<>();
+    private boolean dirty = false;
+
+    /**
+     * Get the file of a module
+     * @param module module name as passed to require(), for instance "a.b"
+     * @return path of the module file, for instance "/a/b.lua"
+     */
+    public static String getModuleFile(String module) {
+        return String.format("/%s.lua", module.replaceAll("\\.", "/"));
+    }
+
+    /**
+     * Check if the file of a module exists. The check is only made the first
+     * time the module file is requested and the result is shared by all
+     * scripts requiring the module.
+     * @param module module name as passed to require()
+     * @param exists checks if a module file exists in the project
+     * @return true if the module file exists
+     */
+    public boolean moduleFileExists(String module, Predicate<String> exists) {
+        String moduleFile = getModuleFile(module);
+        Boolean result = moduleFileExists.get(moduleFile);
+        if (result == null) {
+            result = exists.test(moduleFile);
+            moduleFileExists.put(moduleFile, result);
+        }
+        return result;
+    }
+
+    /**
+     * Get the indexed scan result of a script
+     * @param path path of the script
+     * @param digest digest of the current preprocessed Lua code of the script
+     * @return the entry or null if the script isn't indexed or the code has changed
+     */
+    public synchronized Entry get(String path, byte[] digest) {
+        used.add(path);
+        Entry e = entries.get(path);
+        if (e == null || !Arrays.equals(e.digest, digest)) {
+            return null;
+        }
+        return e;
+    }
+
+    /**
+     * Index the scan result of a script, replacing the edges of any previous
+     * result
+     * @param path path of the script
+     * @param e scan result of the script
+     */
+    public synchronized void put(String path, Entry e) {
+        used.add(path);
+        removeEdges(path, entries.put(path, e));
+        for (String module : e.modules) {
+            dependents.computeIfAbsent(getModuleFile(module), k -> new TreeSet<>()).add(path);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Remove a script from the index
+     * @param path path of the script
+     */
+    public synchronized void remove(String path) {
+        Entry e = entries.remove(path);
+        if (e != null) {
+            removeEdges(path, e);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Remove the scripts which haven't been looked up or indexed since the
+     * index was loaded. Called at the end of each successful build, when all
+     * scripts have been looked up, to drop the scripts which have been
+     * deleted from the project.
+     */
+    public synchronized void removeUnused() {
+        for (String path : new ArrayList<>(entries.keySet())) {
+            if (!used.contains(path)) {
+                remove(path);
+            }
+        }
+    }
+
+    private void removeEdges(String path, Entry e) {
+        if (e == null) {
+            return;
+        }
+        for (String module : e.modules) {
+            String moduleFile = getModuleFile(module);
+            Set<String> scripts = dependents.get(moduleFile);
+            if (scripts != null) {
+                scripts.remove(path);
+                if (scripts.isEmpty()) {
+                    dependents.remove(moduleFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the scripts directly requiring a module
+     * @param moduleFile path of the module file
+     * @return the paths of the scripts
+     */
+    public synchronized Set<String> getDependents(String moduleFile) {
+        Set<String> scripts = dependents.get(moduleFile);
+        return scripts == null ? new TreeSet<>() : new TreeSet<>(scripts);
+    }
+
+    /**
+     * Get the scripts directly or indirectly, through other modules, requiring
+     * a module
+     * @param moduleFile path of the module file
+     * @return the paths of the scripts
+     */
+    public synchronized Set<String> getAllDependents(String moduleFile) {
+        Set<String> result = new TreeSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(moduleFile);
+        while (!queue.isEmpty()) {
+            Set<String> scripts = dependents.get(queue.poll());
+            if (scripts == null) {
+                continue;
+            }
+            for (String script : scripts) {
+                if (result.add(script)) {
+                    queue.add(script);
+                }
+            }
+        }
+        result.remove(moduleFile);
+        return result;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Load the index from a resource. An empty index is returned if the
+     * resource doesn't exist or was saved with another version of the format.
+     * @param resource index resource
+     * @return {@link LuaModuleIndex}
+     */
+    public static LuaModuleIndex load(IResource resource) throws IOException {
+        LuaModuleIndex index = new LuaModuleIndex();
+        byte[] content = resource.getContent();
+        if (content == null) {
+            return index;
+        }
+        try (DataInputStream is = new DataInputStream(new ByteArrayInputStream(content))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                return index;
+            }
+            Property.Status[] statuses = Property.Status.values();
+            int count = is.readInt();
+            for (int i = 0; i < count; ++i) {
+                String path = is.readUTF();
+                byte[] digest = new byte[is.readUnsignedByte()];
+                is.readFully(digest);
+                long parsedLuaHash = is.readLong();
+                int moduleCount = is.readInt();
+                List<String> modules = new ArrayList<>(moduleCount);
+                for (int j = 0; j < moduleCount; ++j) {
+                    modules.add(is.readUTF());
+                }
+                int propertyCount = is.readInt();
+                List<Property> properties = new ArrayList<>(propertyCount);
+                for (int j = 0; j < propertyCount; ++j) {
+                    Property property = new Property(is.readInt());
+                    property.status = statuses[is.readUnsignedByte()];
+                    property.name = is.readUTF();
+                    property.type = PropertyType.valueOf(is.readInt());
+                    property.value = is.readUTF();
+                    property.isResource = true;
+                    properties.add(property);
+                }
+                index.put(path, new Entry(digest, parsedLuaHash, modules, properties));
+            }
+        } catch (IOException|IndexOutOfBoundsException e) {
+            // truncated or corrupt, start over
+            return new LuaModuleIndex();
+        }
+        index.used.clear();
+        index.dirty = false;
+        return index;
+    }
+
+    /**
+     * Save the index if it has changed since it was loaded
+     * @param resource index resource
+     */
+    public synchronized void save(IResource resource) throws IOException {
+        if (!dirty) {
+            return;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream os = new DataOutputStream(bos)) {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry e = entry.getValue();
+                os.writeUTF(entry.getKey());
+                os.writeByte(e.digest.length);
+                os.write(e.digest);
+                os.writeLong(e.parsedLuaHash);
+                os.writeInt(e.modules.size());
+                for (String module : e.modules) {
+                    os.writeUTF(module);
+                }
+                os.writeInt(e.resourceProperties.size());
+                for (Property property : e.resourceProperties) {
+                    os.writeInt(property.line);
+                    os.writeByte(property.status.ordinal());
+                    os.writeUTF(property.name);
+                    os.writeInt(property.type.getNumber());
+                    os.writeUTF((String) property.value);
+                }
+            }
+        }
+        resource.setContent(bos.toByteArray());
+        dirty = false;
+    }
+
+    /**
+     * Write the index as a JSON report. For each script the report contains
+     * the modules it requires, and for each module the scripts requiring it,
+     * directly and indirectly.
+     * @param os Stream to write the JSON report to
+     */
+    public synchronized void writeReport(OutputStream os) throws IOException {
+        JsonGenerator generator = (new JsonFactory()).createJsonGenerator(new OutputStreamWriter(os));
+        try {
+            generator.useDefaultPrettyPrinter();
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("scripts");
+            for (Map.Entry<String, Entry> entry : new TreeMap<>(entries).entrySet()) {
+                generator.writeStartObject();
+                generator.writeStringField("path", entry.getKey());
+                generator.writeArrayFieldStart("modules");
+                for (String module : entry.getValue().modules) {
+                    generator.writeString(module);
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeArrayFieldStart("modules");
+            for (String moduleFile : new TreeSet<>(dependents.keySet())) {
+                generator.writeStartObject();
+                generator.writeStringField("path", moduleFile);
+                generator.writeArrayFieldStart("dependents");
+                for (String script : getDependents(moduleFile)) {
+                    generator.writeString(script);
+                }
+                generator.writeEndArray();
+                generator.writeArrayFieldStart("allDependents");
+                for (String script : getAllDependents(moduleFile)) {
+                    generator.writeString(script);
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } finally {
+            generator.close();
+        }
+    }
+}
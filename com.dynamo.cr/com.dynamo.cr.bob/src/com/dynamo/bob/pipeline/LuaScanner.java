@@ -14,14 +14,19 @@
 
 package com.dynamo.bob.pipeline;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -29,6 +34,7 @@ import javax.vecmath.Quat4d;
 import javax.vecmath.Vector3d;
 import javax.vecmath.Vector4d;
 
+import com.dynamo.bob.archive.ManifestBuilder;
 import com.dynamo.bob.pipeline.LuaScanner.Property.Status;
 import com.dynamo.bob.util.TimeProfiler;
 import com.dynamo.gameobject.proto.GameObject.PropertyType;
@@ -36,7 +42,12 @@ import com.dynamo.bob.pipeline.antlr.lua.LuaParser;
 import com.dynamo.bob.pipeline.antlr.lua.LuaLexer;
 import com.dynamo.bob.pipeline.antlr.lua.LuaParserBaseListener;
 
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.ParserRuleContext;
@@ -91,8 +102,12 @@ public class LuaScanner extends LuaParserBaseListener {
         put(LuaParser.CHARSTRING, "'");
     }};
 
+    // scanners by digest of the scanned Lua code, cleared between builds
+    private static Map<String, LuaScanner> scanners = new ConcurrentHashMap<>();
+
     private CommonTokenStream tokenStream = null;
     private TokenStreamRewriter rewriter;
+    private String parsedLua;
 
     private List<String> modules = new ArrayList<String>();
     private List<Property> properties = new ArrayList<Property>();
@@ -164,6 +179,54 @@ public class LuaScanner extends LuaParserBaseListener {
 
     public LuaScanner() {}
 
+    /**
+     * Scan a string containing Lua code. The result is cached for the rest
+     * of the build, keyed by the digest of the Lua code, and the returned
+     * scanner is shared between all builders scanning the same code. The
+     * returned scanner must not be parsed again.
+     * This method is thread-safe.
+     * @param str Lua code to scan
+     * @return The scanner holding the parsed Lua code, modules and properties
+     */
+    public static LuaScanner scan(String str) {
+        String key = ManifestBuilder.CryptographicOperations.hexdigest(digest(str));
+        LuaScanner scanner = scanners.get(key);
+        if (scanner == null) {
+            scanner = new LuaScanner();
+            scanner.parse(str);
+            scanner.modules = Collections.unmodifiableList(scanner.modules);
+            scanner.properties = Collections.unmodifiableList(scanner.properties);
+            // only the result is needed from here on
+            scanner.tokenStream = null;
+            scanner.rewriter = null;
+            LuaScanner existing = scanners.putIfAbsent(key, scanner);
+            if (existing != null) {
+                scanner = existing;
+            }
+        }
+        return scanner;
+    }
+
+    /**
+     * Get the digest used to identify Lua code
+     * @param str Lua code
+     * @return The SHA-1 of the UTF-8 encoded code
+     */
+    public static byte[] digest(String str) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(str.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Clear the cached scanners. Called at the start and end of each build.
+     */
+    public static void clearCache() {
+        scanners.clear();
+    }
+
     /**
      * Parse a string containing Lua code. This will detect and strip
      * require() and go.property() calls
@@ -200,13 +263,32 @@ public class LuaScanner extends LuaParserBaseListener {
         }
 
         // parse code
+        // the DFA cache of the parser is static and shared between all
+        // parsers and threads, which means that it stays warm between
+        // scripts and builds. First try the faster SLL prediction and bail
+        // out on the first syntax error. Only if that fails parse again with
+        // full LL prediction and the default error reporting and recovery
         LuaParser parser = new LuaParser(tokenStream);
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        LuaParser.ChunkContext chunk;
+        try {
+            chunk = parser.chunk();
+        }
+        catch (ParseCancellationException e) {
+            parser.reset();
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            chunk = parser.chunk();
+        }
         ParseTreeWalker walker = new ParseTreeWalker();
-        walker.walk(this, parser.chunk());
-        String resultText = rewriter.getText();
+        walker.walk(this, chunk);
+        parsedLua = rewriter.getText();
         TimeProfiler.stop();
         // return the parsed string
-        return resultText;
+        return parsedLua;
     }
 
     /**
@@ -214,7 +296,7 @@ public class LuaScanner extends LuaParserBaseListener {
      * @return The parsed Lua code
      */
     public String getParsedLua() {
-        return rewriter.getText();
+        return parsedLua;
     }
 
     /**
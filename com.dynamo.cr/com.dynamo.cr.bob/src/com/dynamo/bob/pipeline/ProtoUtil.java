@@ -15,28 +15,51 @@
 package com.dynamo.bob.pipeline;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.dynamo.bob.CompileExceptionError;
 import com.dynamo.bob.fs.IResource;
+import com.google.protobuf.Message;
 import com.google.protobuf.Message.Builder;
 import com.google.protobuf.TextFormat;
 
 public class ProtoUtil {
 
-    public static void merge(IResource input, Builder builder) throws IOException, CompileExceptionError {
+    /**
+     * A parsed message together with the digest of the text it was parsed from
+     */
+    private static class ParsedMessage {
+        final byte[] digest;
+        final Message message;
+
+        ParsedMessage(byte[] digest, Message message) {
+            this.digest = digest;
+            this.message = message;
+        }
+    }
+
+    // parsed messages by message type and resource path, cleared between builds
+    private static Map<String, ParsedMessage> parsedMessages = new ConcurrentHashMap<>();
+
+    /**
+     * Clear the parsed messages. Called at the start and end of each build.
+     */
+    public static void clearCache() {
+        parsedMessages.clear();
+    }
+
+    private static Message parseText(IResource input, Message defaultInstance) throws IOException, CompileExceptionError {
         byte[] content = input.getContent();
         if (content == null) {
-            if (!input.exists()) {
-                throw new CompileExceptionError(input, 0, "Resource does not exist");
-            }
-            else {
-                throw new CompileExceptionError(input, 0, "Resource is empty");
-            }
+            throw new CompileExceptionError(input, 0, "Resource is empty");
         }
+        Builder builder = defaultInstance.newBuilderForType();
         try {
-            TextFormat.merge(new String(input.getContent()), builder);
+            TextFormat.merge(new String(content), builder);
         } catch (TextFormat.ParseException e) {
             // 1:7: String missing ending quote.
             Pattern pattern = Pattern.compile("(\\d+):(\\d+): (.*)");
@@ -47,5 +70,33 @@ public class ProtoUtil {
                 throw new CompileExceptionError(input, 0, e.getMessage(), e);
             }
         }
+        return builder.buildPartial();
+    }
+
+    /**
+     * Parse a resource in protobuf text format. The parsed message is
+     * cached for the rest of the build, keyed by the resource path and the
+     * digest of its content, and shared between all builders parsing it.
+     * @param input resource to parse
+     * @param defaultInstance default instance of the message type to parse
+     * @return the parsed message
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Message> T parse(IResource input, T defaultInstance) throws IOException, CompileExceptionError {
+        if (!input.exists()) {
+            throw new CompileExceptionError(input, 0, "Resource does not exist");
+        }
+        String key = defaultInstance.getDescriptorForType().getFullName() + ":" + input.getAbsPath();
+        byte[] digest = input.sha1();
+        ParsedMessage parsed = parsedMessages.get(key);
+        if (parsed == null || !Arrays.equals(parsed.digest, digest)) {
+            parsed = new ParsedMessage(digest, parseText(input, defaultInstance));
+            parsedMessages.put(key, parsed);
+        }
+        return (T) parsed.message;
+    }
+
+    public static void merge(IResource input, Builder builder) throws IOException, CompileExceptionError {
+        builder.mergeFrom(parse(input, builder.getDefaultInstanceForType()));
     }
 }
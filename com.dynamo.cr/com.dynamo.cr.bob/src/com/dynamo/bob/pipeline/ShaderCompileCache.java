@@ -0,0 +1,293 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.pipeline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dynamo.bob.Bob;
+import com.dynamo.bob.Platform;
+import com.dynamo.bob.archive.EngineVersion;
+import com.dynamo.bob.archive.ManifestBuilder;
+import com.dynamo.bob.fs.IResource;
+import com.dynamo.bob.logging.Logger;
+import com.dynamo.graphics.proto.Graphics.ShaderDesc;
+
+/**
+ * Content addressed cache of compiled shaders.
+ * The compiled SPIR-V, including the reflected bindings, and the GLSL
+ * variants are cached by a key created from the preprocessed shader source,
+ * the shader type, the target language and the versions of bob and the
+ * shader tools. Shader programs which are the same after include expansion
+ * are only compiled once, even if they are built by different tasks.
+ * Only successfully compiled shaders are cached. The warnings of a failed
+ * compilation refer to the temporary files of the build of one resource.
+ * The entries are kept in memory for the rest of the build and are stored in
+ * the build folder to be shared with the following builds. Entries which
+ * haven't been used for some time are removed.
+ * The cache is only enabled during a build.
+ */
+public class ShaderCompileCache {
+
+    private static Logger logger = Logger.getLogger(ShaderCompileCache.class.getName());
+
+    // "BOBP"
+    private static final int MAGIC = 0x424f4250;
+    private static final int VERSION = 2;
+
+    private static final long MAX_UNUSED_TIME = 14L * 24 * 60 * 60 * 1000;
+
+    // the index of the entries stored in the build folder, null when not building
+    private static IResource indexResource = null;
+    // time each stored entry was last used
+    private static Map<String, Long> lastUsed = new ConcurrentHashMap<>();
+    private static Map<String, byte[]> entries = new ConcurrentHashMap<>();
+    // set when the index has changed since it was loaded
+    private static volatile boolean dirty = false;
+    private static String spirvToolsVersion = null;
+
+    private static AtomicInteger hitCount = new AtomicInteger();
+    private static AtomicInteger missCount = new AtomicInteger();
+
+    /**
+     * Enable the cache and load the index of the entries stored by previous
+     * builds. Called at the start of each build.
+     * @param resource index resource, the entries are stored next to it
+     */
+    public static synchronized void load(IResource resource) throws IOException {
+        indexResource = resource;
+        lastUsed.clear();
+        entries.clear();
+        hitCount.set(0);
+        missCount.set(0);
+        dirty = false;
+        byte[] content = resource.getContent();
+        if (content == null) {
+            return;
+        }
+        try (DataInputStream is = new DataInputStream(new ByteArrayInputStream(content))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            int count = is.readInt();
+            for (int i = 0; i < count; ++i) {
+                String key = is.readUTF();
+                long time = is.readLong();
+                lastUsed.put(key, time);
+                if (now - time > MAX_UNUSED_TIME) {
+                    // removed when saved
+                    dirty = true;
+                }
+            }
+        } catch (IOException e) {
+            // truncated or corrupt, start over
+            lastUsed.clear();
+        }
+    }
+
+    /**
+     * Remove the stored entries which haven't been used for some time, save
+     * the index if it has changed and disable the cache. Called at the end of
+     * each build, also when the build fails.
+     */
+    public static synchronized void save() throws IOException {
+        if (indexResource == null) {
+            return;
+        }
+        int lookups = hitCount.get() + missCount.get();
+        if (lookups > 0) {
+            logger.info("Shader cache hits: %d, misses: %d (%.1f%% hit rate)", hitCount.get(), missCount.get(), 100.0 * hitCount.get() / lookups);
+        }
+        try {
+            if (!dirty) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (DataOutputStream os = new DataOutputStream(bos)) {
+                Map<String, Long> keep = new HashMap<>();
+                for (Map.Entry<String, Long> entry : lastUsed.entrySet()) {
+                    if (now - entry.getValue() > MAX_UNUSED_TIME) {
+                        indexResource.getResource(entry.getKey()).remove();
+                    } else {
+                        keep.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                os.writeInt(MAGIC);
+                os.writeInt(VERSION);
+                os.writeInt(keep.size());
+                for (Map.Entry<String, Long> entry : keep.entrySet()) {
+                    os.writeUTF(entry.getKey());
+                    os.writeLong(entry.getValue());
+                }
+            }
+            indexResource.setContent(bos.toByteArray());
+        } finally {
+            // disabled even if the index couldn't be saved
+            indexResource = null;
+            lastUsed.clear();
+            entries.clear();
+            dirty = false;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return indexResource != null;
+    }
+
+    public static int getHitCount() {
+        return hitCount.get();
+    }
+
+    public static int getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Create a cache key
+     * @param parts everything the compiled shader depends on
+     * @return the key
+     */
+    public static String getKey(Object... parts) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update(Integer.toString(VERSION).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(EngineVersion.sha1.getBytes(StandardCharsets.UTF_8));
+        for (Object part : parts) {
+            digest.update((byte) 0);
+            digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+        }
+        return ManifestBuilder.CryptographicOperations.hexdigest(digest.digest());
+    }
+
+    /**
+     * Get the version of the tools used to compile SPIR-V, as the digest of
+     * the glslc, spirv-opt and spirv-cross executables
+     * @return the version
+     */
+    public static synchronized String getSpirvToolsVersion() throws IOException {
+        if (spirvToolsVersion != null) {
+            return spirvToolsVersion;
+        }
+        StringBuilder version = new StringBuilder();
+        for (String name : new String[] { "glslc", "spirv-opt", "spirv-cross" }) {
+            String exe = Bob.getExe(Platform.getHostPlatform(), name);
+            try (InputStream is = Files.newInputStream(new File(exe).toPath())) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-1");
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                }
+                version.append(name).append('=').append(ManifestBuilder.CryptographicOperations.hexdigest(digest.digest())).append(';');
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        spirvToolsVersion = version.toString();
+        return spirvToolsVersion;
+    }
+
+    /**
+     * Get a cached shader
+     * @param key the key created by {@link #getKey(Object...)}
+     * @return a new build result or null if the shader isn't cached or the cache is disabled
+     */
+    public static ShaderProgramBuilder.ShaderBuildResult get(String key) throws IOException {
+        IResource index = indexResource;
+        if (index == null) {
+            return null;
+        }
+        byte[] content = entries.get(key);
+        if (content == null && lastUsed.containsKey(key)) {
+            content = index.getResource(key).getContent();
+            if (content != null) {
+                entries.put(key, content);
+            }
+        }
+        ShaderProgramBuilder.ShaderBuildResult result = content != null ? decode(content) : null;
+        if (result == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        lastUsed.put(key, System.currentTimeMillis());
+        dirty = true;
+        hitCount.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Cache a shader. Nothing is cached if the cache is disabled or if the
+     * shader failed to compile.
+     * @param key the key created by {@link #getKey(Object...)}
+     * @param result the build result of the shader
+     */
+    public static void put(String key, ShaderProgramBuilder.ShaderBuildResult result) throws IOException {
+        IResource index = indexResource;
+        if (index == null || result.shaderBuilder == null) {
+            return;
+        }
+        byte[] content = encode(result);
+        entries.put(key, content);
+        index.getResource(key).setContent(content);
+        lastUsed.put(key, System.currentTimeMillis());
+        dirty = true;
+    }
+
+    private static byte[] encode(ShaderProgramBuilder.ShaderBuildResult result) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream os = new DataOutputStream(bos)) {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            byte[] shader = result.shaderBuilder.buildPartial().toByteArray();
+            os.writeInt(shader.length);
+            os.write(shader);
+        }
+        return bos.toByteArray();
+    }
+
+    private static ShaderProgramBuilder.ShaderBuildResult decode(byte[] content) {
+        try (DataInputStream is = new DataInputStream(new ByteArrayInputStream(content))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                return null;
+            }
+            byte[] shader = new byte[is.readInt()];
+            is.readFully(shader);
+            return new ShaderProgramBuilder.ShaderBuildResult(ShaderDesc.Shader.parseFrom(shader).toBuilder());
+        } catch (IOException|NegativeArraySizeException e) {
+            // truncated or corrupt, compile again
+            return null;
+        }
+    }
+}
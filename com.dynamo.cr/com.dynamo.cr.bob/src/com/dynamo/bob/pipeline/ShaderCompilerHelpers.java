@@ -150,8 +150,20 @@ public class ShaderCompilerHelpers {
     }
 
 	static public ShaderProgramBuilder.ShaderBuildResult buildGLSL(String source, ES2ToES3Converter.ShaderType shaderType, ShaderDesc.Language shaderLanguage, boolean isDebug)  throws IOException, CompileExceptionError {
+        String cacheKey = null;
+        if (ShaderCompileCache.isEnabled()) {
+            cacheKey = ShaderCompileCache.getKey("glsl", source, shaderType, shaderLanguage, isDebug);
+            ShaderProgramBuilder.ShaderBuildResult cached = ShaderCompileCache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
         String glslSource = compileGLSL(source, shaderType, shaderLanguage, isDebug);
-        return makeShaderBuilderFromGLSLSource(glslSource, shaderLanguage);
+        ShaderProgramBuilder.ShaderBuildResult result = makeShaderBuilderFromGLSLSource(glslSource, shaderLanguage);
+        if (cacheKey != null) {
+            ShaderCompileCache.put(cacheKey, result);
+        }
+        return result;
     }
 
     static public String getResultString(Result r)
@@ -376,6 +388,24 @@ public class ShaderCompilerHelpers {
 
     static public ShaderProgramBuilder.ShaderBuildResult buildSpirvFromGLSL(String source, ES2ToES3Converter.ShaderType shaderType, String resourceOutputPath, String targetProfile, boolean isDebug, boolean soft_fail)  throws IOException, CompileExceptionError {
         source = Common.stripComments(source);
+
+        // the output path is only used for naming temp files and in errors, which aren't cached
+        String cacheKey = null;
+        if (ShaderCompileCache.isEnabled()) {
+            cacheKey = ShaderCompileCache.getKey("spirv", source, shaderType, targetProfile, isDebug, soft_fail, ShaderCompileCache.getSpirvToolsVersion());
+            ShaderProgramBuilder.ShaderBuildResult cached = ShaderCompileCache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        ShaderProgramBuilder.ShaderBuildResult result = buildSpirvFromStrippedGLSL(source, shaderType, resourceOutputPath, targetProfile, isDebug, soft_fail);
+        if (cacheKey != null) {
+            ShaderCompileCache.put(cacheKey, result);
+        }
+        return result;
+    }
+
+    static private ShaderProgramBuilder.ShaderBuildResult buildSpirvFromStrippedGLSL(String source, ES2ToES3Converter.ShaderType shaderType, String resourceOutputPath, String targetProfile, boolean isDebug, boolean soft_fail)  throws IOException, CompileExceptionError {
         SPIRVCompileResult compile_res = compileGLSLToSPIRV(source, shaderType, resourceOutputPath, targetProfile, isDebug, soft_fail);
 
         if (compile_res.compile_warnings.size() > 0)
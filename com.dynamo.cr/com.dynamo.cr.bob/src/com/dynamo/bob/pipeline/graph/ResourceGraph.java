@@ -17,11 +17,14 @@ package com.dynamo.bob.pipeline.graph;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Collection;
+import java.util.ArrayDeque;
 
 import java.io.Writer;
 import java.io.StringWriter;
@@ -63,10 +66,27 @@ public class ResourceGraph implements IResourceVisitor {
     // root resource to which all other resources are added
     private ResourceNode root = new ResourceNode("<AnonymousRoot>");
 
+    // edges from the previous build, null if the graph isn't cached
+    private ResourceGraphCache cache;
+    private int cacheHits = 0;
+    private int cacheMisses = 0;
+
     public ResourceGraph(Project project) {
         this.project = project;
     }
 
+    /**
+     * Create a resource graph which reuses the edges of resources whose
+     * outputs are unchanged since the previous build
+     * @param project The project to create the graph for
+     * @param cache Edges from the previous build. Updated with the edges of
+     * resources which had to be read.
+     */
+    public ResourceGraph(Project project, ResourceGraphCache cache) {
+        this.project = project;
+        this.cache = cache;
+    }
+
     @Override
     public boolean shouldVisit(IResource resource, IResource parentResource) {
         ResourceNode currentNode = resourceToNodeLookup.get(resource);
@@ -99,17 +119,19 @@ public class ResourceGraph implements IResourceVisitor {
         parentNode.addChild(currentNode);
     }
 
-    @Override
-    public void visitMessage(Message message, IResource resource, IResource parentResource) throws CompileExceptionError {
+    private static ResourceNode.Type getNodeType(Message message) {
         if (message instanceof CollectionProxyDesc) {
             CollectionProxyDesc desc = (CollectionProxyDesc)message;
-            ResourceNode collectionProxyNode = resourceToNodeLookup.get(resource);
-            if (desc.getExclude()) {
-                collectionProxyNode.setType(ResourceNode.Type.ExcludedCollectionProxy);
-            }
-            else {
-                collectionProxyNode.setType(ResourceNode.Type.CollectionProxy);
-            }
+            return desc.getExclude() ? ResourceNode.Type.ExcludedCollectionProxy : ResourceNode.Type.CollectionProxy;
+        }
+        return ResourceNode.Type.None;
+    }
+
+    @Override
+    public void visitMessage(Message message, IResource resource, IResource parentResource) throws CompileExceptionError {
+        ResourceNode.Type type = getNodeType(message);
+        if (type != ResourceNode.Type.None) {
+            resourceToNodeLookup.get(resource).setType(type);
         }
     }
 
@@ -124,7 +146,48 @@ public class ResourceGraph implements IResourceVisitor {
      * @param rootResource The resource to create graph from.
      */
     public void add(IResource rootResource) throws CompileExceptionError {
-        ResourceWalker.walk(project, rootResource, this);
+        if (cache == null) {
+            ResourceWalker.walk(project, rootResource, this);
+        }
+        else {
+            addCached(null, rootResource);
+        }
+    }
+
+    // same traversal as ResourceWalker but the edges of a resource are
+    // taken from the cache when the signature of its output is unchanged
+    private void addCached(IResource parentResource, IResource resource) throws CompileExceptionError {
+        if (resource.getPath().equals("") || !shouldVisit(resource, parentResource)) {
+            return;
+        }
+
+        visit(resource, parentResource);
+
+        IResource output = resource.output();
+        byte[] signature = project.getOutputSignature(output);
+        ResourceGraphCache.Edges edges = cache.get(output.getPath(), signature);
+        if (edges == null) {
+            ++cacheMisses;
+            ResourceNode.Type type = ResourceNode.Type.None;
+            List<String> children = new ArrayList<>();
+            Message message = ResourceWalker.loadMessage(resource);
+            if (message != null) {
+                type = getNodeType(message);
+                children = ResourceWalker.getResourcePaths(message);
+            }
+            edges = new ResourceGraphCache.Edges(signature, type, children);
+            cache.put(output.getPath(), edges);
+        }
+        else {
+            ++cacheHits;
+        }
+
+        if (edges.type != ResourceNode.Type.None) {
+            resourceToNodeLookup.get(resource).setType(edges.type);
+        }
+        for (String path : edges.children) {
+            addCached(resource, project.getResource(path));
+        }
     }
 
     // used in tests
@@ -165,6 +228,22 @@ public class ResourceGraph implements IResourceVisitor {
         return resources;
     }
 
+    /**
+     * Get the number of resources whose edges were taken from the cache
+     * @return Number of cache hits
+     */
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Get the number of resources which had to be read to find their edges
+     * @return Number of cache misses
+     */
+    public int getCacheMisses() {
+        return cacheMisses;
+    }
+
     /**
      * Get resource node from path
      * @param path The path to get resource node for
@@ -227,6 +306,50 @@ public class ResourceGraph implements IResourceVisitor {
         return excludedResources;
     }
 
+    // breadth first traversal of the resources loaded together with start
+    // collection proxies are loaded but not followed, they are added to the
+    // list of proxies to traverse later
+    private static List<String> createLoadGroup(ResourceNode start, Set<ResourceNode> visited, ArrayDeque<ResourceNode> proxies) {
+        List<String> group = new ArrayList<>();
+        ArrayDeque<ResourceNode> queue = new ArrayDeque<>(start.getChildren());
+        while (!queue.isEmpty()) {
+            ResourceNode node = queue.poll();
+            if (!visited.add(node)) {
+                continue;
+            }
+            group.add(node.getPath());
+            if (node.checkType(ResourceNode.Type.CollectionProxy)) {
+                proxies.add(node);
+            } else {
+                queue.addAll(node.getChildren());
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Group the resources by when they are loaded. The first group contains
+     * the resources loaded at startup, found breadth first from the root
+     * without following any collection proxies. Each collection proxy then
+     * gets a group with the resources it loads which aren't already part of
+     * an earlier group.
+     * @return Resource paths of each group in load order, keyed on the path of the node loading the group
+     */
+    public Map<String, List<String>> createLoadGroups() {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        Set<ResourceNode> visited = new HashSet<>();
+        ArrayDeque<ResourceNode> proxies = new ArrayDeque<>();
+        groups.put(root.getPath(), createLoadGroup(root, visited, proxies));
+        while (!proxies.isEmpty()) {
+            ResourceNode proxy = proxies.poll();
+            List<String> group = createLoadGroup(proxy, visited, proxies);
+            if (!group.isEmpty()) {
+                groups.put(proxy.getPath(), group);
+            }
+        }
+        return groups;
+    }
+
     public void writeJSON(ResourceNode node, JsonGenerator generator, boolean shouldPublishLU) throws IOException {
         generator.writeStartObject();
         generator.writeFieldName("path");
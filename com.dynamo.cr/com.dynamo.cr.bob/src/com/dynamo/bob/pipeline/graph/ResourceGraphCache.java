@@ -0,0 +1,184 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.pipeline.graph;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.dynamo.bob.fs.IResource;
+
+/**
+ * Persistent cache of the resource graph edges between builds.
+ * For each compiled resource the cache keeps the resources it references
+ * and its node type, keyed by the signature of the task which produced the
+ * compiled resource. A resource whose signature is unchanged since the
+ * previous build doesn't have to be read and decoded again when the resource
+ * graph is created. Resources which are no longer part of the graph are
+ * removed after a successful build.
+ */
+public class ResourceGraphCache {
+
+    // "BOBG"
+    private static final int MAGIC = 0x424f4247;
+    private static final int VERSION = 1;
+
+    /**
+     * The outgoing edges of a resource node
+     */
+    public static class Edges {
+        public final byte[] signature;
+        public final ResourceNode.Type type;
+        public final List<String> children;
+
+        public Edges(byte[] signature, ResourceNode.Type type, List<String> children) {
+            this.signature = signature;
+            this.type = type;
+            this.children = children;
+        }
+    }
+
+    private Map<String, Edges> edges = new HashMap<>();
+    // resources looked up or cached since the cache was loaded
+    private Set<String> used = new HashSet<>();
+    private boolean dirty = false;
+
+    /**
+     * Get the cached edges of a resource
+     * @param path path of the compiled resource
+     * @param signature current signature of the compiled resource
+     * @return the edges or null if the resource isn't cached or the signature has changed
+     */
+    public Edges get(String path, byte[] signature) {
+        if (signature == null || signature.length == 0) {
+            return null;
+        }
+        used.add(path);
+        Edges e = edges.get(path);
+        if (e == null || !Arrays.equals(e.signature, signature)) {
+            return null;
+        }
+        return e;
+    }
+
+    /**
+     * Cache the edges of a resource. Nothing is cached if the resource has no
+     * signature.
+     * @param path path of the compiled resource
+     * @param e edges of the resource, including its current signature
+     */
+    public void put(String path, Edges e) {
+        if (e.signature == null || e.signature.length == 0) {
+            return;
+        }
+        used.add(path);
+        edges.put(path, e);
+        dirty = true;
+    }
+
+    /**
+     * Remove the resources which haven't been looked up or cached since the
+     * cache was loaded. Called at the end of each successful build to drop the
+     * resources which are no longer part of the resource graph. Nothing is
+     * removed if the resource graph wasn't created in the build.
+     */
+    public void removeUnused() {
+        if (used.isEmpty()) {
+            return;
+        }
+        if (edges.keySet().retainAll(used)) {
+            dirty = true;
+        }
+    }
+
+    public int size() {
+        return edges.size();
+    }
+
+    /**
+     * Load the cache from a resource. An empty cache is returned if the
+     * resource doesn't exist or was saved with another version of the format.
+     * @param resource cache resource
+     * @return {@link ResourceGraphCache}
+     */
+    public static ResourceGraphCache load(IResource resource) throws IOException {
+        ResourceGraphCache cache = new ResourceGraphCache();
+        byte[] content = resource.getContent();
+        if (content == null) {
+            return cache;
+        }
+        try (DataInputStream is = new DataInputStream(new ByteArrayInputStream(content))) {
+            if (is.readInt() != MAGIC || is.readInt() != VERSION) {
+                return cache;
+            }
+            ResourceNode.Type[] types = ResourceNode.Type.values();
+            int count = is.readInt();
+            for (int i = 0; i < count; ++i) {
+                String path = is.readUTF();
+                byte[] signature = new byte[is.readUnsignedByte()];
+                is.readFully(signature);
+                ResourceNode.Type type = types[is.readUnsignedByte()];
+                int childCount = is.readInt();
+                List<String> children = new ArrayList<>(childCount);
+                for (int j = 0; j < childCount; ++j) {
+                    children.add(is.readUTF());
+                }
+                cache.edges.put(path, new Edges(signature, type, children));
+            }
+        } catch (IOException|IndexOutOfBoundsException e) {
+            // truncated or corrupt, start over
+            return new ResourceGraphCache();
+        }
+        return cache;
+    }
+
+    /**
+     * Save the cache if it has changed since it was loaded
+     * @param resource cache resource
+     */
+    public void save(IResource resource) throws IOException {
+        if (!dirty) {
+            return;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream os = new DataOutputStream(bos)) {
+            os.writeInt(MAGIC);
+            os.writeInt(VERSION);
+            os.writeInt(edges.size());
+            for (Map.Entry<String, Edges> entry : edges.entrySet()) {
+                Edges e = entry.getValue();
+                os.writeUTF(entry.getKey());
+                os.writeByte(e.signature.length);
+                os.write(e.signature);
+                os.writeByte(e.type.ordinal());
+                os.writeInt(e.children.size());
+                for (String child : e.children) {
+                    os.writeUTF(child);
+                }
+            }
+        }
+        resource.setContent(bos.toByteArray());
+        dirty = false;
+    }
+}
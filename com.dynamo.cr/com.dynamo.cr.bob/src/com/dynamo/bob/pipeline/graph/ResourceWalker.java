@@ -14,6 +14,7 @@
 
 package com.dynamo.bob.pipeline.graph;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import com.dynamo.bob.Project;
@@ -37,7 +38,7 @@ public class ResourceWalker {
         public boolean shouldVisit(IResource resource, IResource parentResource);
     }
 
-    private static void visitMessage(Project project, IResource currentResource, Message node, IResourceVisitor visitor) throws CompileExceptionError {
+    private static void collectResourcePaths(Message node, List<String> paths) {
         List<FieldDescriptor> fields = node.getDescriptorForType().getFields();
         for (FieldDescriptor fieldDescriptor : fields) {
             FieldOptions options = fieldDescriptor.getOptions();
@@ -45,40 +46,49 @@ public class ResourceWalker {
             boolean isResource = (Boolean) options.getField(resourceDesc);
             Object value = node.getField(fieldDescriptor);
             if (value instanceof Message) {
-                visitMessage(project, currentResource, (Message) value, visitor);
+                collectResourcePaths((Message) value, paths);
             } else if (value instanceof List) {
                 @SuppressWarnings("unchecked")
                 List<Object> list = (List<Object>) value;
                 for (Object v : list) {
                     if (v instanceof Message) {
-                        visitMessage(project, currentResource, (Message) v, visitor);
+                        collectResourcePaths((Message) v, paths);
                     } else if (isResource && v instanceof String) {
-                        visitResource(project, currentResource, project.getResource((String) v), visitor);
+                        paths.add((String) v);
                     }
                 }
             } else if (isResource && value instanceof String) {
-                visitResource(project, currentResource, project.getResource((String) value), visitor);
+                paths.add((String) value);
             }
         }
     }
 
-    private static void visitResource(Project project, IResource parentResource, IResource resource, IResourceVisitor visitor) throws CompileExceptionError {
-        if (resource.getPath().equals("") || !visitor.shouldVisit(resource, parentResource)) {
-            return;
-        }
-
-        visitor.visit(resource, parentResource);
+    /**
+     * Get the paths of all resources referenced from a message, in the order
+     * they are visited by the walker
+     * @param message The message to get resource references from
+     * @return List of resource paths
+     */
+    public static List<String> getResourcePaths(Message message) {
+        List<String> paths = new ArrayList<>();
+        collectResourcePaths(message, paths);
+        return paths;
+    }
 
+    /**
+     * Read and decode the compiled output of a resource
+     * @param resource The resource to get the message for
+     * @return The message or null if the output isn't a protobuf message
+     */
+    public static Message loadMessage(IResource resource) throws CompileExceptionError {
         int i = resource.getPath().lastIndexOf(".");
         if (i == -1) {
-            visitor.leave(resource, parentResource);
-            return;
+            return null;
         }
 
         String ext = resource.getPath().substring(i);
         if (!ProtoBuilder.supportsType(ext)) {
-            visitor.leave(resource, parentResource);
-            return;
+            return null;
         }
 
         GeneratedMessageV3.Builder<?> builder = ProtoBuilder.newBuilder(ext);
@@ -88,14 +98,28 @@ public class ResourceWalker {
                 throw new CompileExceptionError(resource, 0, "Unable to find resource " + resource.getPath());
             }
             builder.mergeFrom(content);
-            Message message = (Message)builder.build();
-            visitor.visitMessage(message, resource, parentResource);
-            visitMessage(project, resource, message, visitor);
+            return (Message)builder.build();
         } catch(CompileExceptionError e) {
             throw e;
         } catch(Exception e) {
             throw new RuntimeException(e);
         }
+    }
+
+    private static void visitResource(Project project, IResource parentResource, IResource resource, IResourceVisitor visitor) throws CompileExceptionError {
+        if (resource.getPath().equals("") || !visitor.shouldVisit(resource, parentResource)) {
+            return;
+        }
+
+        visitor.visit(resource, parentResource);
+
+        Message message = loadMessage(resource);
+        if (message != null) {
+            visitor.visitMessage(message, resource, parentResource);
+            for (String path : getResourcePaths(message)) {
+                visitResource(project, resource, project.getResource(path), visitor);
+            }
+        }
         visitor.leave(resource, parentResource);
     }
 
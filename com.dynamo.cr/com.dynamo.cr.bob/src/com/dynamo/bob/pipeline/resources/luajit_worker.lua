@@ -0,0 +1,82 @@
+-- Copyright 2020-2024 The Defold Foundation
+-- Copyright 2014-2020 King
+-- Copyright 2009-2014 Ragnar Svensson, Christian Murray
+-- Licensed under the Defold License version 1.0 (the "License"); you may not use
+-- this file except in compliance with the License.
+--
+-- You may obtain a copy of the License, together with FAQs at
+-- https://www.defold.com/license
+--
+-- Unless required by applicable law or agreed to in writing, software distributed
+-- under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+-- CONDITIONS OF ANY KIND, either express or implied. See the License for the
+-- specific language governing permissions and limitations under the License.
+
+-- Persistent bytecode compiler used by bob. Compiles one script per request
+-- until stdin is closed. The bytecode is the same as "luajit -b -g -F name"
+-- produces.
+--
+-- request:  u32 chunk name length, chunk name, u32 source length, source
+-- response: u8 status (0 = bytecode, 1 = error message), u32 length, payload
+--
+-- All integers are big endian. The error message has the same format as
+-- the error printed by "luajit -b".
+
+local bit = require("bit")
+
+if jit.os == "Windows" then
+  local ffi = require("ffi")
+  ffi.cdef[[int _setmode(int fd, int mode);]]
+  ffi.C._setmode(0, 0x8000)
+  ffi.C._setmode(1, 0x8000)
+end
+
+local stdin, stdout = io.stdin, io.stdout
+
+local function read_u32()
+  local s = stdin:read(4)
+  if not s or #s < 4 then
+    return nil
+  end
+  local a, b, c, d = s:byte(1, 4)
+  return ((a * 256 + b) * 256 + c) * 256 + d
+end
+
+local function read_string()
+  local n = read_u32()
+  if not n then
+    return nil
+  end
+  if n == 0 then
+    return ""
+  end
+  local s = stdin:read(n)
+  if not s or #s < n then
+    return nil
+  end
+  return s
+end
+
+local function write_response(status, payload)
+  local n = #payload
+  stdout:write(string.char(status,
+                           bit.band(bit.rshift(n, 24), 255),
+                           bit.band(bit.rshift(n, 16), 255),
+                           bit.band(bit.rshift(n, 8), 255),
+                           bit.band(n, 255)), payload)
+  stdout:flush()
+end
+
+while true do
+  local name = read_string()
+  local source = name and read_string()
+  if not source then
+    break
+  end
+  local f, err = load(source, "@" .. name)
+  if f then
+    write_response(0, string.dump(f, false)) -- keep debug info
+  else
+    write_response(1, "luajit: " .. err)
+  end
+end
@@ -0,0 +1,136 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Splits data into chunks at positions decided by the content, using a gear
+ * rolling hash over the last 64 bytes. Inserting or removing data only moves
+ * the chunk boundaries close to the change, the chunks before and after the
+ * change stay the same.
+ * The chunks are at least a quarter and at most twice the average size.
+ */
+public class ContentDefinedChunker {
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // SplitMix64 with a fixed seed, the table must never change or
+        // all chunk boundaries move
+        long state = 0x5deece66dL;
+        for (int i = 0; i < GEAR.length; ++i) {
+            state += 0x9e3779b97f4a7c15L;
+            long z = state;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+
+    /**
+     * @param averageSize the average size of the chunks, at most 512MB
+     */
+    public ContentDefinedChunker(int averageSize) {
+        if (averageSize < 256 || averageSize > 512 * 1024 * 1024) {
+            throw new IllegalArgumentException("Invalid average chunk size: " + averageSize);
+        }
+        this.minSize = averageSize / 4;
+        this.maxSize = averageSize * 2;
+        // a boundary is found on average every 2^bits bytes after the minimum size
+        int bits = 31 - Integer.numberOfLeadingZeros(averageSize - minSize);
+        this.mask = -1L << (64 - bits);
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Find the end of the chunk which starts at the position of the buffer
+     * @param data the data from the start of the chunk to the limit of the buffer
+     * @return length of the chunk
+     */
+    public int nextChunkLength(ByteBuffer data) {
+        int start = data.position();
+        int length = Math.min(data.remaining(), maxSize);
+        if (length <= minSize) {
+            return length;
+        }
+        // bytes further back than 64 don't affect the hash
+        long hash = 0;
+        for (int i = Math.max(0, minSize - 64); i < minSize; ++i) {
+            hash = (hash << 1) + GEAR[data.get(start + i) & 0xff];
+        }
+        for (int i = minSize; i < length; ++i) {
+            hash = (hash << 1) + GEAR[data.get(start + i) & 0xff];
+            if ((hash & mask) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Split the content of a channel. The content is read through a buffer
+     * of the maximum chunk size.
+     * @param channel the channel to read from the current position to the end
+     * @param consumer called with the data of each chunk, in order. The buffer
+     * is only valid during the call.
+     */
+    public void split(ReadableByteChannel channel, Consumer<ByteBuffer> consumer) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(maxSize);
+        boolean eof = false;
+        while (true) {
+            while (!eof && data.hasRemaining()) {
+                eof = channel.read(data) < 0;
+            }
+            data.flip();
+            if (!data.hasRemaining()) {
+                return;
+            }
+            int length = nextChunkLength(data);
+            ByteBuffer chunk = data.slice();
+            chunk.limit(length);
+            consumer.accept(chunk.asReadOnlyBuffer());
+            data.position(data.position() + length);
+            data.compact();
+        }
+    }
+
+    /**
+     * Split the content of a channel
+     * @param channel the channel to read from the current position to the end
+     * @return the lengths of the chunks, in order
+     */
+    public List<Long> split(ReadableByteChannel channel) throws IOException {
+        List<Long> chunks = new ArrayList<>();
+        split(channel, chunk -> chunks.add((long) chunk.remaining()));
+        return chunks;
+    }
+}
@@ -0,0 +1,420 @@
+// Copyright 2020-2024 The Defold Foundation
+// Copyright 2014-2020 King
+// Copyright 2009-2014 Ragnar Svensson, Christian Murray
+// Licensed under the Defold License version 1.0 (the "License"); you may not use
+// this file except in compliance with the License.
+//
+// You may obtain a copy of the License, together with FAQs at
+// https://www.defold.com/license
+//
+// Unless required by applicable law or agreed to in writing, software distributed
+// under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+// CONDITIONS OF ANY KIND, either express or implied. See the License for the
+// specific language governing permissions and limitations under the License.
+
+package com.dynamo.bob.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent table mapping paths to SHA1 digests and a fixed number of
+ * long values, used for the build state and the file system digest cache.
+ *
+ * The file is a header (magic, version, value count) followed by a log of records:
+ * <pre>
+ *   'P' id length utf8           interns a path and assigns it an id
+ *   'E' id length digest values  sets the entry of the path with the given id
+ *   'R' id                       removes the entry of the path with the given id
+ * </pre>
+ * The digest is stored in a fixed 20 byte slot, so all entry records have the
+ * same size. Saving only appends records for the entries changed since the
+ * table was loaded or saved. The file is rewritten when most of its records are stale.
+ * The table may be accessed concurrently, but load and save must not run
+ * concurrently with other calls.
+ */
+public class DigestTable {
+
+    public static final int DIGEST_SIZE = 20;
+
+    private static final int HEADER_SIZE = 16;
+    private static final byte RECORD_PATH = 'P';
+    private static final byte RECORD_ENTRY = 'E';
+    private static final byte RECORD_REMOVE = 'R';
+    // number of stale records always tolerated before the file is rewritten
+    private static final int MIN_STALE_RECORDS = 1024;
+
+    public static class Entry {
+        public final byte[] digest;
+        public final long[] values;
+
+        Entry(byte[] digest, long[] values) {
+            this.digest = digest;
+            this.values = values;
+        }
+    }
+
+    private final int magic;
+    private final int version;
+    private final int valueCount;
+
+    private Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    // state of the file the table was last loaded from or saved to
+    private File file;
+    private long fileLength;
+    private int fileRecords;
+    private Map<String, Integer> pathIds = new HashMap<>();
+
+    /**
+     * Create an empty table
+     * @param magic identifies the kind of table in the file header
+     * @param version format version, files with other versions are ignored when loading
+     * @param valueCount number of long values stored with each digest
+     */
+    public DigestTable(int magic, int version, int valueCount) {
+        this.magic = magic;
+        this.version = version;
+        this.valueCount = valueCount;
+    }
+
+    private int entryRecordSize() {
+        return 1 + 4 + 1 + DIGEST_SIZE + 8 * valueCount;
+    }
+
+    /**
+     * Get the entry for a path
+     * @param path path to get entry for
+     * @return entry or null if no mapping exists
+     */
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Set the entry for a path
+     * @param path path to set entry for
+     * @param digest digest of at most 20 bytes
+     * @param values the values to store with the digest
+     */
+    public void put(String path, byte[] digest, long... values) {
+        if (digest.length > DIGEST_SIZE) {
+            throw new IllegalArgumentException(String.format("Digest of '%s' is larger than %d bytes", path, DIGEST_SIZE));
+        }
+        if (values.length != valueCount) {
+            throw new IllegalArgumentException(String.format("Expected %d values but got %d", valueCount, values.length));
+        }
+        Entry entry = new Entry(digest, values);
+        Entry prev = entries.put(path, entry);
+        if (prev == null || !Arrays.equals(prev.digest, digest) || !Arrays.equals(prev.values, values)) {
+            dirty.add(path);
+        }
+    }
+
+    /**
+     * Remove the entry for a path
+     * @param path path to remove
+     */
+    public void remove(String path) {
+        if (entries.remove(path) != null) {
+            dirty.add(path);
+        }
+    }
+
+    /**
+     * Get all paths with an entry
+     * @return list of paths
+     */
+    public List<String> getPaths() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void clear() {
+        entries = new ConcurrentHashMap<>();
+        dirty = ConcurrentHashMap.newKeySet();
+        pathIds = new HashMap<>();
+        file = null;
+        fileLength = 0;
+        fileRecords = 0;
+    }
+
+    /**
+     * Load the table from a file. The file is read into memory, and isn't
+     * kept open or mapped, so that it can be replaced when the table is saved.
+     * @param file file to load
+     * @return true if loaded, false if the file doesn't exist or has another version. The table is empty in that case.
+     * @throws IOException if the file is corrupt
+     */
+    public synchronized boolean load(File file) throws IOException {
+        clear();
+        if (!file.isFile()) {
+            return false;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (!read(buffer)) {
+                clear();
+                return false;
+            }
+        } catch (IOException | RuntimeException e) {
+            clear();
+            throw e;
+        }
+        this.file = file;
+        return true;
+    }
+
+    /**
+     * Load the table from a buffer
+     * @param buffer buffer with the content of a table file
+     * @return true if loaded, false if the content has another version. The table is empty in that case.
+     * @throws IOException if the content is corrupt
+     */
+    public synchronized boolean load(ByteBuffer buffer) throws IOException {
+        clear();
+        try {
+            return read(buffer);
+        } catch (IOException | RuntimeException e) {
+            clear();
+            throw e;
+        }
+    }
+
+    private boolean read(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE) {
+            return false;
+        }
+        if (buffer.getInt() != magic || buffer.getInt() != version || buffer.getInt() != valueCount) {
+            return false;
+        }
+        buffer.getInt(); // reserved
+
+        Map<Integer, String> paths = new HashMap<>();
+        int recordSize = entryRecordSize();
+        int records = 0;
+        long length = buffer.position();
+        // an incomplete record at the end is the result of an interrupted save and is ignored
+        while (buffer.hasRemaining()) {
+            byte type = buffer.get();
+            if (type == RECORD_PATH) {
+                if (buffer.remaining() < 8) {
+                    break;
+                }
+                int id = buffer.getInt();
+                int size = buffer.getInt();
+                if (size < 0) {
+                    throw new IOException("Invalid path length in digest table");
+                }
+                if (buffer.remaining() < size) {
+                    break;
+                }
+                byte[] utf8 = new byte[size];
+                buffer.get(utf8);
+                String path = new String(utf8, StandardCharsets.UTF_8);
+                paths.put(id, path);
+                pathIds.put(path, id);
+            } else if (type == RECORD_ENTRY) {
+                if (buffer.remaining() < recordSize - 1) {
+                    break;
+                }
+                String path = paths.get(buffer.getInt());
+                int size = buffer.get() & 0xff;
+                byte[] slot = new byte[DIGEST_SIZE];
+                buffer.get(slot);
+                long[] values = new long[valueCount];
+                for (int i = 0; i < valueCount; ++i) {
+                    values[i] = buffer.getLong();
+                }
+                if (path == null || size > DIGEST_SIZE) {
+                    throw new IOException("Invalid entry in digest table");
+                }
+                entries.put(path, new Entry(Arrays.copyOf(slot, size), values));
+            } else if (type == RECORD_REMOVE) {
+                if (buffer.remaining() < 4) {
+                    break;
+                }
+                String path = paths.get(buffer.getInt());
+                if (path == null) {
+                    throw new IOException("Invalid entry in digest table");
+                }
+                entries.remove(path);
+            } else {
+                throw new IOException(String.format("Unknown record type %d in digest table", type));
+            }
+            ++records;
+            length = buffer.position();
+        }
+        fileLength = length;
+        fileRecords = records;
+        return true;
+    }
+
+    private void writeEntry(DataOutputStream os, int id, Entry entry) throws IOException {
+        os.writeByte(RECORD_ENTRY);
+        os.writeInt(id);
+        os.writeByte(entry.digest.length);
+        os.write(entry.digest);
+        os.write(new byte[DIGEST_SIZE - entry.digest.length]);
+        for (long value : entry.values) {
+            os.writeLong(value);
+        }
+    }
+
+    private int writePath(DataOutputStream os, String path, Map<String, Integer> ids) throws IOException {
+        int id = ids.size();
+        byte[] utf8 = path.getBytes(StandardCharsets.UTF_8);
+        os.writeByte(RECORD_PATH);
+        os.writeInt(id);
+        os.writeInt(utf8.length);
+        os.write(utf8);
+        ids.put(path, id);
+        return id;
+    }
+
+    /**
+     * Write all entries, interning the paths from scratch
+     * @param ids receives the ids of the written paths
+     * @return the number of records written
+     */
+    private int writeAll(DataOutputStream os, Map<String, Integer> ids) throws IOException {
+        os.writeInt(magic);
+        os.writeInt(version);
+        os.writeInt(valueCount);
+        os.writeInt(0);
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            int id = writePath(os, e.getKey(), ids);
+            writeEntry(os, id, e.getValue());
+        }
+        return 2 * ids.size();
+    }
+
+    /**
+     * Write records for the changed entries
+     * @return the number of records written
+     */
+    private int writeChanges(DataOutputStream os) throws IOException {
+        int records = 0;
+        for (String path : dirty) {
+            dirty.remove(path);
+            Entry entry = entries.get(path);
+            Integer id = pathIds.get(path);
+            if (entry == null) {
+                if (id != null) {
+                    os.writeByte(RECORD_REMOVE);
+                    os.writeInt(id);
+                    ++records;
+                }
+                continue;
+            }
+            if (id == null) {
+                id = writePath(os, path, pathIds);
+                ++records;
+            }
+            writeEntry(os, id, entry);
+            ++records;
+        }
+        return records;
+    }
+
+    /**
+     * Get the content of a file with all entries of the table
+     * @return file content
+     */
+    public synchronized byte[] toByteArray() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(HEADER_SIZE + entries.size() * (entryRecordSize() + 64));
+        try (DataOutputStream os = new DataOutputStream(bos)) {
+            writeAll(os, new HashMap<>());
+        }
+        return bos.toByteArray();
+    }
+
+    private boolean canAppend(File file) {
+        if (this.file == null || !this.file.equals(file) || file.length() != fileLength) {
+            return false;
+        }
+        // rewrite the file when most records are stale
+        long records = fileRecords + 2L * dirty.size();
+        return records <= 2L * entries.size() + MIN_STALE_RECORDS;
+    }
+
+    private void append(File file) throws IOException {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(dirty.size() * (entryRecordSize() + 64));
+        DataOutputStream os = new DataOutputStream(bos);
+        int records = writeChanges(os);
+        os.close();
+        // rewrite the whole file on the next save if anything below fails
+        this.file = null;
+        try (FileOutputStream fos = new FileOutputStream(file, true)) {
+            fos.write(bos.toByteArray());
+        }
+        this.file = file;
+        fileLength += bos.size();
+        fileRecords += records;
+    }
+
+    /**
+     * Save the table to a file. Only the changed entries are written if
+     * the file is the one the table was loaded from or last saved to.
+     * @param file file to save to
+     * @throws IOException
+     */
+    public synchronized void save(File file) throws IOException {
+        if (canAppend(file)) {
+            append(file);
+            return;
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        // the file no longer matches the interned paths if anything below fails
+        this.file = null;
+        dirty.clear();
+        Map<String, Integer> ids = new HashMap<>();
+        File tmp = new File(file.getPath() + ".tmp");
+        int records;
+        try (DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            records = writeAll(os, ids);
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                tmp.delete();
+            }
+        }
+        this.pathIds = ids;
+        this.file = file;
+        this.fileLength = file.length();
+        this.fileRecords = records;
+    }
+
+}
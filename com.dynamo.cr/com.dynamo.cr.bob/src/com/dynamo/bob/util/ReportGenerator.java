@@ -139,31 +139,33 @@ public class ReportGenerator {
 
         ArchiveReader ar = new ArchiveReader(archiveIndex, archiveData, manifest);
 
-        ar.read();
-
-        List<ArchiveEntry> archiveEntries = ar.getEntries();
-        for (int i = 0; i < archiveEntries.size(); i++) {
-            ArchiveEntry archiveEntry = archiveEntries.get(i);
-            long compressedSize = archiveEntry.getCompressedSize() != -1 ? archiveEntry.getCompressedSize() : archiveEntry.getSize();
-            boolean encrypted = archiveEntry.isEncrypted();
-
-            if (this.resources.containsKey(archiveEntry.getFilename())) {
-                ResourceEntry resEntry = this.resources.get(archiveEntry.getFilename());
-                resEntry.compressedSize = compressedSize;
-                resEntry.size = archiveEntry.getSize();
-                resEntry.encrypted = encrypted;
-            } else {
-                ResourceEntry resEntry = new ResourceEntry(archiveEntry.getFilename(),
-                        archiveEntry.getSize(),
-                        compressedSize,
-                        encrypted);
+        try {
+            ar.read();
+
+            List<ArchiveEntry> archiveEntries = ar.getEntries();
+            for (int i = 0; i < archiveEntries.size(); i++) {
+                ArchiveEntry archiveEntry = archiveEntries.get(i);
+                long compressedSize = archiveEntry.getCompressedSize() != -1 ? archiveEntry.getCompressedSize() : archiveEntry.getSize();
+                boolean encrypted = archiveEntry.isEncrypted();
+
+                if (this.resources.containsKey(archiveEntry.getFilename())) {
+                    ResourceEntry resEntry = this.resources.get(archiveEntry.getFilename());
+                    resEntry.compressedSize = compressedSize;
+                    resEntry.size = archiveEntry.getSize();
+                    resEntry.encrypted = encrypted;
+                } else {
+                    ResourceEntry resEntry = new ResourceEntry(archiveEntry.getFilename(),
+                            archiveEntry.getSize(),
+                            compressedSize,
+                            encrypted);
+
+                    this.resources.put(archiveEntry.getFilename(), resEntry);
+                }
 
-                this.resources.put(archiveEntry.getFilename(), resEntry);
             }
-
+        } finally {
+            ar.close();
         }
-
-        ar.close();
     }
 
 
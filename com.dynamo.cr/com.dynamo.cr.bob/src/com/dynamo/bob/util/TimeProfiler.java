@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.codehaus.jackson.JsonFactory;
 import org.codehaus.jackson.JsonGenerator;
@@ -41,6 +42,7 @@ import com.samskivert.mustache.Template;
 
 /**
  * Class helps to profile time of the Bob tool and generate report.
+ * Scopes may be recorded from any thread. Each thread has its own scope hierarchy.
  */
 public class TimeProfiler {
 
@@ -48,6 +50,7 @@ public class TimeProfiler {
 
     /**
      * Helper class that contains profiling data and represents a linked list of scopes hierarchy.
+     * The times are in microseconds.
      */
     private static class ProfilingScope {
         public long startTime;
@@ -70,24 +73,58 @@ public class TimeProfiler {
         public long timestamp;
     }
 
+    /**
+     * Helper class that contains the scope stack of a single thread.
+     * Only the thread owning the profile may modify it while profiling.
+     */
+    private static class ThreadProfile {
+        public long threadId;
+        public String threadName;
+        public ProfilingScope rootScope;
+        public ProfilingScope currentScope;
+    }
+
     private static ArrayList<ProfilingMark> marks;
     private static long buildTime;
 
-    private static ProfilingScope rootScope;
-    private static ProfilingScope currentScope;
+    private static volatile ProfilingScope rootScope;
+    private static ThreadProfile mainProfile;
+    private static Map<Long, ThreadProfile> threadProfiles;
     private static List<File> reportFiles;
+    private static File traceFile;
     private static Boolean fromEditor;
 
+    // wall clock time in microseconds at the time the class was loaded, used
+    // together with the monotonic clock to get microsecond timestamps
+    private static final long epochMicros = System.currentTimeMillis() * 1000;
+    private static final long epochNanos = System.nanoTime();
+
     private static long time() {
-        return System.currentTimeMillis();
+        return epochMicros + (System.nanoTime() - epochNanos) / 1000;
+    }
+
+    private static ThreadProfile getThreadProfile() {
+        Thread thread = Thread.currentThread();
+        ThreadProfile profile = threadProfiles.get(thread.getId());
+        if (profile == null) {
+            profile = new ThreadProfile();
+            profile.threadId = thread.getId();
+            profile.threadName = thread.getName();
+            profile.rootScope = new ProfilingScope();
+            profile.rootScope.startTime = time();
+            profile.currentScope = profile.rootScope;
+            unsafeAddData(profile, "name", "Thread " + thread.getName());
+            threadProfiles.put(profile.threadId, profile);
+        }
+        return profile;
     }
 
     private static void generateJsonRecursively(JsonGenerator generator, ProfilingScope scope) throws IOException {
         generator.writeStartObject();
         generator.writeFieldName("start");
-        generator.writeNumber(scope.startTime - buildTime);
+        generator.writeNumber((scope.startTime - buildTime) / 1000);
         generator.writeFieldName("duration");
-        generator.writeNumber(scope.endTime - scope.startTime);
+        generator.writeNumber((scope.endTime - scope.startTime) / 1000);
         if (scope.additionalStringData != null) {
             for (Map.Entry<String, String> entry : scope.additionalStringData.entrySet())  {
                 generator.writeFieldName(entry.getKey());
@@ -117,6 +154,17 @@ public class TimeProfiler {
         generator.writeEndObject();
     }
 
+    private static List<ThreadProfile> getWorkerProfiles() {
+        List<ThreadProfile> profiles = new ArrayList<>();
+        for (ThreadProfile profile : threadProfiles.values()) {
+            if (profile != mainProfile) {
+                profiles.add(profile);
+            }
+        }
+        profiles.sort((a, b) -> Long.compare(a.threadId, b.threadId));
+        return profiles;
+    }
+
     private static String generateJSON(ProfilingScope scope) throws IOException {
 
         StringWriter strWriter = new StringWriter();
@@ -132,6 +180,13 @@ public class TimeProfiler {
             generator.writeStartArray();
             generateJsonRecursively(generator, scope);
             generator.writeEndArray();
+            // scopes recorded on other threads than the main thread
+            generator.writeFieldName("threads");
+            generator.writeStartArray();
+            for (ThreadProfile profile : getWorkerProfiles()) {
+                generateJsonRecursively(generator, profile.rootScope);
+            }
+            generator.writeEndArray();
             generator.writeFieldName("marks");
             generator.writeStartArray();
             for(ProfilingMark mark : marks) {
@@ -143,7 +198,7 @@ public class TimeProfiler {
                 generator.writeFieldName("color");
                 generator.writeString(mark.color);
                 generator.writeFieldName("timestamp");
-                generator.writeNumber(mark.timestamp - buildTime);
+                generator.writeNumber((mark.timestamp - buildTime) / 1000);
                 generator.writeEndObject();
             }
             generator.writeEndArray();
@@ -158,6 +213,116 @@ public class TimeProfiler {
         return strWriter.toString();
     }
 
+    private static void generateTraceEventsRecursively(JsonGenerator generator, ThreadProfile profile, ProfilingScope scope) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("name", scope.additionalStringData != null ? scope.additionalStringData.getOrDefault("name", "") : "");
+        generator.writeStringField("cat", "bob");
+        generator.writeStringField("ph", "X");
+        generator.writeNumberField("ts", scope.startTime - buildTime);
+        generator.writeNumberField("dur", scope.endTime - scope.startTime);
+        generator.writeNumberField("pid", 1);
+        generator.writeNumberField("tid", profile.threadId);
+        generator.writeFieldName("args");
+        generator.writeStartObject();
+        if (scope.additionalStringData != null) {
+            for (Map.Entry<String, String> entry : scope.additionalStringData.entrySet())  {
+                if (!entry.getKey().equals("name")) {
+                    generator.writeStringField(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        if (scope.additionalNumberData != null) {
+            for (Map.Entry<String, Float> entry : scope.additionalNumberData.entrySet())  {
+                generator.writeNumberField(entry.getKey(), entry.getValue());
+            }
+        }
+        if (scope.additionalBooleanData != null) {
+            for (Map.Entry<String, Boolean> entry : scope.additionalBooleanData.entrySet())  {
+                generator.writeBooleanField(entry.getKey(), entry.getValue());
+            }
+        }
+        generator.writeEndObject();
+        generator.writeEndObject();
+        if (scope.children != null) {
+            for(ProfilingScope childScope : scope.children) {
+                generateTraceEventsRecursively(generator, profile, childScope);
+            }
+        }
+    }
+
+    private static void generateThreadNameEvent(JsonGenerator generator, ThreadProfile profile) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("name", "thread_name");
+        generator.writeStringField("ph", "M");
+        generator.writeNumberField("pid", 1);
+        generator.writeNumberField("tid", profile.threadId);
+        generator.writeFieldName("args");
+        generator.writeStartObject();
+        generator.writeStringField("name", profile.threadName);
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    /**
+     * Save the scopes of all threads in the Chrome trace event format, which
+     * can be opened in chrome://tracing or https://ui.perfetto.dev
+     * The format is described in https://docs.google.com/document/d/1CvAClvFfyA5R-PhYUmn5OOQtYMH4h6I0nSsKchNAySU
+     */
+    private static void saveTrace(File traceFile) throws IOException {
+        BufferedWriter writer = null;
+        JsonGenerator generator = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(traceFile));
+            generator = (new JsonFactory()).createJsonGenerator(writer);
+            generator.writeStartObject();
+            generator.writeStringField("displayTimeUnit", "ms");
+            generator.writeFieldName("traceEvents");
+            generator.writeStartArray();
+
+            generator.writeStartObject();
+            generator.writeStringField("name", "process_name");
+            generator.writeStringField("ph", "M");
+            generator.writeNumberField("pid", 1);
+            generator.writeFieldName("args");
+            generator.writeStartObject();
+            generator.writeStringField("name", "bob");
+            generator.writeEndObject();
+            generator.writeEndObject();
+
+            generateThreadNameEvent(generator, mainProfile);
+            generateTraceEventsRecursively(generator, mainProfile, mainProfile.rootScope);
+            for (ThreadProfile profile : getWorkerProfiles()) {
+                generateThreadNameEvent(generator, profile);
+                // the root scope of a worker thread is only a container for its scopes
+                if (profile.rootScope.children != null) {
+                    for (ProfilingScope scope : profile.rootScope.children) {
+                        generateTraceEventsRecursively(generator, profile, scope);
+                    }
+                }
+            }
+
+            for (ProfilingMark mark : marks) {
+                generator.writeStartObject();
+                generator.writeStringField("name", mark.fullName);
+                generator.writeStringField("cat", "mark");
+                generator.writeStringField("ph", "i");
+                generator.writeStringField("s", "g");
+                generator.writeNumberField("ts", mark.timestamp - buildTime);
+                generator.writeNumberField("pid", 1);
+                generator.writeNumberField("tid", mainProfile.threadId);
+                generator.writeEndObject();
+            }
+
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } finally {
+            if (null != generator) {
+                generator.close();
+            }
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
     private static void saveJSON(String jsonReport, File reportFile) throws IOException {
         FileWriter fileJSONWriter = null;
         fileJSONWriter = new FileWriter(reportFile);
@@ -191,6 +356,23 @@ public class TimeProfiler {
         fileHTMMLWriter.close();
     }
 
+    private static void finishProfile(ThreadProfile profile) {
+        //Close all unclosed scopes
+        while(profile.currentScope != profile.rootScope) {
+            unsafeAddData(profile, "forceFinishedScope", true);
+            unsafeAddData(profile, "color", "#FF0000");
+            unsafeStop(profile);
+        };
+        if (profile != mainProfile && profile.rootScope.children != null) {
+            // a worker thread lives from its first to its last scope
+            ArrayList<ProfilingScope> children = profile.rootScope.children;
+            profile.rootScope.endTime = children.get(children.size() - 1).endTime;
+        }
+        else {
+            unsafeStop(profile);
+        }
+    }
+
     public static void createReport(Boolean fromEditor) {
         // avoid douple creation of the report by checking `fromEditor` flag
         if (rootScope == null || TimeProfiler.fromEditor != fromEditor) {
@@ -201,13 +383,9 @@ public class TimeProfiler {
         rootScope = null;
         long reportStartTime = time();
 
-        //Close all unclosed scopes
-        while(currentScope != _rootScope) {
-            unsafeAddData("forceFinishedScope", true);
-            unsafeAddData("color", "#FF0000");
-            unsafeStop();
-        };
-        unsafeStop();
+        for (ThreadProfile profile : threadProfiles.values()) {
+            finishProfile(profile);
+        }
 
         try {
             String jsonReport = generateJSON(_rootScope);
@@ -229,31 +407,53 @@ public class TimeProfiler {
                     System.err.println("Report file " + reportFileName + "has unsupported extension");
                 }
             }
+
+            if (traceFile != null) {
+                saveTrace(traceFile);
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
 
         long reportEndTime = time();
-        System.out.printf("\nTime profiler report creation took %.2f seconds", (reportEndTime - reportStartTime)/1000.0f);
+        System.out.printf("\nTime profiler report creation took %.2f seconds", (reportEndTime - reportStartTime)/1000000.0f);
     }
 
     public static void init(List<File> reportFiles, Boolean fromEditor) throws IOException {
+        init(reportFiles, null, fromEditor);
+    }
+
+    /**
+     * Start profiling
+     * @param reportFiles JSON and HTML report files to create
+     * @param traceFile Chrome trace event file to create or null
+     * @param fromEditor true if bob is running from the editor
+     */
+    public static void init(List<File> reportFiles, File traceFile, Boolean fromEditor) throws IOException {
         if (rootScope != null) {
             return;
         }
         TimeProfiler.reportFiles = reportFiles;
+        TimeProfiler.traceFile = traceFile;
         TimeProfiler.fromEditor = fromEditor;
         marks = new ArrayList();
+        threadProfiles = new ConcurrentHashMap<>();
         long startTime = time();
         if (!fromEditor) {
             RuntimeMXBean bean = ManagementFactory.getRuntimeMXBean();
-            startTime = bean.getStartTime(); //Returns the start time of the Java virtual machine in milliseconds.
+            startTime = bean.getStartTime() * 1000; //Returns the start time of the Java virtual machine in milliseconds.
         }
         buildTime = startTime;
-        rootScope = new ProfilingScope();
-        rootScope.startTime = startTime;
-        currentScope = rootScope;
-        unsafeAddData("name", "Total time");
+
+        Thread thread = Thread.currentThread();
+        mainProfile = new ThreadProfile();
+        mainProfile.threadId = thread.getId();
+        mainProfile.threadName = thread.getName();
+        mainProfile.rootScope = new ProfilingScope();
+        mainProfile.rootScope.startTime = startTime;
+        mainProfile.currentScope = mainProfile.rootScope;
+        unsafeAddData(mainProfile, "name", "Total time");
+        threadProfiles.put(mainProfile.threadId, mainProfile);
 
         if (!fromEditor) {
             ProfilingScope initScope = new ProfilingScope();
@@ -261,10 +461,11 @@ public class TimeProfiler {
             initScope.additionalStringData.put("name", "Java VM init");
             initScope.startTime = startTime;
             initScope.endTime = time();
-            rootScope.children = new ArrayList<ProfilingScope>();
-            rootScope.children.add(initScope);
-            initScope.parent = rootScope;
+            mainProfile.rootScope.children = new ArrayList<ProfilingScope>();
+            mainProfile.rootScope.children.add(initScope);
+            initScope.parent = mainProfile.rootScope;
         }
+        rootScope = mainProfile.rootScope;
 
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
             @Override
@@ -278,6 +479,8 @@ public class TimeProfiler {
         if (rootScope == null) {
             return;
         }
+        ThreadProfile profile = getThreadProfile();
+        ProfilingScope currentScope = profile.currentScope;
         if (currentScope.children == null) {
             currentScope.children = new ArrayList<ProfilingScope>();
         }
@@ -285,7 +488,7 @@ public class TimeProfiler {
         scope.startTime = time();
         scope.parent = currentScope;
         currentScope.children.add(scope);
-        currentScope = scope;
+        profile.currentScope = scope;
     }
 
     public static void start(String scopeName) {
@@ -300,16 +503,21 @@ public class TimeProfiler {
         start(String.format(fmt, args));
     }
 
-    private static void unsafeStop() {
-        currentScope.endTime = time();
-        currentScope = currentScope.parent;
+    private static void unsafeStop(ThreadProfile profile) {
+        profile.currentScope.endTime = time();
+        profile.currentScope = profile.currentScope.parent;
     }
 
     public static void stop() {
         if (rootScope == null) {
             return;
         }
-        unsafeStop();
+        ThreadProfile profile = getThreadProfile();
+        if (profile.currentScope == profile.rootScope) {
+            // unbalanced stop(), the root scope is closed when creating the report
+            return;
+        }
+        unsafeStop(profile);
     }
 
     public static void addMark(String shortName, String fullName, String color) {
@@ -321,7 +529,9 @@ public class TimeProfiler {
         mark.shortName = shortName;
         mark.fullName = fullName;
         mark.color = color;
-        marks.add(mark);
+        synchronized (marks) {
+            marks.add(mark);
+        }
     }
 
     public static void addMark(String shortName) {
@@ -332,21 +542,24 @@ public class TimeProfiler {
         addMark(shortName, shortName, "#EADDCA");
     }
 
-    private static void unsafeAddData(String fieldName, String data) {
+    private static void unsafeAddData(ThreadProfile profile, String fieldName, String data) {
+        ProfilingScope currentScope = profile.currentScope;
         if (currentScope.additionalStringData == null) {
             currentScope.additionalStringData = new HashMap<String, String>();
         }
         currentScope.additionalStringData.put(fieldName, data);
     }
 
-    private static void unsafeAddData(String fieldName, Float data) {
+    private static void unsafeAddData(ThreadProfile profile, String fieldName, Float data) {
+        ProfilingScope currentScope = profile.currentScope;
         if (currentScope.additionalNumberData == null) {
             currentScope.additionalNumberData = new HashMap<String, Float>();
         }
         currentScope.additionalNumberData.put(fieldName, data);
     }
 
-    private static void unsafeAddData(String fieldName, Boolean data) {
+    private static void unsafeAddData(ThreadProfile profile, String fieldName, Boolean data) {
+        ProfilingScope currentScope = profile.currentScope;
         if (currentScope.additionalBooleanData == null) {
             currentScope.additionalBooleanData = new HashMap<String, Boolean>();
         }
@@ -357,21 +570,21 @@ public class TimeProfiler {
         if (rootScope == null) {
             return;
         }
-        unsafeAddData(fieldName, data);
+        unsafeAddData(getThreadProfile(), fieldName, data);
     }
 
     public static void addData(String fieldName, Float data) {
         if (rootScope == null) {
             return;
         }
-        unsafeAddData(fieldName, data);
+        unsafeAddData(getThreadProfile(), fieldName, data);
     }
 
     public static void addData(String fieldName, Boolean data) {
         if (rootScope == null) {
             return;
         }
-        unsafeAddData(fieldName, data);
+        unsafeAddData(getThreadProfile(), fieldName, data);
     }
 
     public static void addData(String fieldName, Integer data) {